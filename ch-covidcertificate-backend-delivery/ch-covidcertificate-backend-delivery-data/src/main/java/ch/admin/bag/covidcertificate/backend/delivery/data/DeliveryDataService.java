@@ -8,12 +8,17 @@ import ch.admin.bag.covidcertificate.backend.delivery.model.app.DeliveryRegistra
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCertStagingStats;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbStagedCovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransferWithCovidCerts;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.springframework.transaction.annotation.Transactional;
 
 public interface DeliveryDataService {
@@ -25,10 +30,41 @@ public interface DeliveryDataService {
 
     public List<CovidCert> findCovidCerts(String code) throws CodeNotFoundException;
 
+    /**
+     * loads the transfer and all its covid certs with a single query
+     *
+     * @param code transfer code
+     * @return transfer and covid certs (empty list if not ready for delivery)
+     * @throws CodeNotFoundException if there is no transfer for the given code
+     */
+    public DbTransferWithCovidCerts findTransferWithCovidCerts(String code)
+            throws CodeNotFoundException;
+
+    /**
+     * @param transferPk pk of the transfer
+     * @return covid certs in insertion order (empty list if not ready for delivery)
+     */
+    List<CovidCert> findCovidCerts(Integer transferPk);
+
+    /**
+     * @param transferPk pk of the transfer
+     * @return encrypted covid certs as stored, in insertion order (empty list if not ready for
+     *     delivery)
+     */
+    List<DbCovidCert> findEncryptedCovidCerts(Integer transferPk);
+
     public Integer findPkTransferId(String code) throws CodeNotFoundException;
 
     public DbTransfer findTransfer(String code) throws CodeNotFoundException;
 
+    /**
+     * loads the transfers for all given codes with a single query
+     *
+     * @param codes transfer codes
+     * @return transfers by code. codes without a transfer are missing
+     */
+    Map<String, DbTransfer> findTransfers(Collection<String> codes);
+
     public List<DbTransfer> findTransferWithoutCovidCert(Instant importedBefore);
 
     public void closeTransfer(String code) throws CodeNotFoundException;
@@ -38,6 +74,11 @@ public interface DeliveryDataService {
     @Transactional(readOnly = false)
     void updateLastPushTImes(Collection<PushRegistration> registrations);
 
+    /**
+     * @return the push registration with the given register id or null if there is none
+     */
+    PushRegistration findPushRegistration(String registerId);
+
     @Transactional(readOnly = false)
     void removeRegistration(String registerId);
 
@@ -47,7 +88,64 @@ public interface DeliveryDataService {
 
     List<PushRegistration> getDuePushRegistrations(PushType pushType, Duration timeSinceLastPush, int limit);
 
-    public void insertCovidCert(DbCovidCert covidCert);
+    /**
+     * claims a batch of due push registrations by setting their last push to now. due rows locked
+     * by a concurrent claim are skipped, so several instances can claim in parallel without ever
+     * getting the same registration.
+     *
+     * @return the claimed registrations (empty if no registration is due)
+     */
+    List<PushRegistration> claimDuePushRegistrations(
+            PushType pushType, Duration timeSinceLastPush, int limit);
+
+    /**
+     * @return false if a covid cert with the same idempotency key already exists, nothing is
+     *     inserted then
+     */
+    public boolean insertCovidCert(DbCovidCert covidCert);
+
+    /**
+     * inserts all covid certs in one transaction. covid certs with an existing idempotency key are
+     * skipped
+     */
+    void insertCovidCerts(List<DbCovidCert> covidCerts);
+
+    /**
+     * @param idempotencyKeys idempotency keys of covid certs
+     * @return the given idempotency keys of which a covid cert already exists
+     */
+    Set<String> findIdempotencyKeys(Collection<String> idempotencyKeys);
+
+    /**
+     * stages a plaintext covid cert received from the cgs for asynchronous encryption
+     *
+     * @return false if a covid cert with the same idempotency key is already staged or inserted,
+     *     nothing is staged then
+     */
+    boolean stageCovidCert(String code, String hcert, String pdf, String idempotencyKey);
+
+    /**
+     * claims a batch of due staged covid certs by moving their next attempt one lease ahead and
+     * incrementing their attempts. rows locked by a concurrent claim are skipped. a claimed row
+     * becomes due again after the lease if it is neither completed nor retried.
+     *
+     * @return the claimed covid certs (empty if none is due)
+     */
+    List<DbStagedCovidCert> claimStagedCovidCerts(Duration lease, int limit);
+
+    /** inserts the encrypted covid cert and deletes the staged one in one transaction */
+    void completeStagedCovidCert(Integer stagedPk, DbCovidCert covidCert);
+
+    /** makes the staged covid cert due again after the given delay */
+    void retryStagedCovidCert(Integer stagedPk, Duration delay, String error);
+
+    /**
+     * marks the staged covid cert as dead-lettered, it is never claimed again. hcert, pdf and
+     * idempotency key are removed, only code, error and timestamps are kept.
+     */
+    void deadLetterStagedCovidCert(Integer stagedPk, String error);
+
+    DbCovidCertStagingStats getCovidCertStagingStats();
 
     @Transactional(readOnly = false)
     void cleanDB(Duration retentionPeriod);
@@ -5,59 +5,109 @@ import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeAlready
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.PublicKeyAlreadyExistsException;
 import ch.admin.bag.covidcertificate.backend.delivery.data.mapper.CovidCertRowMapper;
+import ch.admin.bag.covidcertificate.backend.delivery.data.mapper.DbCovidCertRowMapper;
 import ch.admin.bag.covidcertificate.backend.delivery.data.mapper.PushRegistrationRowMapper;
+import ch.admin.bag.covidcertificate.backend.delivery.data.mapper.StagedCovidCertRowMapper;
 import ch.admin.bag.covidcertificate.backend.delivery.data.mapper.TransferRowMapper;
+import ch.admin.bag.covidcertificate.backend.delivery.data.mapper.TransferWithCovidCertsExtractor;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.DeliveryRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCertStagingStats;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbStagedCovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransferWithCovidCerts;
 import java.security.NoSuchAlgorithmException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.sql.DataSource;
 import org.apache.logging.log4j.util.Strings;
 import org.postgresql.util.PGInterval;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.core.namedparam.SqlParameterSourceUtils;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
 
+    private static final String UNIQUE_TRANSFER_CODE = "unique_transfer_code";
+    private static final String UNIQUE_PUBLIC_KEY_SHA_256 = "unique_public_key_sha_256";
+    private static final int PUSH_UPSERT_ATTEMPTS = 3;
+    private static final long PUSH_UPSERT_MAX_BACKOFF_MILLIS = 50;
+
+    // covid certs without idempotency key never conflict. the base64 text columns are written
+    // as well as long as instances of the former version read them (see V0_13)
+    private static final String INSERT_COVIDCERT_SQL =
+            "insert into t_covidcert"
+                    + " (fk_transfer_id, encrypted_hcert_bin, encrypted_pdf_bin, encrypted_hcert,"
+                    + " encrypted_pdf, pdf_compression, idempotency_key)"
+                    + " values (:fk_transfer_id, :encrypted_hcert_bin, :encrypted_pdf_bin,"
+                    + " :encrypted_hcert, :encrypted_pdf, :pdf_compression, :idempotency_key)"
+                    + " on conflict (idempotency_key) do nothing";
+
+    // covid certs inserted by instances of the former version only have the base64 text columns
+    private static final String ENCRYPTED_COVIDCERT_COLUMNS =
+            "coalesce(c.encrypted_hcert_bin, decode(c.encrypted_hcert, 'base64'))"
+                    + " as encrypted_hcert,"
+                    + " coalesce(c.encrypted_pdf_bin, decode(c.encrypted_pdf, 'base64'))"
+                    + " as encrypted_pdf";
+
+    /** notified with the transfer pk whenever a covid cert is inserted */
+    public static final String COVIDCERT_NOTIFY_CHANNEL = "covidcert_inserted";
+
+    /**
+     * notified with the code whenever a transfer is deleted, or with an empty string if several
+     * transfers are deleted at once
+     */
+    public static final String TRANSFER_DELETED_NOTIFY_CHANNEL = "transfer_deleted";
+
     private final NamedParameterJdbcTemplate jt;
     private final SimpleJdbcInsert transferInsert;
-    private final SimpleJdbcInsert pushRegistrationInsert;
-    private final SimpleJdbcInsert covidCertInsert;
     private final int pushBatchSize;
+    private final TransferCache transferCache;
 
     public JdbcDeliveryDataServiceImpl(DataSource dataSource, int pushBatchSize) {
+        this(dataSource, pushBatchSize, TransferCache.disabled());
+    }
+
+    public JdbcDeliveryDataServiceImpl(
+            DataSource dataSource, int pushBatchSize, TransferCache transferCache) {
         this.jt = new NamedParameterJdbcTemplate(dataSource);
         this.transferInsert =
                 new SimpleJdbcInsert(dataSource)
                         .withTableName("t_transfer")
                         .usingGeneratedKeyColumns("pk_transfer_id", "created_at");
-        this.pushRegistrationInsert =
-                new SimpleJdbcInsert(dataSource)
-                        .withTableName("t_push_registration")
-                        .usingGeneratedKeyColumns("pk_push_registration_id", "created_at", "updated_at");
-        this.covidCertInsert =
-                new SimpleJdbcInsert(dataSource)
-                        .withTableName("t_covidcert")
-                        .usingGeneratedKeyColumns("pk_covidcert_id", "created_at");
         this.pushBatchSize = pushBatchSize;
+        this.transferCache = transferCache;
     }
 
     @Override
@@ -65,14 +115,34 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
     public void initTransfer(DeliveryRegistration registration)
             throws CodeAlreadyExistsException, PublicKeyAlreadyExistsException,
                     NoSuchAlgorithmException {
-        if (transferCodeExists(registration.getCode())) {
-            throw new CodeAlreadyExistsException();
-        } else if (publicKeyExists(registration.getPublicKey())) {
-            throw new PublicKeyAlreadyExistsException(
-                    registration.getPublicKey(), registration.getCode());
-        } else {
-            transferInsert.execute(createTransferParams(registration));
+        var params = createTransferParams(registration);
+        Map<String, Object> keys;
+        try {
+            keys = transferInsert.executeAndReturnKeyHolder(params).getKeys();
+        } catch (DuplicateKeyException e) {
+            // code and public key uniqueness are enforced by the db, the violated constraint tells
+            // which one is already taken
+            String constraint = getViolatedConstraint(e);
+            if (UNIQUE_TRANSFER_CODE.equals(constraint)) {
+                throw new CodeAlreadyExistsException();
+            } else if (UNIQUE_PUBLIC_KEY_SHA_256.equals(constraint)) {
+                throw new PublicKeyAlreadyExistsException(
+                        registration.getPublicKey(), registration.getCode());
+            }
+            throw e;
         }
+        transferCache.put(createTransfer(registration, params, keys));
+    }
+
+    private String getViolatedConstraint(DuplicateKeyException e) {
+        if (e.getCause() instanceof PSQLException) {
+            ServerErrorMessage serverErrorMessage =
+                    ((PSQLException) e.getCause()).getServerErrorMessage();
+            if (serverErrorMessage != null) {
+                return serverErrorMessage.getConstraint();
+            }
+        }
+        return null;
     }
 
     @Override
@@ -84,29 +154,80 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
                 Boolean.class);
     }
 
-    private boolean publicKeyExists(String publicKey) throws NoSuchAlgorithmException {
-        return jt.queryForObject(
-                "select exists("
-                        + "select * from t_transfer"
-                        + " where public_key_sha_256 = :public_key_sha_256"
-                        + ")",
-                new MapSqlParameterSource("public_key_sha_256", HashUtil.getSha256Hash(publicKey)),
-                Boolean.class);
+    @Override
+    @Transactional(readOnly = true)
+    public List<CovidCert> findCovidCerts(String code) throws CodeNotFoundException {
+        return findTransferWithCovidCerts(code).getCovidCerts();
     }
 
     @Override
     @Transactional(readOnly = true)
-    public List<CovidCert> findCovidCerts(String code) throws CodeNotFoundException {
-        String sql = "select * from t_covidcert where fk_transfer_id = :fk_transfer_id";
+    public DbTransferWithCovidCerts findTransferWithCovidCerts(String code)
+            throws CodeNotFoundException {
+        String sql =
+                "select t.*, "
+                        + ENCRYPTED_COVIDCERT_COLUMNS
+                        + ", c.pdf_compression"
+                        + " from t_transfer t"
+                        + " left join t_covidcert c on c.fk_transfer_id = t.pk_transfer_id"
+                        + " where t.code = :code"
+                        + " order by c.pk_covidcert_id";
+        long invalidationCount = transferCache.getInvalidationCount();
+        DbTransfer cached = transferCache.get(code);
+        if (cached != null) {
+            // transfer is known, only the covid certs have to be loaded
+            var result = new DbTransferWithCovidCerts();
+            result.setTransfer(cached);
+            result.setCovidCerts(findCovidCerts(cached.getPk()));
+            return result;
+        }
+        DbTransferWithCovidCerts result =
+                jt.query(
+                        sql,
+                        new MapSqlParameterSource("code", code),
+                        new TransferWithCovidCertsExtractor());
+        if (result == null) {
+            throw new CodeNotFoundException(code);
+        }
+        transferCache.put(result.getTransfer(), invalidationCount);
+        return result;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<CovidCert> findCovidCerts(Integer transferPk) {
         return jt.query(
-                sql,
-                new MapSqlParameterSource("fk_transfer_id", findPkTransferId(code)),
+                "select "
+                        + ENCRYPTED_COVIDCERT_COLUMNS
+                        + ", c.pdf_compression"
+                        + " from t_covidcert c"
+                        + " where fk_transfer_id = :fk_transfer_id"
+                        + " order by pk_covidcert_id",
+                new MapSqlParameterSource("fk_transfer_id", transferPk),
                 new CovidCertRowMapper());
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<DbCovidCert> findEncryptedCovidCerts(Integer transferPk) {
+        return jt.query(
+                "select c.pk_covidcert_id, c.fk_transfer_id, "
+                        + ENCRYPTED_COVIDCERT_COLUMNS
+                        + ", c.pdf_compression"
+                        + " from t_covidcert c"
+                        + " where fk_transfer_id = :fk_transfer_id"
+                        + " order by pk_covidcert_id",
+                new MapSqlParameterSource("fk_transfer_id", transferPk),
+                new DbCovidCertRowMapper());
+    }
+
     @Override
     @Transactional(readOnly = true)
     public Integer findPkTransferId(String code) throws CodeNotFoundException {
+        DbTransfer cached = transferCache.get(code);
+        if (cached != null) {
+            return cached.getPk();
+        }
         try {
             return jt.queryForObject(
                     "select pk_transfer_id from t_transfer where code = :code",
@@ -120,16 +241,53 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
     @Override
     @Transactional(readOnly = true)
     public DbTransfer findTransfer(String code) throws CodeNotFoundException {
+        long invalidationCount = transferCache.getInvalidationCount();
+        DbTransfer cached = transferCache.get(code);
+        if (cached != null) {
+            return cached;
+        }
         try {
-            return jt.queryForObject(
-                    "select * from t_transfer where code = :code",
-                    new MapSqlParameterSource("code", code),
-                    new TransferRowMapper());
+            DbTransfer transfer =
+                    jt.queryForObject(
+                            "select * from t_transfer where code = :code",
+                            new MapSqlParameterSource("code", code),
+                            new TransferRowMapper());
+            transferCache.put(transfer, invalidationCount);
+            return transfer;
         } catch (EmptyResultDataAccessException e) {
             throw new CodeNotFoundException(code);
         }
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Map<String, DbTransfer> findTransfers(Collection<String> codes) {
+        Map<String, DbTransfer> transfers = new HashMap<>();
+        long invalidationCount = transferCache.getInvalidationCount();
+        List<String> uncachedCodes = new ArrayList<>();
+        for (String code : codes) {
+            DbTransfer cached = transferCache.get(code);
+            if (cached != null) {
+                transfers.put(code, cached);
+            } else {
+                uncachedCodes.add(code);
+            }
+        }
+        if (!uncachedCodes.isEmpty()) {
+            List<DbTransfer> loaded =
+                    jt.query(
+                            "select * from t_transfer where code = any(:codes)",
+                            new MapSqlParameterSource(
+                                    "codes", uncachedCodes.toArray(new String[0])),
+                            new TransferRowMapper());
+            for (DbTransfer transfer : loaded) {
+                transferCache.put(transfer, invalidationCount);
+                transfers.put(transfer.getCode(), transfer);
+            }
+        }
+        return transfers;
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<DbTransfer> findTransferWithoutCovidCert(Instant createdBefore) {
@@ -146,28 +304,85 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
     @Override
     @Transactional(readOnly = false)
     public void closeTransfer(String code) throws CodeNotFoundException {
-        if (transferCodeExists(code)) {
-            jt.update(
-                    "delete from t_transfer where code = :code",
-                    new MapSqlParameterSource("code", code));
-        } else {
+        var params = new MapSqlParameterSource("code", code);
+        int deleted = jt.update("delete from t_transfer where code = :code", params);
+        if (deleted == 0) {
             throw new CodeNotFoundException(code);
         }
+        notifyTransferDeleted(params);
+        // invalidated before the commit, a concurrent lookup could cache the transfer again
+        afterCommit(() -> transferCache.invalidate(code));
     }
 
+    /** delivered on commit, all instances remove the deleted transfers from their cache */
+    private void notifyTransferDeleted(MapSqlParameterSource codeParam) {
+        var notifySql = "select pg_notify('" + TRANSFER_DELETED_NOTIFY_CHANNEL + "', :code)";
+        jt.execute(notifySql, codeParam, PreparedStatement::execute);
+    }
+
+    private void afterCommit(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        runnable.run();
+                    }
+                });
+    }
+
+    // not transactional: the statement is atomic on its own, and a failed attempt must not abort
+    // a surrounding transaction before it is retried
     @Override
-    @Transactional(readOnly = false)
     public void upsertPushRegistration(PushRegistration registration) {
         if (registration.getPushToken() == null || Strings.isBlank(registration.getPushToken())) {
             removeRegistration(registration.getRegisterId());
-        } else if (!pushRegistrationExists(registration)) {
-            pushRegistrationInsert.execute(createPushRegistrationParams(registration));
-        } else {
-            var sql =
-                    "update t_push_registration "
-                            + "set push_token = :push_token, register_id = :register_id, updated_at = now() "
-                            + "where push_token = :push_token or register_id = :register_id";
-            jt.update(sql, createPushRegistrationParams(registration));
+            return;
+        }
+        // the registration of this register id gets the new push token in place, so it keeps its
+        // pk and last push. a registration of another register id holding the push token is
+        // deleted first. if the register id is unknown, the push token is inserted or
+        // re-assigned to it. joining the ctes makes sure they run in this order.
+        var sql =
+                "with conflicting as ("
+                        + " delete from t_push_registration"
+                        + " where push_token = :push_token and register_id <> :register_id"
+                        + " and exists (select 1 from t_push_registration"
+                        + " where register_id = :register_id)"
+                        + " returning 1),"
+                        + " updated as ("
+                        + " update t_push_registration"
+                        + " set push_token = :push_token, updated_at = now()"
+                        + " from (select count(*) from conflicting) c"
+                        + " where register_id = :register_id"
+                        + " returning 1)"
+                        + " insert into t_push_registration (push_token, push_type, register_id)"
+                        + " select :push_token, :push_type, :register_id"
+                        + " where not exists (select 1 from updated)"
+                        + " on conflict (push_token) do update"
+                        + " set register_id = excluded.register_id, updated_at = now()";
+        var params = createPushRegistrationParams(registration);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                jt.update(sql, params);
+                return;
+            } catch (DuplicateKeyException | ConcurrencyFailureException e) {
+                // a concurrent upsert inserted the same register id first, or both upserts
+                // re-assigned each others rows. the retry sees the committed rows
+                if (attempt == PUSH_UPSERT_ATTEMPTS) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(
+                            ThreadLocalRandom.current().nextLong(PUSH_UPSERT_MAX_BACKOFF_MILLIS));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
         }
     }
 
@@ -178,15 +393,15 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
             SqlParameterSourceUtils.createBatch(registrations));
     }
 
-    private boolean pushRegistrationExists(PushRegistration registration) {
-        String sql =
-                "select exists("
-                        + "select * from t_push_registration"
-                        + " where push_token = :push_token"
-                        + " or register_id = :register_id"
-                        + ")";
-        MapSqlParameterSource params = createPushRegistrationParams(registration);
-        return jt.queryForObject(sql, params, Boolean.class);
+    @Override
+    @Transactional(readOnly = true)
+    public PushRegistration findPushRegistration(String registerId) {
+        List<PushRegistration> registrations =
+                jt.query(
+                        "select * from t_push_registration where register_id = :register_id",
+                        new MapSqlParameterSource("register_id", registerId),
+                        new PushRegistrationRowMapper());
+        return registrations.isEmpty() ? null : registrations.get(0);
     }
 
     @Override
@@ -222,20 +437,218 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
     @Transactional(readOnly = true)
     public List<PushRegistration> getDuePushRegistrations(PushType pushType,
         Duration timeSinceLastPush, int limit) {
+        // never pushed registrations (last_push null) are due first. the coalesce expression
+        // matches idx_push_registration_due, so this is an index range scan stopping at the limit
         final var sql =
-            "select * from t_push_registration where push_type = :push_type and last_push is null or last_push < now()  - :interval order by last_push asc limit :batch_size";
+                "select * from t_push_registration"
+                        + " where push_type = :push_type"
+                        + " and coalesce(last_push, '-infinity') < now() - :interval"
+                        + " order by coalesce(last_push, '-infinity') asc"
+                        + " limit :batch_size";
+        return jt.query(
+                sql,
+                getDuePushRegistrationParams(pushType, timeSinceLastPush, limit),
+                new PushRegistrationRowMapper());
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public List<PushRegistration> claimDuePushRegistrations(
+            PushType pushType, Duration timeSinceLastPush, int limit) {
+        // the claim is the last_push stamp itself, so no lock is held while the pushes are sent.
+        // skip locked lets concurrent claims pass rows another instance is claiming right now
+        final var sql =
+                "update t_push_registration set last_push = now()"
+                        + " where pk_push_registration_id in ("
+                        + " select pk_push_registration_id from t_push_registration"
+                        + " where push_type = :push_type"
+                        + " and coalesce(last_push, '-infinity') < now() - :interval"
+                        + " order by coalesce(last_push, '-infinity') asc"
+                        + " limit :batch_size"
+                        + " for update skip locked)"
+                        + " returning *";
+        return jt.query(
+                sql,
+                getDuePushRegistrationParams(pushType, timeSinceLastPush, limit),
+                new PushRegistrationRowMapper());
+    }
+
+    private MapSqlParameterSource getDuePushRegistrationParams(
+            PushType pushType, Duration timeSinceLastPush, int limit) {
         final var params = new MapSqlParameterSource("push_type", pushType.name());
-        PGInterval interval =  new PGInterval();
+        PGInterval interval = new PGInterval();
         interval.setSeconds(timeSinceLastPush.toSeconds());
         params.addValue("interval", interval);
         params.addValue("batch_size", limit);
-        return jt.query(sql, params, new PushRegistrationRowMapper());
+        return params;
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public boolean insertCovidCert(DbCovidCert covidCert) {
+        var params = createCovidCertParams(covidCert);
+        if (jt.update(INSERT_COVIDCERT_SQL, params) == 0) {
+            return false;
+        }
+        // delivered on commit, listeners on all instances can wake up waiting long polls
+        var notifySql =
+                "select pg_notify('"
+                        + COVIDCERT_NOTIFY_CHANNEL
+                        + "', cast(:fk_transfer_id as text))";
+        jt.execute(notifySql, params, PreparedStatement::execute);
+        return true;
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public void insertCovidCerts(List<DbCovidCert> covidCerts) {
+        if (covidCerts.isEmpty()) {
+            return;
+        }
+        int[] inserted =
+                jt.batchUpdate(
+                        INSERT_COVIDCERT_SQL,
+                        covidCerts.stream()
+                                .map(this::createCovidCertParams)
+                                .toArray(SqlParameterSource[]::new));
+        var notifySql =
+                "select pg_notify('"
+                        + COVIDCERT_NOTIFY_CHANNEL
+                        + "', cast(fk_transfer_id as text))"
+                        + " from unnest(cast(:fk_transfer_ids as integer[])) as fk_transfer_id";
+        // skipped duplicates do not wake up anyone
+        Integer[] fkTransferIds =
+                IntStream.range(0, covidCerts.size())
+                        .filter(i -> inserted[i] != 0)
+                        .mapToObj(i -> covidCerts.get(i).getFkTransfer())
+                        .distinct()
+                        .toArray(Integer[]::new);
+        if (fkTransferIds.length == 0) {
+            return;
+        }
+        jt.execute(
+                notifySql,
+                new MapSqlParameterSource("fk_transfer_ids", fkTransferIds),
+                PreparedStatement::execute);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Set<String> findIdempotencyKeys(Collection<String> idempotencyKeys) {
+        if (idempotencyKeys.isEmpty()) {
+            return Set.of();
+        }
+        return new HashSet<>(
+                jt.queryForList(
+                        "select idempotency_key from t_covidcert"
+                                + " where idempotency_key = any(:idempotency_keys)",
+                        new MapSqlParameterSource(
+                                "idempotency_keys", idempotencyKeys.toArray(new String[0])),
+                        String.class));
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public boolean stageCovidCert(String code, String hcert, String pdf, String idempotencyKey) {
+        // neither staged nor inserted yet. a covid cert inserted concurrently slips through, the
+        // insert skips it then
+        final var sql =
+                "insert into t_covidcert_staging (code, hcert, pdf, idempotency_key)"
+                        + " select :code, :hcert, :pdf, :idempotency_key"
+                        + " where not exists (select 1 from t_covidcert"
+                        + " where idempotency_key = :idempotency_key)"
+                        + " on conflict (idempotency_key) do nothing";
+        var params = new MapSqlParameterSource();
+        params.addValue("code", code, Types.VARCHAR);
+        params.addValue("hcert", hcert, Types.VARCHAR);
+        params.addValue("pdf", pdf, Types.VARCHAR);
+        params.addValue("idempotency_key", idempotencyKey, Types.VARCHAR);
+        return jt.update(sql, params) != 0;
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public List<DbStagedCovidCert> claimStagedCovidCerts(Duration lease, int limit) {
+        // same as the push claim: the lease is the next attempt itself, no lock is held while
+        // the covid certs are encrypted
+        final var sql =
+                "update t_covidcert_staging"
+                        + " set next_attempt_at = now() + :lease, attempts = attempts + 1"
+                        + " where pk_covidcert_staging_id in ("
+                        + " select pk_covidcert_staging_id from t_covidcert_staging"
+                        + " where dead_lettered_at is null and next_attempt_at <= now()"
+                        + " order by next_attempt_at asc"
+                        + " limit :batch_size"
+                        + " for update skip locked)"
+                        + " returning *";
+        var params = new MapSqlParameterSource("lease", toInterval(lease));
+        params.addValue("batch_size", limit);
+        return jt.query(sql, params, new StagedCovidCertRowMapper());
     }
 
     @Override
     @Transactional(readOnly = false)
-    public void insertCovidCert(DbCovidCert covidCert) {
-        covidCertInsert.execute(createCovidCertParams(covidCert));
+    public void completeStagedCovidCert(Integer stagedPk, DbCovidCert covidCert) {
+        insertCovidCert(covidCert);
+        jt.update(
+                "delete from t_covidcert_staging where pk_covidcert_staging_id = :pk",
+                new MapSqlParameterSource("pk", stagedPk));
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public void retryStagedCovidCert(Integer stagedPk, Duration delay, String error) {
+        var params = new MapSqlParameterSource("pk", stagedPk);
+        params.addValue("delay", toInterval(delay));
+        params.addValue("last_error", error);
+        jt.update(
+                "update t_covidcert_staging"
+                        + " set next_attempt_at = now() + :delay, last_error = :last_error"
+                        + " where pk_covidcert_staging_id = :pk and dead_lettered_at is null",
+                params);
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public void deadLetterStagedCovidCert(Integer stagedPk, String error) {
+        var params = new MapSqlParameterSource("pk", stagedPk);
+        params.addValue("last_error", error);
+        // the plaintext covid cert is removed right away, only code, error and timestamps are kept.
+        // without the idempotency key a redelivery of the covid cert is staged again
+        jt.update(
+                "update t_covidcert_staging"
+                        + " set dead_lettered_at = now(), last_error = :last_error,"
+                        + " hcert = null, pdf = null, idempotency_key = null"
+                        + " where pk_covidcert_staging_id = :pk",
+                params);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public DbCovidCertStagingStats getCovidCertStagingStats() {
+        final var sql =
+                "select count(*) filter (where dead_lettered_at is null) as pending,"
+                        + " count(*) filter (where dead_lettered_at is not null) as dead_lettered,"
+                        + " min(received_at) filter (where dead_lettered_at is null)"
+                        + " as oldest_pending_received_at"
+                        + " from t_covidcert_staging";
+        return jt.queryForObject(
+                sql,
+                new MapSqlParameterSource(),
+                (rs, rowNum) -> {
+                    var stats = new DbCovidCertStagingStats();
+                    stats.setPending(rs.getLong("pending"));
+                    stats.setDeadLettered(rs.getLong("dead_lettered"));
+                    Timestamp oldest = rs.getTimestamp("oldest_pending_received_at");
+                    stats.setOldestPendingReceivedAt(oldest != null ? oldest.toInstant() : null);
+                    return stats;
+                });
+    }
+
+    private PGInterval toInterval(Duration duration) {
+        PGInterval interval = new PGInterval();
+        interval.setSeconds(duration.toMillis() / 1000.0);
+        return interval;
     }
 
     @Override
@@ -243,12 +656,18 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
     public void cleanDB(Duration retentionPeriod) {
         var transferSql = "delete from t_transfer where created_at < :retention_time";
         var pushSql = "delete from t_push_registration where created_at < :retention_time";
+        // code and error of dead-lettered covid certs are kept until the retention period ends
+        var stagingSql = "delete from t_covidcert_staging where received_at < :retention_time";
 
         var retentionTime = Instant.now().minus(retentionPeriod);
         var params = new MapSqlParameterSource("retention_time", Date.from(retentionTime));
 
-        jt.update(transferSql, params);
+        if (jt.update(transferSql, params) != 0) {
+            notifyTransferDeleted(new MapSqlParameterSource("code", ""));
+            afterCommit(transferCache::invalidateAll);
+        }
         jt.update(pushSql, params);
+        jt.update(stagingSql, params);
     }
 
     @Override
@@ -271,14 +690,49 @@ public class JdbcDeliveryDataServiceImpl implements DeliveryDataService {
         params.addValue("public_key", registration.getPublicKey());
         params.addValue("public_key_sha_256", HashUtil.getSha256Hash(registration.getPublicKey()));
         params.addValue("algorithm", registration.getAlgorithm().name());
+        params.addValue("push_register_id", registration.getPushRegisterId());
+        params.addValue(
+                "accepted_pdf_compression",
+                registration.getAcceptedPdfCompression() != null
+                        ? registration.getAcceptedPdfCompression().name()
+                        : null);
         return params;
     }
 
+    private DbTransfer createTransfer(
+            DeliveryRegistration registration,
+            MapSqlParameterSource params,
+            Map<String, Object> keys) {
+        var transfer = new DbTransfer();
+        transfer.setPk(((Number) keys.get("pk_transfer_id")).intValue());
+        transfer.setCreatedAt(((Timestamp) keys.get("created_at")).toInstant());
+        transfer.setCode(registration.getCode());
+        transfer.setPublicKey(registration.getPublicKey());
+        transfer.setPublicKeySha256((String) params.getValue("public_key_sha_256"));
+        transfer.setAlgorithm(registration.getAlgorithm());
+        transfer.setPushRegisterId(registration.getPushRegisterId());
+        transfer.setAcceptedPdfCompression(registration.getAcceptedPdfCompression());
+        return transfer;
+    }
+
     private MapSqlParameterSource createCovidCertParams(DbCovidCert covidCert) {
         MapSqlParameterSource params = new MapSqlParameterSource();
         params.addValue("fk_transfer_id", covidCert.getFkTransfer());
-        params.addValue("encrypted_hcert", covidCert.getEncryptedHcert());
-        params.addValue("encrypted_pdf", covidCert.getEncryptedPdf());
+        params.addValue("encrypted_hcert_bin", covidCert.getEncryptedHcert());
+        params.addValue("encrypted_pdf_bin", covidCert.getEncryptedPdf());
+        params.addValue("encrypted_hcert", toBase64(covidCert.getEncryptedHcert()), Types.VARCHAR);
+        params.addValue("encrypted_pdf", toBase64(covidCert.getEncryptedPdf()), Types.VARCHAR);
+        params.addValue(
+                "pdf_compression",
+                covidCert.getPdfCompression() != null
+                        ? covidCert.getPdfCompression().name()
+                        : null,
+                Types.VARCHAR);
+        params.addValue("idempotency_key", covidCert.getIdempotencyKey(), Types.VARCHAR);
         return params;
     }
+
+    private static String toBase64(byte[] bytes) {
+        return bytes != null ? Base64.getEncoder().encodeToString(bytes) : null;
+    }
 }
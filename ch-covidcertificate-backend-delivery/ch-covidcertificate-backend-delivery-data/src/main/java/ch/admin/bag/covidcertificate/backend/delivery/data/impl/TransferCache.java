@@ -0,0 +1,82 @@
+package ch.admin.bag.covidcertificate.backend.delivery.data.impl;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.model.util.CodeHelper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size and TTL bounded cache of transfers keyed by sanitized code. A transfer row never changes
+ * after it has been created, so entries only have to be removed when the transfer is deleted.
+ * Deletions are invalidated after commit on the deleting instance and on all other instances
+ * through {@link JdbcDeliveryDataServiceImpl#TRANSFER_DELETED_NOTIFY_CHANNEL}.
+ */
+public class TransferCache {
+
+    private final Cache<String, DbTransfer> cache;
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public TransferCache(long maximumSize, Duration expireAfterWrite) {
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumSize(maximumSize)
+                        .expireAfterWrite(expireAfterWrite)
+                        .recordStats()
+                        .build();
+    }
+
+    /** cache that never holds any entries */
+    public static TransferCache disabled() {
+        return new TransferCache(0, Duration.ZERO);
+    }
+
+    public DbTransfer get(String code) {
+        return cache.getIfPresent(key(code));
+    }
+
+    /** to be taken before a transfer is loaded from the db, see {@link #put(DbTransfer, long)} */
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    public void put(DbTransfer transfer) {
+        cache.put(key(transfer.getCode()), transfer);
+    }
+
+    /**
+     * caches a loaded transfer unless there was an invalidation since the given count was taken.
+     * the transfer might have been deleted while it was loaded then.
+     */
+    public void put(DbTransfer transfer, long invalidationCountBeforeLoad) {
+        if (invalidationCount.get() == invalidationCountBeforeLoad) {
+            cache.asMap()
+                    .compute(
+                            key(transfer.getCode()),
+                            (code, cached) ->
+                                    invalidationCount.get() == invalidationCountBeforeLoad
+                                            ? transfer
+                                            : cached);
+        }
+    }
+
+    public void invalidate(String code) {
+        invalidationCount.incrementAndGet();
+        cache.invalidate(key(code));
+    }
+
+    public void invalidateAll() {
+        invalidationCount.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /** underlying caffeine cache, used to bind the cache metrics */
+    public Cache<String, DbTransfer> getNativeCache() {
+        return cache;
+    }
+
+    private static String key(String code) {
+        return CodeHelper.getSanitizedCode(code);
+    }
+}
@@ -1,17 +1,28 @@
 package ch.admin.bag.covidcertificate.backend.delivery.data.mapper;
 
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Base64;
 import org.springframework.jdbc.core.RowMapper;
 
+/** the encrypted covid certs are stored as bytes and delivered base64 encoded */
 public class CovidCertRowMapper implements RowMapper<CovidCert> {
 
     @Override
     public CovidCert mapRow(ResultSet rs, int rowNum) throws SQLException {
         var covidCert = new CovidCert();
-        covidCert.setEncryptedHcert(rs.getString("encrypted_hcert"));
-        covidCert.setEncryptedPdf(rs.getString("encrypted_pdf"));
+        covidCert.setEncryptedHcert(toBase64(rs.getBytes("encrypted_hcert")));
+        covidCert.setEncryptedPdf(toBase64(rs.getBytes("encrypted_pdf")));
+        String pdfCompression = rs.getString("pdf_compression");
+        if (pdfCompression != null) {
+            covidCert.setPdfCompression(PdfCompression.valueOf(pdfCompression));
+        }
         return covidCert;
     }
+
+    private static String toBase64(byte[] bytes) {
+        return bytes != null ? Base64.getEncoder().encodeToString(bytes) : null;
+    }
 }
@@ -0,0 +1,25 @@
+package ch.admin.bag.covidcertificate.backend.delivery.data.mapper;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.springframework.jdbc.core.RowMapper;
+
+/** the encrypted covid certs as stored, without base64 encoding them */
+public class DbCovidCertRowMapper implements RowMapper<DbCovidCert> {
+
+    @Override
+    public DbCovidCert mapRow(ResultSet rs, int rowNum) throws SQLException {
+        var covidCert = new DbCovidCert();
+        covidCert.setPk(rs.getInt("pk_covidcert_id"));
+        covidCert.setFkTransfer(rs.getInt("fk_transfer_id"));
+        covidCert.setEncryptedHcert(rs.getBytes("encrypted_hcert"));
+        covidCert.setEncryptedPdf(rs.getBytes("encrypted_pdf"));
+        String pdfCompression = rs.getString("pdf_compression");
+        if (pdfCompression != null) {
+            covidCert.setPdfCompression(PdfCompression.valueOf(pdfCompression));
+        }
+        return covidCert;
+    }
+}
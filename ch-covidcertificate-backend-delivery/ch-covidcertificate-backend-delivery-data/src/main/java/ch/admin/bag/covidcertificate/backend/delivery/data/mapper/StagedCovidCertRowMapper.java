@@ -0,0 +1,22 @@
+package ch.admin.bag.covidcertificate.backend.delivery.data.mapper;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbStagedCovidCert;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.springframework.jdbc.core.RowMapper;
+
+public class StagedCovidCertRowMapper implements RowMapper<DbStagedCovidCert> {
+
+    @Override
+    public DbStagedCovidCert mapRow(ResultSet rs, int rowNum) throws SQLException {
+        var stagedCovidCert = new DbStagedCovidCert();
+        stagedCovidCert.setPk(rs.getInt("pk_covidcert_staging_id"));
+        stagedCovidCert.setReceivedAt(rs.getTimestamp("received_at").toInstant());
+        stagedCovidCert.setCode(rs.getString("code"));
+        stagedCovidCert.setHcert(rs.getString("hcert"));
+        stagedCovidCert.setPdf(rs.getString("pdf"));
+        stagedCovidCert.setAttempts(rs.getInt("attempts"));
+        stagedCovidCert.setIdempotencyKey(rs.getString("idempotency_key"));
+        return stagedCovidCert;
+    }
+}
@@ -1,6 +1,7 @@
 package ch.admin.bag.covidcertificate.backend.delivery.data.mapper;
 
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -17,6 +18,11 @@ public class TransferRowMapper implements RowMapper<DbTransfer> {
         transfer.setPublicKey(rs.getString("public_key"));
         transfer.setPublicKeySha256(rs.getString("public_key_sha_256"));
         transfer.setAlgorithm(Algorithm.valueOf(rs.getString("algorithm")));
+        transfer.setPushRegisterId(rs.getString("push_register_id"));
+        String acceptedPdfCompression = rs.getString("accepted_pdf_compression");
+        if (acceptedPdfCompression != null) {
+            transfer.setAcceptedPdfCompression(PdfCompression.valueOf(acceptedPdfCompression));
+        }
         return transfer;
     }
 }
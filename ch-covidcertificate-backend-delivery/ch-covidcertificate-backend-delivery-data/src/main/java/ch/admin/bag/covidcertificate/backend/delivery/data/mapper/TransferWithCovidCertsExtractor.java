@@ -0,0 +1,37 @@
+package ch.admin.bag.covidcertificate.backend.delivery.data.mapper;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransferWithCovidCerts;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * Maps the rows of a <code>t_transfer left join t_covidcert</code> query. Every row carries the
+ * transfer columns, the covid cert columns are null if no covid cert has been delivered yet.
+ * Returns null if the result set is empty (i.e. the transfer does not exist).
+ */
+public class TransferWithCovidCertsExtractor
+        implements ResultSetExtractor<DbTransferWithCovidCerts> {
+
+    private final TransferRowMapper transferRowMapper = new TransferRowMapper();
+    private final CovidCertRowMapper covidCertRowMapper = new CovidCertRowMapper();
+
+    @Override
+    public DbTransferWithCovidCerts extractData(ResultSet rs) throws SQLException {
+        DbTransferWithCovidCerts result = null;
+        int rowNum = 0;
+        while (rs.next()) {
+            if (result == null) {
+                result = new DbTransferWithCovidCerts();
+                result.setTransfer(transferRowMapper.mapRow(rs, rowNum));
+            }
+            CovidCert covidCert = covidCertRowMapper.mapRow(rs, rowNum);
+            if (covidCert.getEncryptedHcert() != null) {
+                result.getCovidCerts().add(covidCert);
+            }
+            rowNum++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,7 @@
+/*
+ * Index for the silent push scheduler (getDuePushRegistrations): due registrations of a push type
+ * ordered by last push, never pushed registrations first.
+ */
+
+create index idx_push_registration_due on t_push_registration
+    (push_type, coalesce(last_push, '-infinity'::timestamp with time zone));
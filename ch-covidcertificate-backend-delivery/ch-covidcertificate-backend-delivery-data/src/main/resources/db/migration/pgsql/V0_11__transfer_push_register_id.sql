@@ -0,0 +1,7 @@
+/*
+ * Optional link from a transfer to the push registration of the device that registered it. The
+ * device gets a silent push as soon as the covid cert of the transfer is ready.
+ */
+
+alter table t_transfer
+    add column push_register_id character varying(255);
@@ -0,0 +1,22 @@
+/*
+ * Covid certs accepted from the cgs but not yet encrypted. Rows are claimed by moving
+ * next_attempt_at one lease ahead, deleted once the encrypted covid cert is inserted and
+ * dead-lettered (kept with the last error) once they must not be retried anymore.
+ */
+
+create table t_covidcert_staging
+(
+    pk_covidcert_staging_id serial                   NOT NULL,
+    received_at             timestamp with time zone NOT NULL DEFAULT now(),
+    code                    character varying(9)     NOT NULL,
+    hcert                   text                     NOT NULL,
+    pdf                     text                     NOT NULL,
+    attempts                integer                  NOT NULL DEFAULT 0,
+    next_attempt_at         timestamp with time zone NOT NULL DEFAULT now(),
+    last_error              text,
+    dead_lettered_at        timestamp with time zone,
+    CONSTRAINT PK_t_covidcert_staging PRIMARY KEY (pk_covidcert_staging_id)
+);
+
+create index idx_covidcert_staging_due on t_covidcert_staging (next_attempt_at)
+    where dead_lettered_at is null;
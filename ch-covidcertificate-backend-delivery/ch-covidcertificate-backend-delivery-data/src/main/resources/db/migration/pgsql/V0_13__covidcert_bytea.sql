@@ -0,0 +1,12 @@
+/*
+ * Stores the encrypted covid certs as raw bytes instead of base64 text, which is a third smaller.
+ * They are base64 encoded when the covid certs are delivered. The bytea columns are added next to
+ * the text columns without rewriting t_covidcert. Both are written, and the bytea columns are read
+ * with a fallback to the text columns, so instances of the former version keep working during a
+ * rolling deploy. V0_17 backfills the bytea columns. The text columns are dropped by a later
+ * migration, once no instance of the former version runs anymore.
+ */
+
+alter table t_covidcert
+    add column encrypted_hcert_bin bytea,
+    add column encrypted_pdf_bin bytea;
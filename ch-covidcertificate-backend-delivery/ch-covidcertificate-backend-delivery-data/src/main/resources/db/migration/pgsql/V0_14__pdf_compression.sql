@@ -0,0 +1,11 @@
+/*
+ * Optional pdf compression before encryption. The transfer holds the compression the app accepted
+ * on registration, every covid cert the compression its pdf was encrypted with. Null means the
+ * base64 pdf was encrypted as is, which all apps understand.
+ */
+
+alter table t_transfer
+    add column accepted_pdf_compression character varying(10);
+
+alter table t_covidcert
+    add column pdf_compression character varying(10);
@@ -0,0 +1,17 @@
+/*
+ * Idempotency key of cgs deliveries: the idempotency key header or the hash of code and hcert.
+ * A retried delivery is not encrypted nor inserted again, the unique constraints make sure of it
+ * across instances. Rows inserted before have no key and are never considered duplicates.
+ */
+
+alter table t_covidcert
+    add column idempotency_key character varying(44);
+
+alter table t_covidcert
+    add constraint unique_covidcert_idempotency_key unique (idempotency_key);
+
+alter table t_covidcert_staging
+    add column idempotency_key character varying(44);
+
+alter table t_covidcert_staging
+    add constraint unique_covidcert_staging_idempotency_key unique (idempotency_key);
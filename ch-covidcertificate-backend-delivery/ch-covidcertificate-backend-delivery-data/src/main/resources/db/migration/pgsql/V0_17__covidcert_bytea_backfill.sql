@@ -0,0 +1,11 @@
+/*
+ * Backfills the bytea columns of the covid certs stored before V0_13 (only those of the retention
+ * period). Covid certs still inserted by instances of the former version during the deploy are
+ * read through the fallback to the text columns, they are backfilled again before the text columns
+ * are dropped.
+ */
+
+update t_covidcert
+    set encrypted_hcert_bin = decode(encrypted_hcert, 'base64'),
+        encrypted_pdf_bin = decode(encrypted_pdf, 'base64')
+    where encrypted_hcert_bin is null;
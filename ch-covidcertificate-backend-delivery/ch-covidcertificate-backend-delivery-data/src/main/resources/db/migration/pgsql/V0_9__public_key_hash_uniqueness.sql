@@ -0,0 +1,25 @@
+/*
+ * Enforce public key uniqueness in the database, so initTransfer can rely on the constraint
+ * instead of checking beforehand. Duplicates that slipped through concurrent registrations are
+ * not removed here, the migration fails and lists them. An operator has to resolve them first.
+ */
+
+do $$
+declare
+    duplicates text;
+begin
+    select string_agg(public_key_sha_256 || ' (transfers ' || pk_transfer_ids || ')', ', ')
+    into duplicates
+    from (select public_key_sha_256, string_agg(pk_transfer_id::text, ', ') as pk_transfer_ids
+          from t_transfer
+          group by public_key_sha_256
+          having count(*) > 1) d;
+    if duplicates is not null then
+        raise exception 'duplicate public keys in t_transfer: %', duplicates;
+    end if;
+end $$;
+
+drop index idx_public_key_sha_256;
+
+alter table t_transfer
+    add constraint unique_public_key_sha_256 unique (public_key_sha_256);
@@ -0,0 +1,12 @@
+/*
+ * Dead-lettered staged covid certs keep only code, error and timestamps: hcert and pdf are removed
+ * when the covid cert is dead-lettered instead of at the end of the retention period.
+ */
+
+alter table t_covidcert_staging
+    alter column hcert drop not null,
+    alter column pdf drop not null;
+
+update t_covidcert_staging
+    set hcert = null, pdf = null, idempotency_key = null
+    where dead_lettered_at is not null;
@@ -11,6 +11,9 @@
 package ch.admin.bag.covidcertificate.backend.delivery.data;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -20,22 +23,46 @@ import ch.admin.bag.covidcertificate.backend.delivery.data.config.PostgresDataCo
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeAlreadyExistsException;
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.PublicKeyAlreadyExistsException;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.JdbcDeliveryDataServiceImpl;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.TransferCache;
 import ch.admin.bag.covidcertificate.backend.delivery.data.util.CodeGenerator;
 import ch.admin.bag.covidcertificate.backend.delivery.data.util.PostgresDbCleaner;
 import ch.admin.bag.covidcertificate.backend.delivery.data.util.RandomGenerator;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.DeliveryRegistration;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCertStagingStats;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbStagedCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransferWithCovidCerts;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Statement;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAmount;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -57,6 +84,7 @@ class DeliveryDataServiceTest {
     public static final String CODE = CodeGenerator.generateCode();
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     @Autowired private DeliveryDataService deliveryDataService;
+    @Autowired private DataSource dataSource;
 
     @Value("${push.batchsize}")
     private int batchsize;
@@ -86,6 +114,114 @@ class DeliveryDataServiceTest {
         deliveryDataService.initTransfer(otherRegistration);
     }
 
+    @Test
+    void testConcurrentInitTransfer() throws Exception {
+        // same code, different public keys
+        List<Callable<Void>> sameCode = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            DeliveryRegistration registration = getDeliveryRegistration(CODE);
+            sameCode.add(
+                    () -> {
+                        deliveryDataService.initTransfer(registration);
+                        return null;
+                    });
+        }
+        assertOneSucceeds(sameCode, CodeAlreadyExistsException.class);
+
+        // same public key, different codes
+        String publicKey = RandomGenerator.randomAlphaNumericString();
+        List<Callable<Void>> samePublicKey = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            DeliveryRegistration registration =
+                    getDeliveryRegistration(CodeGenerator.generateCode(), publicKey);
+            samePublicKey.add(
+                    () -> {
+                        deliveryDataService.initTransfer(registration);
+                        return null;
+                    });
+        }
+        assertOneSucceeds(samePublicKey, PublicKeyAlreadyExistsException.class);
+    }
+
+    @Test
+    void testConcurrentCloseTransfer() throws Exception {
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(
+                    () -> {
+                        deliveryDataService.closeTransfer(CODE);
+                        return null;
+                    });
+        }
+        assertOneSucceeds(tasks, CodeNotFoundException.class);
+        assertThrows(CodeNotFoundException.class, () -> deliveryDataService.findTransfer(CODE));
+    }
+
+    @Test
+    void testConcurrentUpsertPushRegistration() throws Exception {
+        // one register id with changing push tokens, one push token with changing register ids
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            PushRegistration sameRegisterId = new PushRegistration();
+            sameRegisterId.setPushToken("push_token_" + (i % 5));
+            sameRegisterId.setPushType(PushType.IOS);
+            sameRegisterId.setRegisterId("register_id");
+            PushRegistration samePushToken = new PushRegistration();
+            samePushToken.setPushToken("push_token");
+            samePushToken.setPushType(PushType.IOS);
+            samePushToken.setRegisterId("register_id_" + (i % 5));
+            tasks.add(
+                    () -> {
+                        deliveryDataService.upsertPushRegistration(sameRegisterId);
+                        deliveryDataService.upsertPushRegistration(samePushToken);
+                        return null;
+                    });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<PushRegistration> pushRegistrations =
+                deliveryDataService.getPushRegistrationByType(PushType.IOS, 0);
+        assertEquals(2, pushRegistrations.size());
+        assertEquals(
+                1,
+                pushRegistrations.stream()
+                        .filter(r -> r.getRegisterId().equals("register_id"))
+                        .count());
+        assertEquals(
+                1,
+                pushRegistrations.stream()
+                        .filter(r -> r.getPushToken().equals("push_token"))
+                        .count());
+    }
+
+    private void assertOneSucceeds(
+            List<Callable<Void>> tasks, Class<? extends Exception> expectedFailure)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            int succeeded = 0;
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                    succeeded++;
+                } catch (ExecutionException e) {
+                    assertEquals(expectedFailure, e.getCause().getClass());
+                }
+            }
+            assertEquals(1, succeeded);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     private DeliveryRegistration getDeliveryRegistration(String code, String publicKey) {
         DeliveryRegistration registration = new DeliveryRegistration();
         registration.setCode(code);
@@ -94,6 +230,15 @@ class DeliveryDataServiceTest {
         return registration;
     }
 
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** encrypted covid certs are stored as bytes and loaded base64 encoded */
+    private static String base64(String value) {
+        return Base64.getEncoder().encodeToString(bytes(value));
+    }
+
     private DeliveryRegistration getDeliveryRegistration(String code) {
         return getDeliveryRegistration(code, RandomGenerator.randomAlphaNumericString());
     }
@@ -112,6 +257,163 @@ class DeliveryDataServiceTest {
         assertThrows(CodeNotFoundException.class, () -> deliveryDataService.findCovidCerts("XYZ"));
     }
 
+    @Test
+    void testFindTransferWithCovidCerts() throws Exception {
+        // init transfer
+        DeliveryRegistration registration = getDeliveryRegistration(CODE);
+        deliveryDataService.initTransfer(registration);
+
+        // transfer without covid certs
+        DbTransferWithCovidCerts transferWithCovidCerts =
+                deliveryDataService.findTransferWithCovidCerts(CODE);
+        assertEquals(CODE, transferWithCovidCerts.getTransfer().getCode());
+        assertEquals(
+                registration.getPublicKey(), transferWithCovidCerts.getTransfer().getPublicKey());
+        assertTrue(transferWithCovidCerts.getCovidCerts().isEmpty());
+
+        // insert covid certs
+        for (var i = 0; i < 2; i++) {
+            var dbCovidCert = new DbCovidCert();
+            dbCovidCert.setFkTransfer(transferWithCovidCerts.getTransfer().getPk());
+            dbCovidCert.setEncryptedHcert(bytes("hcert" + i));
+            dbCovidCert.setEncryptedPdf(bytes("pdf" + i));
+            deliveryDataService.insertCovidCert(dbCovidCert);
+        }
+
+        // transfer with covid certs
+        transferWithCovidCerts = deliveryDataService.findTransferWithCovidCerts(CODE);
+        assertEquals(CODE, transferWithCovidCerts.getTransfer().getCode());
+        assertEquals(2, transferWithCovidCerts.getCovidCerts().size());
+        assertEquals(base64("hcert0"), transferWithCovidCerts.getCovidCerts().get(0).getEncryptedHcert());
+        assertEquals(base64("pdf1"), transferWithCovidCerts.getCovidCerts().get(1).getEncryptedPdf());
+
+        // covid certs only
+        List<CovidCert> covidCerts =
+                deliveryDataService.findCovidCerts(transferWithCovidCerts.getTransfer().getPk());
+        assertEquals(2, covidCerts.size());
+        assertEquals(base64("hcert0"), covidCerts.get(0).getEncryptedHcert());
+
+        // unknown code
+        assertThrows(
+                CodeNotFoundException.class,
+                () -> deliveryDataService.findTransferWithCovidCerts("XYZ"));
+    }
+
+    @Test
+    void testFindEncryptedCovidCerts() throws Exception {
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        Integer transferPk = deliveryDataService.findPkTransferId(CODE);
+        assertTrue(deliveryDataService.findEncryptedCovidCerts(transferPk).isEmpty());
+
+        for (var i = 0; i < 3; i++) {
+            var dbCovidCert = new DbCovidCert();
+            dbCovidCert.setFkTransfer(transferPk);
+            dbCovidCert.setEncryptedHcert(bytes("hcert" + i));
+            dbCovidCert.setEncryptedPdf(bytes("pdf" + i));
+            deliveryDataService.insertCovidCert(dbCovidCert);
+        }
+
+        // covid certs are loaded as stored, in insertion order
+        List<String> found =
+                deliveryDataService.findEncryptedCovidCerts(transferPk).stream()
+                        .map(
+                                covidCert ->
+                                        new String(
+                                                        covidCert.getEncryptedHcert(),
+                                                        StandardCharsets.UTF_8)
+                                                + ":"
+                                                + new String(
+                                                        covidCert.getEncryptedPdf(),
+                                                        StandardCharsets.UTF_8))
+                        .collect(Collectors.toList());
+        assertEquals(List.of("hcert0:pdf0", "hcert1:pdf1", "hcert2:pdf2"), found);
+    }
+
+    @Test
+    void testCovidCertBase64Columns() throws Exception {
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        Integer transferPk = deliveryDataService.findPkTransferId(CODE);
+        // inserted by an instance of the former version, only in the base64 text columns
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute(
+                    "insert into t_covidcert (fk_transfer_id, encrypted_hcert, encrypted_pdf)"
+                            + " values ("
+                            + transferPk
+                            + ", '"
+                            + base64("hcert0")
+                            + "', '"
+                            + base64("pdf0")
+                            + "')");
+        }
+        var dbCovidCert = new DbCovidCert();
+        dbCovidCert.setFkTransfer(transferPk);
+        dbCovidCert.setEncryptedHcert(bytes("hcert1"));
+        dbCovidCert.setEncryptedPdf(bytes("pdf1"));
+        deliveryDataService.insertCovidCert(dbCovidCert);
+
+        // both covid certs are read, from the bytea columns or else the text columns
+        List<CovidCert> covidCerts = deliveryDataService.findCovidCerts(CODE);
+        assertEquals(2, covidCerts.size());
+        assertEquals(base64("hcert0"), covidCerts.get(0).getEncryptedHcert());
+        assertEquals(base64("pdf0"), covidCerts.get(0).getEncryptedPdf());
+        assertEquals(base64("hcert1"), covidCerts.get(1).getEncryptedHcert());
+        assertEquals(base64("pdf1"), covidCerts.get(1).getEncryptedPdf());
+        List<DbCovidCert> encrypted = deliveryDataService.findEncryptedCovidCerts(transferPk);
+        assertEquals("hcert0", new String(encrypted.get(0).getEncryptedHcert(), StandardCharsets.UTF_8));
+        assertEquals("hcert1", new String(encrypted.get(1).getEncryptedHcert(), StandardCharsets.UTF_8));
+
+        // the former version reads the text columns of covid certs inserted now
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                var rs =
+                        statement.executeQuery(
+                                "select encrypted_hcert, encrypted_pdf from t_covidcert"
+                                        + " order by pk_covidcert_id desc limit 1")) {
+            assertTrue(rs.next());
+            assertEquals(base64("hcert1"), rs.getString("encrypted_hcert"));
+            assertEquals(base64("pdf1"), rs.getString("encrypted_pdf"));
+        }
+    }
+
+    @Test
+    void testPdfCompression() throws Exception {
+        DeliveryRegistration registration = getDeliveryRegistration(CODE);
+        registration.setAcceptedPdfCompression(PdfCompression.DEFLATE);
+        deliveryDataService.initTransfer(registration);
+        DbTransfer transfer = deliveryDataService.findTransfer(CODE);
+        assertEquals(PdfCompression.DEFLATE, transfer.getAcceptedPdfCompression());
+
+        var dbCovidCert = new DbCovidCert();
+        dbCovidCert.setFkTransfer(transfer.getPk());
+        dbCovidCert.setEncryptedHcert(bytes("hcert"));
+        dbCovidCert.setEncryptedPdf(bytes("pdf"));
+        dbCovidCert.setPdfCompression(PdfCompression.DEFLATE);
+        deliveryDataService.insertCovidCert(dbCovidCert);
+
+        assertEquals(
+                PdfCompression.DEFLATE,
+                deliveryDataService.findCovidCerts(CODE).get(0).getPdfCompression());
+        DbTransferWithCovidCerts transferWithCovidCerts =
+                deliveryDataService.findTransferWithCovidCerts(CODE);
+        assertEquals(PdfCompression.DEFLATE, transferWithCovidCerts.getTransfer().getAcceptedPdfCompression());
+        assertEquals(
+                PdfCompression.DEFLATE,
+                transferWithCovidCerts.getCovidCerts().get(0).getPdfCompression());
+        assertEquals(
+                PdfCompression.DEFLATE,
+                deliveryDataService
+                        .findEncryptedCovidCerts(transfer.getPk())
+                        .get(0)
+                        .getPdfCompression());
+
+        // transfers of apps without compression support are unchanged
+        String uncompressedCode = CodeGenerator.generateCode();
+        deliveryDataService.initTransfer(getDeliveryRegistration(uncompressedCode));
+        assertNull(
+                deliveryDataService.findTransfer(uncompressedCode).getAcceptedPdfCompression());
+    }
+
     @Test
     void testCloseTransfer() throws Exception {
         // init transfer
@@ -182,6 +484,36 @@ class DeliveryDataServiceTest {
         assertTrue(pushRegistrations.isEmpty());
     }
 
+    @Test
+    void testPushTokenRotation() throws Exception {
+        PushRegistration pushRegistration = new PushRegistration();
+        pushRegistration.setPushToken("push_token");
+        pushRegistration.setPushType(PushType.IOS);
+        pushRegistration.setRegisterId("register_id");
+        deliveryDataService.upsertPushRegistration(pushRegistration);
+        PushRegistration pushed = deliveryDataService.findPushRegistration("register_id");
+        deliveryDataService.updateLastPushTImes(List.of(pushed));
+        pushed = deliveryDataService.findPushRegistration("register_id");
+        assertNotNull(pushed.getLastPush());
+
+        // another device holds the new push token
+        PushRegistration otherDevice = new PushRegistration();
+        otherDevice.setPushToken("rotated_push_token");
+        otherDevice.setPushType(PushType.IOS);
+        otherDevice.setRegisterId("other_register_id");
+        deliveryDataService.upsertPushRegistration(otherDevice);
+
+        // the rotated push token is updated in place and not due again
+        pushRegistration.setPushToken("rotated_push_token");
+        deliveryDataService.upsertPushRegistration(pushRegistration);
+        PushRegistration rotated = deliveryDataService.findPushRegistration("register_id");
+        assertEquals("rotated_push_token", rotated.getPushToken());
+        assertEquals(pushed.getId(), rotated.getId());
+        assertEquals(pushed.getLastPush(), rotated.getLastPush());
+        assertNull(deliveryDataService.findPushRegistration("other_register_id"));
+        assertEquals(1, deliveryDataService.getPushRegistrationByType(PushType.IOS, 0).size());
+    }
+
     @Test
     void testPushRegistrationOrdering() {
         for (var i = 0; i < 20; i++) {
@@ -234,12 +566,263 @@ class DeliveryDataServiceTest {
         assertEquals(0, none_left.size());
     }
 
+    @Test
+    void testDuePushRegistrationsByType() {
+        for (PushType pushType : List.of(PushType.IOS, PushType.AND)) {
+            for (var i = 0; i < 3; i++) {
+                PushRegistration pushRegistration = new PushRegistration();
+                pushRegistration.setPushToken("push_token_" + pushType + i);
+                pushRegistration.setPushType(pushType);
+                pushRegistration.setRegisterId("register_id_" + pushType + i);
+                deliveryDataService.upsertPushRegistration(pushRegistration);
+            }
+            deliveryDataService.updateLastPushTImes(
+                    deliveryDataService.getPushRegistrationByType(pushType, 0));
+        }
+
+        // every registration is overdue, only the requested type is returned
+        Duration overdue = Duration.ofMinutes(-1);
+        List<PushRegistration> due =
+                deliveryDataService.getDuePushRegistrations(PushType.IOS, overdue, 1000);
+        assertEquals(3, due.size());
+        assertTrue(due.stream().allMatch(r -> r.getPushType() == PushType.IOS));
+
+        // never pushed registrations are due first
+        PushRegistration neverPushed = new PushRegistration();
+        neverPushed.setPushToken("never_pushed_token");
+        neverPushed.setPushType(PushType.IOS);
+        neverPushed.setRegisterId("never_pushed_register_id");
+        deliveryDataService.upsertPushRegistration(neverPushed);
+        due = deliveryDataService.getDuePushRegistrations(PushType.IOS, overdue, 1);
+        assertEquals(1, due.size());
+        assertPushRegistration(neverPushed, due.get(0));
+    }
+
     private void assertPushRegistration(PushRegistration expected, PushRegistration actual) {
         assertEquals(expected.getPushToken(), actual.getPushToken());
         assertEquals(expected.getPushType(), actual.getPushType());
         assertEquals(expected.getRegisterId(), actual.getRegisterId());
     }
 
+    @Test
+    void testConcurrentClaimDuePushRegistrations() throws Exception {
+        for (var i = 0; i < 100; i++) {
+            PushRegistration pushRegistration = new PushRegistration();
+            pushRegistration.setPushToken("push_token_" + i);
+            pushRegistration.setPushType(PushType.IOS);
+            pushRegistration.setRegisterId("register_id_" + i);
+            deliveryDataService.upsertPushRegistration(pushRegistration);
+        }
+
+        // concurrent claims never hand out a registration twice and together claim all due ones
+        Duration pushInterval = Duration.ofHours(2);
+        List<Callable<List<PushRegistration>>> tasks = new ArrayList<>();
+        for (var i = 0; i < 8; i++) {
+            tasks.add(
+                    () -> {
+                        List<PushRegistration> claimed = new ArrayList<>();
+                        List<PushRegistration> batch;
+                        do {
+                            batch =
+                                    deliveryDataService.claimDuePushRegistrations(
+                                            PushType.IOS, pushInterval, 7);
+                            claimed.addAll(batch);
+                        } while (!batch.isEmpty());
+                        return claimed;
+                    });
+        }
+        Set<String> claimedTokens = new HashSet<>();
+        var claimedCount = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<List<PushRegistration>> future : executor.invokeAll(tasks)) {
+                for (PushRegistration claimed : future.get()) {
+                    assertNotNull(claimed.getLastPush());
+                    claimedTokens.add(claimed.getPushToken());
+                    claimedCount++;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(100, claimedCount);
+        assertEquals(100, claimedTokens.size());
+
+        // claimed registrations are no longer due
+        assertTrue(
+                deliveryDataService
+                        .getDuePushRegistrations(PushType.IOS, pushInterval, 1000)
+                        .isEmpty());
+        assertTrue(
+                deliveryDataService
+                        .claimDuePushRegistrations(PushType.IOS, pushInterval, 1000)
+                        .isEmpty());
+    }
+
+    @Test
+    void testTransferPushRegisterId() throws Exception {
+        // transfer without push registration
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        assertNull(deliveryDataService.findTransfer(CODE).getPushRegisterId());
+
+        // transfer linked to a push registration, from the db and from the cache
+        DeliveryRegistration registration = getDeliveryRegistration("OTHER");
+        registration.setPushRegisterId("register_id");
+        deliveryDataService.initTransfer(registration);
+        assertEquals("register_id", deliveryDataService.findTransfer("OTHER").getPushRegisterId());
+        JdbcDeliveryDataServiceImpl uncached = new JdbcDeliveryDataServiceImpl(dataSource, 100);
+        assertEquals("register_id", uncached.findTransfer("OTHER").getPushRegisterId());
+        assertEquals(
+                "register_id",
+                uncached.findTransferWithCovidCerts("OTHER").getTransfer().getPushRegisterId());
+
+        // push registration lookup
+        assertNull(deliveryDataService.findPushRegistration("register_id"));
+        PushRegistration pushRegistration = new PushRegistration();
+        pushRegistration.setPushToken("push_token");
+        pushRegistration.setPushType(PushType.IOS);
+        pushRegistration.setRegisterId("register_id");
+        deliveryDataService.upsertPushRegistration(pushRegistration);
+        assertPushRegistration(
+                pushRegistration, deliveryDataService.findPushRegistration("register_id"));
+    }
+
+    @Test
+    void testBatchFindTransfersAndInsertCovidCerts() throws Exception {
+        var transferCache = new TransferCache(100, Duration.ofMinutes(1));
+        var cachedDataService =
+                new JdbcDeliveryDataServiceImpl(dataSource, batchsize, transferCache);
+        String otherCode = CodeGenerator.generateCode();
+        String unknownCode = CodeGenerator.generateCode();
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        deliveryDataService.initTransfer(getDeliveryRegistration(otherCode));
+        // one transfer from the cache, one from the db
+        cachedDataService.findTransfer(CODE);
+
+        Map<String, DbTransfer> transfers =
+                cachedDataService.findTransfers(List.of(CODE, otherCode, unknownCode));
+        assertEquals(Set.of(CODE, otherCode), transfers.keySet());
+        assertEquals(deliveryDataService.findPkTransferId(CODE), transfers.get(CODE).getPk());
+        assertEquals(
+                deliveryDataService.findPkTransferId(otherCode), transfers.get(otherCode).getPk());
+        assertNotNull(transferCache.get(otherCode));
+
+        List<DbCovidCert> covidCerts = new ArrayList<>();
+        for (String code : List.of(CODE, CODE, otherCode)) {
+            var dbCovidCert = new DbCovidCert();
+            dbCovidCert.setFkTransfer(transfers.get(code).getPk());
+            dbCovidCert.setEncryptedHcert(bytes("hcert"));
+            dbCovidCert.setEncryptedPdf(bytes("pdf"));
+            covidCerts.add(dbCovidCert);
+        }
+        deliveryDataService.insertCovidCerts(covidCerts);
+        deliveryDataService.insertCovidCerts(List.of());
+        assertEquals(2, deliveryDataService.findCovidCerts(CODE).size());
+        assertEquals(1, deliveryDataService.findCovidCerts(otherCode).size());
+    }
+
+    @Test
+    void testCovidCertIdempotencyKey() throws Exception {
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        Integer transferPk = deliveryDataService.findPkTransferId(CODE);
+        assertTrue(deliveryDataService.insertCovidCert(covidCert(transferPk, "key1")));
+        assertFalse(deliveryDataService.insertCovidCert(covidCert(transferPk, "key1")));
+        // covid certs without key are never duplicates
+        assertTrue(deliveryDataService.insertCovidCert(covidCert(transferPk, null)));
+        assertTrue(deliveryDataService.insertCovidCert(covidCert(transferPk, null)));
+        // duplicates within and across batches are skipped
+        deliveryDataService.insertCovidCerts(
+                List.of(
+                        covidCert(transferPk, "key1"),
+                        covidCert(transferPk, "key2"),
+                        covidCert(transferPk, "key2")));
+        assertEquals(4, deliveryDataService.findCovidCerts(CODE).size());
+        assertEquals(
+                Set.of("key1", "key2"),
+                deliveryDataService.findIdempotencyKeys(List.of("key1", "key2", "key3")));
+        assertTrue(deliveryDataService.findIdempotencyKeys(List.of()).isEmpty());
+    }
+
+    private static DbCovidCert covidCert(Integer transferPk, String idempotencyKey) {
+        var dbCovidCert = new DbCovidCert();
+        dbCovidCert.setFkTransfer(transferPk);
+        dbCovidCert.setEncryptedHcert(bytes("hcert"));
+        dbCovidCert.setEncryptedPdf(bytes("pdf"));
+        dbCovidCert.setIdempotencyKey(idempotencyKey);
+        return dbCovidCert;
+    }
+
+    @Test
+    void testCovidCertStaging() throws Exception {
+        String unknownCode = CodeGenerator.generateCode();
+        deliveryDataService.initTransfer(getDeliveryRegistration(CODE));
+        assertTrue(deliveryDataService.stageCovidCert(CODE, "hcert", "pdf", "key"));
+        assertTrue(deliveryDataService.stageCovidCert(unknownCode, "hcert", "pdf", null));
+        // retries are staged once
+        assertFalse(deliveryDataService.stageCovidCert(CODE, "hcert", "pdf", "key"));
+        DbCovidCertStagingStats stats = deliveryDataService.getCovidCertStagingStats();
+        assertEquals(2, stats.getPending());
+        assertNotNull(stats.getOldestPendingReceivedAt());
+
+        // claimed covid certs are leased
+        List<DbStagedCovidCert> claimed =
+                deliveryDataService.claimStagedCovidCerts(Duration.ofHours(1), 10);
+        assertEquals(2, claimed.size());
+        assertEquals(1, claimed.get(0).getAttempts());
+        assertEquals("hcert", claimed.get(0).getHcert());
+        assertEquals(
+                Set.of("key"),
+                claimed.stream()
+                        .map(DbStagedCovidCert::getIdempotencyKey)
+                        .filter(key -> key != null)
+                        .collect(Collectors.toSet()));
+        assertTrue(deliveryDataService.claimStagedCovidCerts(Duration.ofHours(1), 10).isEmpty());
+
+        // retried covid certs are due again after the delay
+        DbStagedCovidCert known =
+                CODE.equals(claimed.get(0).getCode()) ? claimed.get(0) : claimed.get(1);
+        DbStagedCovidCert unknown = known == claimed.get(0) ? claimed.get(1) : claimed.get(0);
+        deliveryDataService.retryStagedCovidCert(known.getPk(), Duration.ZERO, "error");
+        claimed = deliveryDataService.claimStagedCovidCerts(Duration.ofHours(1), 10);
+        assertEquals(1, claimed.size());
+        assertEquals(2, claimed.get(0).getAttempts());
+
+        // completed covid certs are inserted, dead-lettered ones never claimed again
+        var dbCovidCert = new DbCovidCert();
+        dbCovidCert.setFkTransfer(deliveryDataService.findPkTransferId(CODE));
+        dbCovidCert.setEncryptedHcert(bytes("encrypted_hcert"));
+        dbCovidCert.setEncryptedPdf(bytes("encrypted_pdf"));
+        dbCovidCert.setIdempotencyKey(known.getIdempotencyKey());
+        deliveryDataService.completeStagedCovidCert(known.getPk(), dbCovidCert);
+        // retries of inserted covid certs are not staged again
+        assertFalse(deliveryDataService.stageCovidCert(CODE, "hcert", "pdf", "key"));
+        deliveryDataService.deadLetterStagedCovidCert(unknown.getPk(), "code not found");
+        deliveryDataService.retryStagedCovidCert(unknown.getPk(), Duration.ZERO, "error");
+        assertEquals(1, deliveryDataService.findCovidCerts(CODE).size());
+        assertTrue(deliveryDataService.claimStagedCovidCerts(Duration.ZERO, 10).isEmpty());
+        stats = deliveryDataService.getCovidCertStagingStats();
+        assertEquals(0, stats.getPending());
+        assertEquals(1, stats.getDeadLettered());
+        assertNull(stats.getOldestPendingReceivedAt());
+        // only code, error and timestamps of dead-lettered covid certs are kept
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                var rs =
+                        statement.executeQuery(
+                                "select * from t_covidcert_staging"
+                                        + " where dead_lettered_at is not null")) {
+            assertTrue(rs.next());
+            assertEquals(unknownCode, rs.getString("code"));
+            assertEquals("code not found", rs.getString("last_error"));
+            assertNull(rs.getString("hcert"));
+            assertNull(rs.getString("pdf"));
+            assertNull(rs.getString("idempotency_key"));
+        }
+
+        deliveryDataService.cleanDB(Duration.ofDays(-1));
+        assertEquals(0, deliveryDataService.getCovidCertStagingStats().getDeadLettered());
+    }
+
     @Test
     void testCleanDB() throws Exception {
         // init transfer
@@ -254,8 +837,8 @@ class DeliveryDataServiceTest {
         // insert covid cert
         var dbCovidCert = new DbCovidCert();
         dbCovidCert.setFkTransfer(deliveryDataService.findPkTransferId(CODE));
-        dbCovidCert.setEncryptedHcert("hcert");
-        dbCovidCert.setEncryptedPdf("pdf");
+        dbCovidCert.setEncryptedHcert(bytes("hcert"));
+        dbCovidCert.setEncryptedPdf(bytes("pdf"));
         deliveryDataService.insertCovidCert(dbCovidCert);
         assertEquals(1, deliveryDataService.findCovidCerts(CODE).size());
         // delete everything
@@ -265,6 +848,70 @@ class DeliveryDataServiceTest {
         assertEquals(0, deliveryDataService.countRegistrations());
     }
 
+    @Test
+    void testTransferCache() throws Exception {
+        var transferCache = new TransferCache(100, Duration.ofMinutes(1));
+        var cachedDataService = new JdbcDeliveryDataServiceImpl(dataSource, batchsize, transferCache);
+
+        // init transfer fills the cache
+        DeliveryRegistration registration = getDeliveryRegistration(CODE);
+        cachedDataService.initTransfer(registration);
+        var initTransfer = transferCache.get(CODE);
+        assertEquals(registration.getPublicKey(), initTransfer.getPublicKey());
+        long hitCount = transferCache.getNativeCache().stats().hitCount();
+
+        // lookups are served from the cache
+        DbTransfer transfer = cachedDataService.findTransfer(CODE);
+        assertEquals(initTransfer.getPk(), transfer.getPk());
+        assertEquals(
+                deliveryDataService.findTransfer(CODE).getCreatedAt(), transfer.getCreatedAt());
+        assertEquals(initTransfer.getPk(), cachedDataService.findPkTransferId(CODE));
+        assertTrue(cachedDataService.findTransferWithCovidCerts(CODE).getCovidCerts().isEmpty());
+        assertEquals(hitCount + 3, transferCache.getNativeCache().stats().hitCount());
+
+        // covid certs are still loaded from the database
+        var dbCovidCert = new DbCovidCert();
+        dbCovidCert.setFkTransfer(transfer.getPk());
+        dbCovidCert.setEncryptedHcert(bytes("hcert"));
+        dbCovidCert.setEncryptedPdf(bytes("pdf"));
+        cachedDataService.insertCovidCert(dbCovidCert);
+        assertEquals(1, cachedDataService.findCovidCerts(CODE).size());
+
+        // close transfer invalidates the cache and notifies the other instances
+        try (Connection listener = dataSource.getConnection();
+                Statement statement = listener.createStatement()) {
+            statement.execute(
+                    "listen " + JdbcDeliveryDataServiceImpl.TRANSFER_DELETED_NOTIFY_CHANNEL);
+            cachedDataService.closeTransfer(CODE);
+            assertNull(transferCache.get(CODE));
+            assertThrows(CodeNotFoundException.class, () -> cachedDataService.findTransfer(CODE));
+            PGNotification[] notifications =
+                    listener.unwrap(PGConnection.class).getNotifications(5000);
+            assertEquals(1, notifications.length);
+            assertEquals(CODE, notifications[0].getParameter());
+
+            // a lookup racing with the close does not cache the deleted transfer again
+            deliveryDataService.initTransfer(registration);
+            long invalidationCount = transferCache.getInvalidationCount();
+            DbTransfer loaded = deliveryDataService.findTransfer(CODE);
+            cachedDataService.closeTransfer(CODE);
+            transferCache.put(loaded, invalidationCount);
+            assertNull(transferCache.get(CODE));
+            listener.unwrap(PGConnection.class).getNotifications(5000);
+
+            // first lookup fills the cache, clean db invalidates it
+            deliveryDataService.initTransfer(registration);
+            cachedDataService.findTransfer(CODE);
+            assertNotNull(transferCache.get(CODE));
+            cachedDataService.cleanDB(Duration.ofDays(-1));
+            assertNull(transferCache.get(CODE));
+            assertThrows(CodeNotFoundException.class, () -> cachedDataService.findTransfer(CODE));
+            notifications = listener.unwrap(PGConnection.class).getNotifications(5000);
+            assertEquals(1, notifications.length);
+            assertEquals("", notifications[0].getParameter());
+        }
+    }
+
     @Test
     void testRegistrationCount() throws Exception{
         for (var i = 0; i < 20; i++) {
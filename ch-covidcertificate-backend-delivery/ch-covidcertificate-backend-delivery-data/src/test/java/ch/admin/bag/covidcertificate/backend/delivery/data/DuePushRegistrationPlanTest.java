@@ -0,0 +1,156 @@
+package ch.admin.bag.covidcertificate.backend.delivery.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.config.DeliveryDataServiceConfig;
+import ch.admin.bag.covidcertificate.backend.delivery.data.config.FlyWayConfig;
+import ch.admin.bag.covidcertificate.backend.delivery.data.config.PostgresDataConfig;
+import ch.admin.bag.covidcertificate.backend.delivery.data.util.PostgresDbCleaner;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+/**
+ * Query plans of the due push registration selection on a loaded t_push_registration. The plan
+ * test runs with every build, the benchmark compares the former query, the query without
+ * idx_push_registration_due and the query with it on 3M registrations. Run the benchmark with
+ * -Dbenchmark=true
+ */
+@ExtendWith({SpringExtension.class, PostgresDbCleaner.class})
+@ContextConfiguration(
+        loader = AnnotationConfigContextLoader.class,
+        classes = {PostgresDataConfig.class, FlyWayConfig.class, DeliveryDataServiceConfig.class})
+@ActiveProfiles("postgres")
+@TestPropertySource(properties = {"push.batchsize=3"})
+class DuePushRegistrationPlanTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(DuePushRegistrationPlanTest.class);
+
+    private static final int LIMIT = 10_000;
+
+    // getDuePushRegistrations with the heartbeat interval of one hour
+    private static final String DUE_SQL =
+            "select * from t_push_registration"
+                    + " where push_type = 'IOS'"
+                    + " and coalesce(last_push, '-infinity') < now() - interval '1 hour'"
+                    + " order by coalesce(last_push, '-infinity') asc"
+                    + " limit "
+                    + LIMIT;
+
+    // the selection before idx_push_registration_due, for comparison
+    private static final String FORMER_DUE_SQL =
+            "select * from t_push_registration"
+                    + " where push_type = 'IOS' and last_push is null"
+                    + " or last_push < now() - interval '1 hour'"
+                    + " order by last_push asc"
+                    + " limit "
+                    + LIMIT;
+
+    @Autowired private DeliveryDataService deliveryDataService;
+    @Autowired private DataSource dataSource;
+
+    @AfterEach
+    void resetPushRegistrations() throws SQLException {
+        // other tests expect small pks
+        try (Connection connection = dataSource.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute("truncate t_push_registration restart identity");
+        }
+    }
+
+    @Test
+    void testDuePushRegistrationsUseIndex() throws Exception {
+        loadPushRegistrations(200_000);
+
+        String plan = explain(DUE_SQL, false);
+        logger.info("due push registrations plan:\n{}", plan);
+        assertTrue(plan.contains("idx_push_registration_due"), plan);
+        assertFalse(plan.contains("Seq Scan"), plan);
+        assertFalse(plan.contains("Sort"), plan);
+
+        List<PushRegistration> due =
+                deliveryDataService.getDuePushRegistrations(
+                        PushType.IOS, Duration.ofHours(1), LIMIT);
+        assertEquals(LIMIT, due.size());
+        assertTrue(due.stream().allMatch(r -> r.getPushType() == PushType.IOS));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkDuePushRegistrations() throws Exception {
+        loadPushRegistrations(3_000_000);
+
+        logger.info("former query:\n{}", explain(FORMER_DUE_SQL, true));
+        logger.info("query with index:\n{}", explain(DUE_SQL, true));
+        try (Connection connection = dataSource.getConnection()) {
+            // the index is only dropped within this transaction
+            connection.setAutoCommit(false);
+            try (var statement = connection.createStatement()) {
+                statement.execute("drop index idx_push_registration_due");
+            }
+            logger.info("query without index:\n{}", explain(connection, DUE_SQL, true));
+            connection.rollback();
+        }
+    }
+
+    /**
+     * inserts registrations of all push types, a tenth never pushed and the others pushed within
+     * the last two hours, so about half of them are due
+     */
+    private void loadPushRegistrations(int count) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute(
+                    "insert into t_push_registration"
+                            + " (push_token, push_type, register_id, last_push)"
+                            + " select 'push_token_' || i,"
+                            + " (array['IOS', 'AND', 'IOD'])[1 + i % 3],"
+                            + " 'register_id_' || i,"
+                            + " case when i % 10 = 0 then null"
+                            + " else now() - random() * interval '2 hours' end"
+                            + " from generate_series(1, "
+                            + count
+                            + ") i");
+            statement.execute("analyze t_push_registration");
+        }
+    }
+
+    private String explain(String sql, boolean analyze) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return explain(connection, sql, analyze);
+        }
+    }
+
+    private static String explain(Connection connection, String sql, boolean analyze)
+            throws SQLException {
+        try (var statement = connection.createStatement();
+                var rs =
+                        statement.executeQuery(
+                                (analyze ? "explain (analyze, buffers) " : "explain ") + sql)) {
+            List<String> lines = new ArrayList<>();
+            while (rs.next()) {
+                lines.add(rs.getString(1));
+            }
+            return String.join("\n", lines);
+        }
+    }
+}
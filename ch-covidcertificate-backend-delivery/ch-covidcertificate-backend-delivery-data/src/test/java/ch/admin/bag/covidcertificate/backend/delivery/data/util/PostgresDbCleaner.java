@@ -23,7 +23,9 @@ public class PostgresDbCleaner implements BeforeEachCallback {
     public void beforeEach(ExtensionContext extensionContext) throws Exception {
         DataSource dataSource =
                 SpringExtension.getApplicationContext(extensionContext).getBean(DataSource.class);
-        cleanDatabase(dataSource.getConnection());
+        try (Connection connection = dataSource.getConnection()) {
+            cleanDatabase(connection);
+        }
     }
 
     public static void cleanDatabase(Connection connection) throws SQLException {
@@ -1,6 +1,8 @@
 package ch.admin.bag.covidcertificate.backend.delivery.model.app;
 
 import ch.ubique.openapi.docannotations.Documentation;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import javax.validation.constraints.NotNull;
 
 public class CovidCert {
@@ -12,6 +14,14 @@ public class CovidCert {
     @NotNull
     private String encryptedPdf;
 
+    @Documentation(
+            description =
+                    "compression of the pdf before encryption. absent if the pdf is not compressed,"
+                            + " then the decrypted pdf is base64. only set if the app accepted it"
+                            + " on registration")
+    @JsonInclude(Include.NON_NULL)
+    private PdfCompression pdfCompression;
+
     public String getEncryptedHcert() {
         return encryptedHcert;
     }
@@ -27,4 +37,12 @@ public class CovidCert {
     public void setEncryptedPdf(String encryptedPdf) {
         this.encryptedPdf = encryptedPdf;
     }
+
+    public PdfCompression getPdfCompression() {
+        return pdfCompression;
+    }
+
+    public void setPdfCompression(PdfCompression pdfCompression) {
+        this.pdfCompression = pdfCompression;
+    }
 }
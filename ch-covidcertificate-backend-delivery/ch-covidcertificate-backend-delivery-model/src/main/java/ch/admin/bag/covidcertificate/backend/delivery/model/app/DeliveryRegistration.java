@@ -38,6 +38,18 @@ public class DeliveryRegistration {
     @NotNull
     private String signature;
 
+    @Documentation(
+            description =
+                    "optional registerId of the push registration of this device. if set, the device gets a silent push as soon as the covid cert is ready")
+    @Size(max = 255)
+    private String pushRegisterId;
+
+    @Documentation(
+            description =
+                    "optional pdf compression the app can decompress. if set, the pdf is compressed before it is encrypted and the delivered covid cert carries the pdfCompression. DEFLATE",
+            example = "DEFLATE")
+    private PdfCompression acceptedPdfCompression;
+
     public String getCode() {
         return code;
     }
@@ -77,4 +89,20 @@ public class DeliveryRegistration {
     public void setSignature(String signature) {
         this.signature = signature;
     }
+
+    public String getPushRegisterId() {
+        return pushRegisterId;
+    }
+
+    public void setPushRegisterId(String pushRegisterId) {
+        this.pushRegisterId = pushRegisterId;
+    }
+
+    public PdfCompression getAcceptedPdfCompression() {
+        return acceptedPdfCompression;
+    }
+
+    public void setAcceptedPdfCompression(PdfCompression acceptedPdfCompression) {
+        this.acceptedPdfCompression = acceptedPdfCompression;
+    }
 }
@@ -0,0 +1,7 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.app;
+
+/** compression of the pdf before it is encrypted, i.e. the envelope format of the pdf */
+public enum PdfCompression {
+    /** raw deflate (rfc 1951, without zlib header) of the pdf bytes */
+    DEFLATE;
+}
@@ -0,0 +1,39 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.cgs;
+
+import ch.ubique.openapi.docannotations.Documentation;
+import javax.validation.constraints.NotNull;
+
+public class CgsCovidCertResult {
+    @Documentation(description = "transfer code of the covidcert", example = "A7KBZ91XL")
+    @NotNull
+    private String code;
+
+    @Documentation(
+            description = "OK if the covidcert has been stored, CODE_NOT_FOUND if not",
+            example = "OK")
+    @NotNull
+    private CgsCovidCertStatus status;
+
+    public CgsCovidCertResult() {}
+
+    public CgsCovidCertResult(String code, CgsCovidCertStatus status) {
+        this.code = code;
+        this.status = status;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public CgsCovidCertStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(CgsCovidCertStatus status) {
+        this.status = status;
+    }
+}
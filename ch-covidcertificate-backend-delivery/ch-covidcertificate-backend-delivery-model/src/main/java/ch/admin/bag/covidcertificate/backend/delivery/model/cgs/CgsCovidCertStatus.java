@@ -0,0 +1,6 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.cgs;
+
+public enum CgsCovidCertStatus {
+    OK,
+    CODE_NOT_FOUND;
+}
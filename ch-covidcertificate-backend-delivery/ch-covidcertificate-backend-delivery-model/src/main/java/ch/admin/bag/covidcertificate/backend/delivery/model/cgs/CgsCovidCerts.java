@@ -0,0 +1,24 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.cgs;
+
+import ch.ubique.openapi.docannotations.Documentation;
+import java.util.ArrayList;
+import java.util.List;
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+public class CgsCovidCerts {
+    @Documentation(description = "covidcerts to deliver. at most 1000 per request")
+    @NotNull
+    @Size(min = 1, max = 1000)
+    @Valid
+    private List<CgsCovidCert> covidCerts = new ArrayList<>();
+
+    public List<CgsCovidCert> getCovidCerts() {
+        return covidCerts;
+    }
+
+    public void setCovidCerts(List<CgsCovidCert> covidCerts) {
+        this.covidCerts = covidCerts;
+    }
+}
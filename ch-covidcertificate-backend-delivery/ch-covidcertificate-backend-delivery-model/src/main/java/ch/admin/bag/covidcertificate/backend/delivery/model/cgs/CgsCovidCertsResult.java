@@ -0,0 +1,26 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.cgs;
+
+import ch.ubique.openapi.docannotations.Documentation;
+import java.util.ArrayList;
+import java.util.List;
+import javax.validation.constraints.NotNull;
+
+public class CgsCovidCertsResult {
+    @Documentation(description = "one result per covidcert, in request order")
+    @NotNull
+    private List<CgsCovidCertResult> results = new ArrayList<>();
+
+    public CgsCovidCertsResult() {}
+
+    public CgsCovidCertsResult(List<CgsCovidCertResult> results) {
+        this.results = results;
+    }
+
+    public List<CgsCovidCertResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<CgsCovidCertResult> results) {
+        this.results = results;
+    }
+}
@@ -1,13 +1,16 @@
 package ch.admin.bag.covidcertificate.backend.delivery.model.db;
 
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import java.time.Instant;
 
 public class DbCovidCert {
     private Integer pk;
     private Integer fkTransfer;
     private Instant createdAt;
-    private String encryptedHcert;
-    private String encryptedPdf;
+    private byte[] encryptedHcert;
+    private byte[] encryptedPdf;
+    private PdfCompression pdfCompression;
+    private String idempotencyKey;
 
     public Integer getPk() {
         return pk;
@@ -33,19 +36,38 @@ public class DbCovidCert {
         this.createdAt = createdAt;
     }
 
-    public String getEncryptedHcert() {
+    public byte[] getEncryptedHcert() {
         return encryptedHcert;
     }
 
-    public void setEncryptedHcert(String encryptedHcert) {
+    public void setEncryptedHcert(byte[] encryptedHcert) {
         this.encryptedHcert = encryptedHcert;
     }
 
-    public String getEncryptedPdf() {
+    public byte[] getEncryptedPdf() {
         return encryptedPdf;
     }
 
-    public void setEncryptedPdf(String encryptedPdf) {
+    public void setEncryptedPdf(byte[] encryptedPdf) {
         this.encryptedPdf = encryptedPdf;
     }
+
+    public PdfCompression getPdfCompression() {
+        return pdfCompression;
+    }
+
+    public void setPdfCompression(PdfCompression pdfCompression) {
+        this.pdfCompression = pdfCompression;
+    }
+
+    /**
+     * @return key that identifies retries of the same cgs delivery, null for legacy rows
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
 }
@@ -0,0 +1,33 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.db;
+
+import java.time.Instant;
+
+public class DbCovidCertStagingStats {
+    private long pending;
+    private long deadLettered;
+    private Instant oldestPendingReceivedAt; // null if nothing is pending
+
+    public long getPending() {
+        return pending;
+    }
+
+    public void setPending(long pending) {
+        this.pending = pending;
+    }
+
+    public long getDeadLettered() {
+        return deadLettered;
+    }
+
+    public void setDeadLettered(long deadLettered) {
+        this.deadLettered = deadLettered;
+    }
+
+    public Instant getOldestPendingReceivedAt() {
+        return oldestPendingReceivedAt;
+    }
+
+    public void setOldestPendingReceivedAt(Instant oldestPendingReceivedAt) {
+        this.oldestPendingReceivedAt = oldestPendingReceivedAt;
+    }
+}
@@ -0,0 +1,76 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.db;
+
+import java.time.Instant;
+
+/** covid cert received from the cgs, not yet encrypted and delivered */
+public class DbStagedCovidCert {
+    private Integer pk;
+    private Instant receivedAt;
+    private String code;
+    private String hcert;
+    private String pdf;
+    private int attempts;
+    private String idempotencyKey;
+
+    public Integer getPk() {
+        return pk;
+    }
+
+    public void setPk(Integer pk) {
+        this.pk = pk;
+    }
+
+    public Instant getReceivedAt() {
+        return receivedAt;
+    }
+
+    public void setReceivedAt(Instant receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public String getHcert() {
+        return hcert;
+    }
+
+    public void setHcert(String hcert) {
+        this.hcert = hcert;
+    }
+
+    public String getPdf() {
+        return pdf;
+    }
+
+    public void setPdf(String pdf) {
+        this.pdf = pdf;
+    }
+
+    /**
+     * @return number of processing attempts including the current one
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return key that identifies retries of the same cgs delivery, null for legacy rows
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+}
@@ -1,6 +1,7 @@
 package ch.admin.bag.covidcertificate.backend.delivery.model.db;
 
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import java.time.Instant;
 
 public class DbTransfer {
@@ -10,6 +11,8 @@ public class DbTransfer {
     private String publicKey;
     private String publicKeySha256; // base64 encoded
     private Algorithm algorithm;
+    private String pushRegisterId;
+    private PdfCompression acceptedPdfCompression;
 
     public Integer getPk() {
         return pk;
@@ -58,4 +61,20 @@ public class DbTransfer {
     public void setAlgorithm(Algorithm algorithm) {
         this.algorithm = algorithm;
     }
+
+    public String getPushRegisterId() {
+        return pushRegisterId;
+    }
+
+    public void setPushRegisterId(String pushRegisterId) {
+        this.pushRegisterId = pushRegisterId;
+    }
+
+    public PdfCompression getAcceptedPdfCompression() {
+        return acceptedPdfCompression;
+    }
+
+    public void setAcceptedPdfCompression(PdfCompression acceptedPdfCompression) {
+        this.acceptedPdfCompression = acceptedPdfCompression;
+    }
 }
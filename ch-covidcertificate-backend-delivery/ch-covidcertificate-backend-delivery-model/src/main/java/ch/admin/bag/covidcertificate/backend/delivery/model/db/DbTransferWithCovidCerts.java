@@ -0,0 +1,26 @@
+package ch.admin.bag.covidcertificate.backend.delivery.model.db;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DbTransferWithCovidCerts {
+    private DbTransfer transfer;
+    private List<CovidCert> covidCerts = new ArrayList<>();
+
+    public DbTransfer getTransfer() {
+        return transfer;
+    }
+
+    public void setTransfer(DbTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    public List<CovidCert> getCovidCerts() {
+        return covidCerts;
+    }
+
+    public void setCovidCerts(List<CovidCert> covidCerts) {
+        this.covidCerts = covidCerts;
+    }
+}
@@ -0,0 +1,104 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.cbor;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.BinaryCovidCertDelivery;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.List;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+/**
+ * Writes covid cert deliveries as CBOR. Same structure as the json, but the encrypted covid certs
+ * are raw byte strings instead of base64, which saves a quarter of the response size. <br>
+ * <b>Note:</b> Reading is not supported.
+ */
+public class CborMessageConverter extends AbstractHttpMessageConverter<CovidCertDelivery> {
+
+    public static final MediaType CBOR_MEDIA_TYPE = new MediaType("application", "cbor");
+
+    public CborMessageConverter() {
+        super(CBOR_MEDIA_TYPE);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return CovidCertDelivery.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected CovidCertDelivery readInternal(
+            Class<? extends CovidCertDelivery> clazz, HttpInputMessage inputMessage)
+            throws HttpMessageNotReadableException {
+        throw new UnsupportedOperationException("This converter does not support reading");
+    }
+
+    @Override
+    protected void writeInternal(CovidCertDelivery delivery, HttpOutputMessage outputMessage)
+            throws IOException {
+        write(delivery, outputMessage.getBody());
+    }
+
+    /**
+     * writes the delivery as cbor map <code>{"covidCerts": [{"encryptedHcert": bytes,
+     * "encryptedPdf": bytes}, ...]}</code>, plus "pdfCompression" if the pdf is compressed.
+     * binary deliveries are written from the stored bytes
+     */
+    public static void write(CovidCertDelivery delivery, OutputStream out) throws IOException {
+        var cbor = new CborWriter(out);
+        cbor.writeMapHeader(1);
+        cbor.writeText("covidCerts");
+        if (delivery instanceof BinaryCovidCertDelivery) {
+            List<DbCovidCert> covidCerts =
+                    ((BinaryCovidCertDelivery) delivery).getEncryptedCovidCerts();
+            cbor.writeArrayHeader(covidCerts.size());
+            for (DbCovidCert covidCert : covidCerts) {
+                writeCovidCert(
+                        cbor,
+                        covidCert.getEncryptedHcert(),
+                        covidCert.getEncryptedPdf(),
+                        covidCert.getPdfCompression());
+            }
+        } else {
+            List<CovidCert> covidCerts = delivery.getCovidCerts();
+            cbor.writeArrayHeader(covidCerts.size());
+            for (CovidCert covidCert : covidCerts) {
+                writeCovidCert(
+                        cbor,
+                        Base64.getDecoder().decode(covidCert.getEncryptedHcert()),
+                        Base64.getDecoder().decode(covidCert.getEncryptedPdf()),
+                        covidCert.getPdfCompression());
+            }
+        }
+    }
+
+    private static void writeCovidCert(
+            CborWriter cbor,
+            byte[] encryptedHcert,
+            byte[] encryptedPdf,
+            PdfCompression pdfCompression)
+            throws IOException {
+        // like the json, the compression is omitted if the pdf is not compressed
+        cbor.writeMapHeader(pdfCompression != null ? 3 : 2);
+        cbor.writeText("encryptedHcert");
+        cbor.writeBytes(encryptedHcert);
+        cbor.writeText("encryptedPdf");
+        cbor.writeBytes(encryptedPdf);
+        if (pdfCompression != null) {
+            cbor.writeText("pdfCompression");
+            cbor.writeText(pdfCompression.name());
+        }
+    }
+}
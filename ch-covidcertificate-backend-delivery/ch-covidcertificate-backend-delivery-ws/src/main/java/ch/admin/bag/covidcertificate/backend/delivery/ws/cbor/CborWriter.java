@@ -0,0 +1,90 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.cbor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal CBOR (RFC 8949) encoder for the few types of the delivery responses: integers, byte and
+ * text strings, arrays, maps and tags. Lengths are always encoded in the shortest form.
+ */
+public class CborWriter {
+
+    private static final int UNSIGNED_INT = 0;
+    private static final int NEGATIVE_INT = 1;
+    private static final int BYTE_STRING = 2;
+    private static final int TEXT_STRING = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+
+    private final OutputStream out;
+
+    public CborWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void writeInt(long value) throws IOException {
+        if (value >= 0) {
+            writeHeader(UNSIGNED_INT, value);
+        } else {
+            writeHeader(NEGATIVE_INT, -1 - value);
+        }
+    }
+
+    public void writeBytes(byte[] value) throws IOException {
+        writeByteStringHeader(value.length);
+        out.write(value);
+    }
+
+    /** header of a byte string, the caller writes the length bytes after it */
+    public void writeByteStringHeader(long length) throws IOException {
+        writeHeader(BYTE_STRING, length);
+    }
+
+    public void writeText(String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeHeader(TEXT_STRING, utf8.length);
+        out.write(utf8);
+    }
+
+    /** header of an array, the caller writes the size items after it */
+    public void writeArrayHeader(int size) throws IOException {
+        writeHeader(ARRAY, size);
+    }
+
+    /** header of a map, the caller writes the size key value pairs after it */
+    public void writeMapHeader(int size) throws IOException {
+        writeHeader(MAP, size);
+    }
+
+    /** tags the item written after it */
+    public void writeTag(long tag) throws IOException {
+        writeHeader(TAG, tag);
+    }
+
+    private void writeHeader(int majorType, long value) throws IOException {
+        int type = majorType << 5;
+        if (value < 24) {
+            out.write(type | (int) value);
+        } else if (value <= 0xff) {
+            out.write(type | 24);
+            out.write((int) value);
+        } else if (value <= 0xffff) {
+            out.write(type | 25);
+            writeBigEndian(value, 2);
+        } else if (value <= 0xffffffffL) {
+            out.write(type | 26);
+            writeBigEndian(value, 4);
+        } else {
+            out.write(type | 27);
+            writeBigEndian(value, 8);
+        }
+    }
+
+    private void writeBigEndian(long value, int length) throws IOException {
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+}
@@ -2,12 +2,15 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.config;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.PushDispatchMode;
 import java.time.Duration;
 import net.javacrumbs.shedlock.spring.annotation.EnableSchedulerLock;
 import net.javacrumbs.shedlock.spring.annotation.SchedulerLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -33,19 +36,29 @@ public class SchedulingConfig {
     @Value("${push.batchSize:10000}")
     private int pushBatchSize;
 
-
     public SchedulingConfig(
             IosHeartbeatSilentPush iosHeartbeatSilentPush,
-            DeliveryDataService deliveryDataService) {
+            DeliveryDataService deliveryDataService,
+            @Value("${push.dispatchMode:SHEDLOCK}") PushDispatchMode pushDispatchMode) {
         this.iosHeartbeatSilentPush = iosHeartbeatSilentPush;
         this.deliveryDataService = deliveryDataService;
+        // binding the enum fails on an unknown mode, which would otherwise schedule no heartbeat
+        logger.info("Silent push heartbeat dispatch mode {}", pushDispatchMode);
     }
 
+    @Bean
+    @ConditionalOnProperty(
+            name = "push.dispatchMode",
+            havingValue = "SHEDLOCK",
+            matchIfMissing = true)
+    public LockedHeartbeat lockedHeartbeat() {
+        return new LockedHeartbeat(iosHeartbeatSilentPush, pushInterval, pushBatchSize);
+    }
 
-    @Scheduled(fixedRateString = "${push.schedulerInterval:PT10m}")
-    @SchedulerLock(name = "silent_push", lockAtLeastFor = "PT15S")
-    public void iosHeartbeat() {
-        iosHeartbeatSilentPush.sendHeartbeats(pushInterval, pushBatchSize);
+    @Bean
+    @ConditionalOnProperty(name = "push.dispatchMode", havingValue = "CLAIM")
+    public ClaimedHeartbeat claimedHeartbeat() {
+        return new ClaimedHeartbeat(iosHeartbeatSilentPush, pushInterval, pushBatchSize);
     }
 
     // Runs the method every day at 00:00:00am
@@ -62,4 +75,49 @@ public class SchedulingConfig {
             logger.error("Exception removing old transfer codes and covid certs", e);
         }
     }
+
+    /** push.dispatchMode SHEDLOCK: the shedlock holder pushes all due registrations */
+    public static class LockedHeartbeat {
+
+        private final IosHeartbeatSilentPush iosHeartbeatSilentPush;
+        private final Duration pushInterval;
+        private final int pushBatchSize;
+
+        public LockedHeartbeat(
+                IosHeartbeatSilentPush iosHeartbeatSilentPush,
+                Duration pushInterval,
+                int pushBatchSize) {
+            this.iosHeartbeatSilentPush = iosHeartbeatSilentPush;
+            this.pushInterval = pushInterval;
+            this.pushBatchSize = pushBatchSize;
+        }
+
+        @Scheduled(fixedRateString = "${push.schedulerInterval:PT10m}")
+        @SchedulerLock(name = "silent_push", lockAtLeastFor = "PT15S")
+        public void iosHeartbeat() {
+            iosHeartbeatSilentPush.sendHeartbeats(pushInterval, pushBatchSize);
+        }
+    }
+
+    /** push.dispatchMode CLAIM: not locked, every instance claims its own batches */
+    public static class ClaimedHeartbeat {
+
+        private final IosHeartbeatSilentPush iosHeartbeatSilentPush;
+        private final Duration pushInterval;
+        private final int pushBatchSize;
+
+        public ClaimedHeartbeat(
+                IosHeartbeatSilentPush iosHeartbeatSilentPush,
+                Duration pushInterval,
+                int pushBatchSize) {
+            this.iosHeartbeatSilentPush = iosHeartbeatSilentPush;
+            this.pushInterval = pushInterval;
+            this.pushBatchSize = pushBatchSize;
+        }
+
+        @Scheduled(fixedRateString = "${push.schedulerInterval:PT10m}")
+        public void iosHeartbeat() {
+            iosHeartbeatSilentPush.sendClaimedHeartbeats(pushInterval, pushBatchSize);
+        }
+    }
 }
@@ -12,15 +12,31 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.config;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
 import ch.admin.bag.covidcertificate.backend.delivery.data.impl.JdbcDeliveryDataServiceImpl;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.TransferCache;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.cbor.CborMessageConverter;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.AppController;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.CgsController;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.interceptor.HeaderInjector;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.SignaturePayloadValidator;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.Crypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.CryptoExecutor;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.EcCrypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.EphemeralKeyPairPool;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.RsaCrypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature.CoseMessageConverter;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature.JwsMessageConverter;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature.JwsSignatureCache;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.CovidCertNotificationListener;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.CovidCertStagingWorker;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IdempotencyKeyCache;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.SilentPushExecutor;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.TransferCacheInvalidationListener;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.KeyStore;
@@ -28,21 +44,26 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.sql.SQLException;
 import java.time.Duration;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import javax.sql.DataSource;
 import net.javacrumbs.shedlock.core.LockProvider;
 import net.javacrumbs.shedlock.provider.jdbctemplate.JdbcTemplateLockProvider;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -57,6 +78,15 @@ public abstract class WsBaseConfig implements WebMvcConfigurer {
     @Value("${ws.jws.password:}")
     public String p12KeyStorePassword;
 
+    @Value("${ws.jws.alias:}")
+    String jwsAlias;
+
+    @Value("${ws.jws.signatureCache.maximumSize:100}")
+    long jwsSignatureCacheMaximumSize;
+
+    @Value("${ws.jws.signatureCache.expireAfterWrite:PT10M}")
+    Duration jwsSignatureCacheExpireAfterWrite;
+
     @Value(
             "#{${ws.security.headers: {'X-Content-Type-Options':'nosniff', 'X-Frame-Options':'DENY','X-Xss-Protection':'1; mode=block'}}}")
     Map<String, String> additionalHeaders;
@@ -64,13 +94,25 @@ public abstract class WsBaseConfig implements WebMvcConfigurer {
     public abstract Flyway flyway(DataSource dataSource);
 
     public abstract IosHeartbeatSilentPush iosHeartbeatSilentPush(
-            DeliveryDataService pushRegistrationDataService);
+            DeliveryDataService pushRegistrationDataService,
+            SilentPushExecutor silentPushExecutor);
 
     @Override
     public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
         try {
             converters.add(
-                    new JwsMessageConverter(jwsKeyStore(), p12KeyStorePassword.toCharArray()));
+                    new JwsMessageConverter(
+                            jwsKeyStore(),
+                            p12KeyStorePassword.toCharArray(),
+                            jwsAlias,
+                            jwsSignatureCache()));
+            converters.add(new CborMessageConverter());
+            converters.add(
+                    new CoseMessageConverter(
+                            jwsKeyStore(),
+                            p12KeyStorePassword.toCharArray(),
+                            jwsAlias,
+                            coseSignatureCache()));
         } catch (KeyStoreException
                 | NoSuchAlgorithmException
                 | CertificateException
@@ -89,6 +131,32 @@ public abstract class WsBaseConfig implements WebMvcConfigurer {
         return keyStore;
     }
 
+    @Bean
+    public JwsSignatureCache jwsSignatureCache() {
+        return new JwsSignatureCache(
+                jwsSignatureCacheMaximumSize, jwsSignatureCacheExpireAfterWrite);
+    }
+
+    @Bean
+    public MeterBinder jwsSignatureCacheMetrics(JwsSignatureCache jwsSignatureCache) {
+        return registry ->
+                CaffeineCacheMetrics.monitor(
+                        registry, jwsSignatureCache.getNativeCache(), "jwsSignature");
+    }
+
+    @Bean
+    public JwsSignatureCache coseSignatureCache() {
+        return new JwsSignatureCache(
+                jwsSignatureCacheMaximumSize, jwsSignatureCacheExpireAfterWrite);
+    }
+
+    @Bean
+    public MeterBinder coseSignatureCacheMetrics(JwsSignatureCache coseSignatureCache) {
+        return registry ->
+                CaffeineCacheMetrics.monitor(
+                        registry, coseSignatureCache.getNativeCache(), "coseSignature");
+    }
+
     @Bean
     public HeaderInjector securityHeaderInjector() {
         return new HeaderInjector(additionalHeaders);
@@ -116,20 +184,118 @@ public abstract class WsBaseConfig implements WebMvcConfigurer {
         return new SignaturePayloadValidator(halfWindow);
     }
 
+    @Bean
+    public TransferCache transferCache(
+            @Value("${db.transferCache.maximumSize:100000}") long maximumSize,
+            @Value("${db.transferCache.expireAfterWrite:PT1M}") Duration expireAfterWrite) {
+        return new TransferCache(maximumSize, expireAfterWrite);
+    }
+
+    @Bean
+    public MeterBinder transferCacheMetrics(TransferCache transferCache) {
+        return registry ->
+                CaffeineCacheMetrics.monitor(registry, transferCache.getNativeCache(), "transfer");
+    }
+
+    @Bean
+    public TransferCacheInvalidationListener transferCacheInvalidationListener(
+            DataSource dataSource, TransferCache transferCache) throws SQLException {
+        var listener =
+                new TransferCacheInvalidationListener(
+                        listenerDataSource(dataSource), transferCache);
+        listener.start();
+        return listener;
+    }
+
+    /**
+     * listeners hold their connection for as long as they run. it is opened outside the pool with
+     * the settings of the pool, so it neither takes a connection away from requests nor is it
+     * retired by the pool
+     */
+    protected DataSource listenerDataSource(DataSource dataSource) throws SQLException {
+        if (!dataSource.isWrapperFor(HikariDataSource.class)) {
+            logger.warn("unknown data source, listeners use pooled connections");
+            return dataSource;
+        }
+        HikariDataSource pool = dataSource.unwrap(HikariDataSource.class);
+        Properties props = pool.getDataSourceProperties();
+        return new DriverManagerDataSource(
+                pool.getJdbcUrl() != null ? pool.getJdbcUrl() : props.getProperty("url"),
+                pool.getUsername() != null ? pool.getUsername() : props.getProperty("user"),
+                pool.getPassword() != null ? pool.getPassword() : props.getProperty("password"));
+    }
+
     @Bean
     public DeliveryDataService deliveryDataService(
-            DataSource dataSource, @Value("${push.batchsize:100000}") int pushBatchSize) {
-        return new JdbcDeliveryDataServiceImpl(dataSource, pushBatchSize);
+            DataSource dataSource,
+            @Value("${push.batchsize:100000}") int pushBatchSize,
+            TransferCache transferCache) {
+        return new JdbcDeliveryDataServiceImpl(dataSource, pushBatchSize, transferCache);
+    }
+
+    @Bean
+    public EphemeralKeyPairPool ephemeralKeyPairPool(
+            @Value("${ws.crypto.ephemeralKeyPool.lowWatermark:100}") int lowWatermark,
+            @Value("${ws.crypto.ephemeralKeyPool.highWatermark:1000}") int highWatermark) {
+        return new EphemeralKeyPairPool(lowWatermark, highWatermark);
+    }
+
+    @Bean
+    public MeterBinder ephemeralKeyPairPoolMetrics(EphemeralKeyPairPool ephemeralKeyPairPool) {
+        return registry -> {
+            Gauge.builder(
+                            "crypto.ephemeral.keypool.size",
+                            ephemeralKeyPairPool,
+                            EphemeralKeyPairPool::size)
+                    .register(registry);
+            FunctionCounter.builder(
+                            "crypto.ephemeral.keypool.fallback",
+                            ephemeralKeyPairPool,
+                            EphemeralKeyPairPool::getFallbackCount)
+                    .register(registry);
+        };
     }
 
     @Bean
-    public Crypto ecCrypto() {
-        return new EcCrypto();
+    public Crypto ecCrypto(
+            @Value("${ws.crypto.publicKeyCache.maximumSize:100000}") long maximumSize,
+            @Value("${ws.crypto.publicKeyCache.expireAfterAccess:PT1H}")
+                    Duration expireAfterAccess,
+            EphemeralKeyPairPool ephemeralKeyPairPool) {
+        return new EcCrypto(maximumSize, expireAfterAccess, ephemeralKeyPairPool);
     }
 
     @Bean
-    public Crypto rsaCrypto() {
-        return new RsaCrypto();
+    public Crypto rsaCrypto(
+            @Value("${ws.crypto.publicKeyCache.maximumSize:100000}") long maximumSize,
+            @Value("${ws.crypto.publicKeyCache.expireAfterAccess:PT1H}")
+                    Duration expireAfterAccess) {
+        return new RsaCrypto(maximumSize, expireAfterAccess);
+    }
+
+    /** only with long polling enabled, the long poll endpoint answers right away otherwise */
+    @Bean
+    @ConditionalOnProperty(name = "ws.longpoll.enabled", havingValue = "true")
+    public CovidCertNotificationListener covidCertNotificationListener(
+            DataSource dataSource,
+            @Value("${ws.longpoll.dispatchThreads:4}") int dispatchThreads)
+            throws SQLException {
+        var listener =
+                new CovidCertNotificationListener(listenerDataSource(dataSource), dispatchThreads);
+        listener.start();
+        return listener;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "ws.longpoll.enabled", havingValue = "true")
+    public MeterBinder covidCertNotificationListenerMetrics(
+            CovidCertNotificationListener covidCertNotificationListener) {
+        return registry ->
+                Gauge.builder(
+                                "delivery.longpoll.waiting",
+                                covidCertNotificationListener,
+                                CovidCertNotificationListener::getWaiterCount)
+                        .register(registry);
     }
 
     @Bean
@@ -137,14 +303,177 @@ public abstract class WsBaseConfig implements WebMvcConfigurer {
             DeliveryDataService deliveryDataService,
             SignaturePayloadValidator signaturePayloadValidator,
             Crypto ecCrypto,
-            Crypto rsaCrypto) {
+            Crypto rsaCrypto,
+            ObjectProvider<CovidCertNotificationListener> covidCertNotificationListener,
+            @Value("${ws.longpoll.timeout:PT30S}") Duration longPollTimeout,
+            @Value("${ws.delivery.binary.enabled:false}") boolean binaryDelivery) {
         return new AppController(
-                deliveryDataService, signaturePayloadValidator, ecCrypto, rsaCrypto);
+                deliveryDataService,
+                signaturePayloadValidator,
+                ecCrypto,
+                rsaCrypto,
+                covidCertNotificationListener.getIfAvailable(),
+                longPollTimeout,
+                binaryDelivery);
+    }
+
+    @Bean
+    public CryptoExecutor cryptoExecutor(
+            @Value("${ws.crypto.executor.threads:0}") int threads,
+            @Value("${ws.crypto.executor.queueCapacity:1000}") int queueCapacity) {
+        return new CryptoExecutor(threads, queueCapacity);
+    }
+
+    @Bean
+    public MeterBinder cryptoExecutorMetrics(CryptoExecutor cryptoExecutor) {
+        return registry -> {
+            Gauge.builder("crypto.executor.queued", cryptoExecutor, CryptoExecutor::getQueueSize)
+                    .register(registry);
+            Gauge.builder("crypto.executor.active", cryptoExecutor, CryptoExecutor::getActiveCount)
+                    .register(registry);
+            FunctionCounter.builder(
+                            "crypto.executor.rejected",
+                            cryptoExecutor,
+                            CryptoExecutor::getRejectedCount)
+                    .register(registry);
+            FunctionCounter.builder(
+                            "crypto.executor.completed",
+                            cryptoExecutor,
+                            CryptoExecutor::getCompletedCount)
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public SilentPushExecutor silentPushExecutor(
+            @Value("${push.silentPush.executor.threads:4}") int threads,
+            @Value("${push.silentPush.executor.queueCapacity:1000}") int queueCapacity) {
+        return new SilentPushExecutor(threads, queueCapacity);
+    }
+
+    @Bean
+    public MeterBinder silentPushExecutorMetrics(SilentPushExecutor silentPushExecutor) {
+        return registry -> {
+            Gauge.builder(
+                            "silent.push.executor.queued",
+                            silentPushExecutor,
+                            SilentPushExecutor::getQueueSize)
+                    .register(registry);
+            Gauge.builder(
+                            "silent.push.executor.active",
+                            silentPushExecutor,
+                            SilentPushExecutor::getActiveCount)
+                    .register(registry);
+            FunctionCounter.builder(
+                            "silent.push.executor.dropped",
+                            silentPushExecutor,
+                            SilentPushExecutor::getDroppedCount)
+                    .register(registry);
+            FunctionCounter.builder(
+                            "silent.push.executor.completed",
+                            silentPushExecutor,
+                            SilentPushExecutor::getCompletedCount)
+                    .register(registry);
+        };
     }
 
     @Bean
     public CgsController cgsController(
-            DeliveryDataService deliveryDataService, Crypto ecCrypto, Crypto rsaCrypto) {
-        return new CgsController(deliveryDataService, ecCrypto, rsaCrypto);
+            DeliveryDataService deliveryDataService,
+            Crypto ecCrypto,
+            Crypto rsaCrypto,
+            IosHeartbeatSilentPush iosHeartbeatSilentPush,
+            CryptoExecutor cryptoExecutor,
+            IdempotencyKeyCache idempotencyKeyCache,
+            @Value("${ws.cgs.staging.enabled:false}") boolean stageCovidCerts) {
+        return new CgsController(
+                deliveryDataService,
+                ecCrypto,
+                rsaCrypto,
+                iosHeartbeatSilentPush,
+                cryptoExecutor,
+                idempotencyKeyCache,
+                stageCovidCerts);
+    }
+
+    @Bean
+    public IdempotencyKeyCache idempotencyKeyCache(
+            @Value("${ws.cgs.idempotencyKeyCache.maximumSize:100000}") long maximumSize,
+            @Value("${ws.cgs.idempotencyKeyCache.expireAfterWrite:PT10M}")
+                    Duration expireAfterWrite) {
+        return new IdempotencyKeyCache(maximumSize, expireAfterWrite);
+    }
+
+    @Bean
+    public MeterBinder idempotencyKeyCacheMetrics(IdempotencyKeyCache idempotencyKeyCache) {
+        return registry ->
+                CaffeineCacheMetrics.monitor(
+                        registry, idempotencyKeyCache.getNativeCache(), "idempotencyKey");
+    }
+
+    /**
+     * only with staging enabled. before disabling it, wait until delivery.cgs.staging.pending is 0,
+     * covid certs still staged are not delivered otherwise
+     */
+    @Bean
+    @ConditionalOnProperty(name = "ws.cgs.staging.enabled", havingValue = "true")
+    public CovidCertStagingWorker covidCertStagingWorker(
+            DeliveryDataService deliveryDataService,
+            Crypto ecCrypto,
+            Crypto rsaCrypto,
+            IosHeartbeatSilentPush iosHeartbeatSilentPush,
+            @Value("${ws.cgs.staging.threads:2}") int threads,
+            @Value("${ws.cgs.staging.pollInterval:PT1S}") Duration pollInterval,
+            @Value("${ws.cgs.staging.lease:PT5M}") Duration lease,
+            @Value("${ws.cgs.staging.batchSize:10}") int batchSize,
+            @Value("${ws.cgs.staging.maxAttempts:10}") int maxAttempts,
+            @Value("${ws.cgs.staging.retryBackoff:PT10S}") Duration retryBackoff) {
+        var worker =
+                new CovidCertStagingWorker(
+                        deliveryDataService,
+                        ecCrypto,
+                        rsaCrypto,
+                        iosHeartbeatSilentPush,
+                        threads,
+                        pollInterval,
+                        lease,
+                        batchSize,
+                        maxAttempts,
+                        retryBackoff);
+        worker.start();
+        return worker;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "ws.cgs.staging.enabled", havingValue = "true")
+    public MeterBinder covidCertStagingMetrics(CovidCertStagingWorker covidCertStagingWorker) {
+        return registry -> {
+            Gauge.builder(
+                            "delivery.cgs.staging.pending",
+                            covidCertStagingWorker,
+                            CovidCertStagingWorker::getPendingCount)
+                    .register(registry);
+            Gauge.builder(
+                            "delivery.cgs.staging.deadLettered",
+                            covidCertStagingWorker,
+                            CovidCertStagingWorker::getDeadLetteredCount)
+                    .register(registry);
+            Gauge.builder(
+                            "delivery.cgs.staging.lag",
+                            covidCertStagingWorker,
+                            CovidCertStagingWorker::getLagSeconds)
+                    .baseUnit("seconds")
+                    .register(registry);
+            FunctionCounter.builder(
+                            "delivery.cgs.staging.processed",
+                            covidCertStagingWorker,
+                            CovidCertStagingWorker::getProcessedCount)
+                    .register(registry);
+            FunctionCounter.builder(
+                            "delivery.cgs.staging.retried",
+                            covidCertStagingWorker,
+                            CovidCertStagingWorker::getRetriedCount)
+                    .register(registry);
+        };
     }
 }
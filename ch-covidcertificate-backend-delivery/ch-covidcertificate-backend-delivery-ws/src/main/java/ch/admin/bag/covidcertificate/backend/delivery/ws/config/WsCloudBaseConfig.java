@@ -1,9 +1,17 @@
 package ch.admin.bag.covidcertificate.backend.delivery.ws.config;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.ApnsPushSender;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.FcmAccessTokenSupplier;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.FcmPushSender;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPushImpl;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.PushSender;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.SilentPushExecutor;
+import com.eatthepath.pushy.apns.ApnsClientBuilder;
 import java.util.Base64;
+import java.util.EnumMap;
 import java.util.Map;
 import javax.sql.DataSource;
 import org.flywaydb.core.Flyway;
@@ -26,6 +34,21 @@ public abstract class WsCloudBaseConfig extends WsBaseConfig {
     @Value("${push.ios.topic}")
     private String iosPushTopic;
 
+    @Value("${push.ios.maxInFlight:1000}")
+    private int iosPushMaxInFlight;
+
+    @Value("${push.android.fcm.url:https://fcm.googleapis.com}")
+    private String androidFcmUrl;
+
+    @Value("${push.android.fcm.projectid:}")
+    private String androidFcmProjectId;
+
+    @Value("${push.android.fcm.serviceaccount:}") // base64 encoded service account json
+    private String androidFcmServiceAccount;
+
+    @Value("${push.android.maxInFlight:1000}")
+    private int androidPushMaxInFlight;
+
 
     @Bean
     @Override
@@ -41,13 +64,43 @@ public abstract class WsCloudBaseConfig extends WsBaseConfig {
 
     @Bean
     public IosHeartbeatSilentPush iosHeartbeatSilentPush(
-            DeliveryDataService pushRegistrationDataService) {
+            DeliveryDataService pushRegistrationDataService,
+            SilentPushExecutor silentPushExecutor) {
         byte[] pushSigningKey = Base64.getDecoder().decode(iosPushSigningKey);
+        Map<PushType, PushSender> pushSenders = new EnumMap<>(PushType.class);
+        pushSenders.put(
+                PushType.IOS,
+                new ApnsPushSender(
+                        ApnsPushSender.createApnsClient(
+                                ApnsClientBuilder.PRODUCTION_APNS_HOST,
+                                pushSigningKey,
+                                iosPushTeamId,
+                                iosPushKeyId),
+                        iosPushTopic,
+                        iosPushMaxInFlight));
+        pushSenders.put(
+                PushType.IOD,
+                new ApnsPushSender(
+                        ApnsPushSender.createApnsClient(
+                                ApnsClientBuilder.DEVELOPMENT_APNS_HOST,
+                                pushSigningKey,
+                                iosPushTeamId,
+                                iosPushKeyId),
+                        iosPushTopic,
+                        iosPushMaxInFlight));
+        if (androidFcmProjectId.isBlank()) {
+            logger.warn("No fcm project configured, android registrations are not pushed");
+        } else {
+            pushSenders.put(
+                    PushType.AND,
+                    new FcmPushSender(
+                            androidFcmUrl,
+                            androidFcmProjectId,
+                            new FcmAccessTokenSupplier(
+                                    Base64.getDecoder().decode(androidFcmServiceAccount)),
+                            androidPushMaxInFlight));
+        }
         return new IosHeartbeatSilentPushImpl(
-                pushRegistrationDataService,
-                pushSigningKey,
-                iosPushTeamId,
-                iosPushKeyId,
-                iosPushTopic);
+                pushRegistrationDataService, pushSenders, silentPushExecutor);
     }
 }
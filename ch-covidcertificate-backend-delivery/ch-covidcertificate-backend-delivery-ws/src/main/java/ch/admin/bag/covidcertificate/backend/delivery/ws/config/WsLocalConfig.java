@@ -3,6 +3,7 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.config;
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.MockIosHeartBeatSilentPush;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.SilentPushExecutor;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import java.util.Properties;
@@ -74,7 +75,8 @@ public class WsLocalConfig extends WsBaseConfig {
 
     @Bean
     public IosHeartbeatSilentPush iosHeartbeatSilentPush(
-            DeliveryDataService pushRegistrationDataService) {
+            DeliveryDataService pushRegistrationDataService,
+            SilentPushExecutor silentPushExecutor) {
         return new MockIosHeartBeatSilentPush();
     }
 }
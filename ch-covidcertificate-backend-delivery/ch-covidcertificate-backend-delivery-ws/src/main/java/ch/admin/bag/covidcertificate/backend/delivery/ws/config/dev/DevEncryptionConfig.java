@@ -82,14 +82,16 @@ public class DevEncryptionConfig {
         DbCovidCert dbCovidCert = new DbCovidCert();
         dbCovidCert.setFkTransfer(transfer.getPk());
         String publicKey = transfer.getPublicKey();
+        String publicKeySha256 = transfer.getPublicKeySha256();
         Algorithm algorithm = transfer.getAlgorithm();
-        dbCovidCert.setEncryptedHcert(encrypt(TEST_HCERT, publicKey, algorithm));
+        dbCovidCert.setEncryptedHcert(encrypt(TEST_HCERT, publicKey, publicKeySha256, algorithm));
         dbCovidCert.setEncryptedPdf(
-                encrypt(encodeFileToBase64(PATH_TO_TEST_PDF), publicKey, algorithm));
+                encrypt(encodeFileToBase64(PATH_TO_TEST_PDF), publicKey, publicKeySha256, algorithm));
         return dbCovidCert;
     }
 
-    private String encrypt(String toEncrypt, String publicKey, Algorithm algorithm)
+    private byte[] encrypt(
+            String toEncrypt, String publicKey, String publicKeySha256, Algorithm algorithm)
             throws InvalidPublicKeyException, InvalidAlgorithmParameterException,
                     NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException,
                     BadPaddingException, InvalidKeySpecException, InvalidParameterSpecException,
@@ -106,7 +108,7 @@ public class DevEncryptionConfig {
                 logger.error("unexpected algorithm: {}", algorithm);
                 throw new InvalidPublicKeyException();
         }
-        return crypto.encrypt(toEncrypt, publicKey);
+        return crypto.encryptToBytes(toEncrypt, publicKey, publicKeySha256);
     }
 
     private String encodeFileToBase64(String path) throws IOException {
@@ -20,6 +20,7 @@ import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDeliver
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.DeliveryRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.RequestDeliveryPayload;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.Action;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.SignaturePayloadValidator;
@@ -29,9 +30,11 @@ import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.Inva
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidSignatureException;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidSignaturePayloadException;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidTimestampException;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.CovidCertNotificationListener;
 import ch.admin.bag.covidcertificate.backend.delivery.data.impl.HashUtil;
 import ch.ubique.openapi.docannotations.Documentation;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.List;
 import javax.validation.Valid;
 import org.slf4j.Logger;
@@ -47,6 +50,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
 
 @Controller
 @RequestMapping("/app/delivery/v1")
@@ -58,16 +62,31 @@ public class AppController {
     protected final Crypto ecCrypto;
     protected final Crypto rsaCrypto;
     private final SignaturePayloadValidator signaturePayloadValidator;
+    private final CovidCertNotificationListener covidCertNotificationListener;
+    private final Duration longPollTimeout;
+    private final boolean binaryDelivery;
 
+    /**
+     * @param covidCertNotificationListener null if long polling is disabled, the long poll
+     *     endpoint then answers right away
+     * @param binaryDelivery if true, covid certs are loaded as stored bytes and base64 encoded
+     *     while the response is written instead of being converted to base64 strings first
+     */
     public AppController(
             DeliveryDataService deliveryDataService,
             SignaturePayloadValidator signaturePayloadValidator,
             Crypto ecCrypto,
-            Crypto rsaCrypto) {
+            Crypto rsaCrypto,
+            CovidCertNotificationListener covidCertNotificationListener,
+            Duration longPollTimeout,
+            boolean binaryDelivery) {
         this.deliveryDataService = deliveryDataService;
         this.signaturePayloadValidator = signaturePayloadValidator;
         this.ecCrypto = ecCrypto;
         this.rsaCrypto = rsaCrypto;
+        this.covidCertNotificationListener = covidCertNotificationListener;
+        this.longPollTimeout = longPollTimeout;
+        this.binaryDelivery = binaryDelivery;
     }
 
     @Documentation(
@@ -98,8 +117,10 @@ public class AppController {
                     PublicKeyAlreadyExistsException {
         String code = registration.getCode();
         logger.info("registration for transfer code {} requested", code);
+        String publicKeySha256 = HashUtil.getSha256Hash(registration.getPublicKey());
         validateSignature(
                 registration.getPublicKey(),
+                publicKeySha256,
                 registration.getAlgorithm(),
                 registration.getSignaturePayload(),
                 registration.getSignature());
@@ -109,12 +130,15 @@ public class AppController {
         logger.info(
                 "registration for transfer code {} successful. publicKey sha256 hash: {}",
                 code,
-                HashUtil.getSha256Hash(registration.getPublicKey()));
+                publicKeySha256);
         return ResponseEntity.ok().build();
     }
 
     @Documentation(
-            description = "covidcert delivery endpoint",
+            description =
+                    "covidcert delivery endpoint. with accept application/cbor or application/cose"
+                            + " (COSE_Sign1) the delivery is cbor and the encrypted covidcerts are"
+                            + " byte strings instead of base64",
             responses = {
                 "200 => list of covidcerts (empty list if not ready or already delivered)",
                 "403 => invalid signature",
@@ -128,15 +152,115 @@ public class AppController {
                     InvalidSignaturePayloadException, InvalidPublicKeyException,
                     InvalidTimestampException {
         String code = payload.getCode();
-        validateSignature(code, payload.getSignaturePayload(), payload.getSignature());
+        // the covid certs are only loaded once the signature is valid
+        DbTransfer transfer = deliveryDataService.findTransfer(code);
+        validateSignature(transfer, payload.getSignaturePayload(), payload.getSignature());
         signaturePayloadValidator.validate(payload.getSignaturePayload(), Action.GET, code);
-        List<CovidCert> covidCerts = deliveryDataService.findCovidCerts(code);
+        if (binaryDelivery) {
+            BinaryCovidCertDelivery delivery = findBinaryDelivery(transfer);
+            if (delivery == null) {
+                return ResponseEntity.ok(new CovidCertDelivery(List.of()));
+            }
+            logger.info(
+                    "delivering {} covid certs for transfer code {}", delivery.getCount(), code);
+            return ResponseEntity.ok(delivery);
+        }
+        List<CovidCert> covidCerts = deliveryDataService.findCovidCerts(transfer.getPk());
         if (!covidCerts.isEmpty()) {
             logger.info("delivering {} covid certs for transfer code {}", covidCerts.size(), code);
         }
         return ResponseEntity.ok(new CovidCertDelivery(covidCerts));
     }
 
+    @Documentation(
+            description =
+                    "long poll covidcert delivery endpoint. waits until the covidcerts are ready or"
+                            + " the long poll timeout has passed. answers right away if long"
+                            + " polling is disabled",
+            responses = {
+                "200 => list of covidcerts (empty list if not ready within the timeout or already"
+                        + " delivered)",
+                "403 => invalid signature",
+                "404 => code not found"
+            })
+    @CrossOrigin(origins = {"https://editor.swagger.io"})
+    @PostMapping(value = "/covidcert/longpoll")
+    public DeferredResult<ResponseEntity<CovidCertDelivery>> getCovidCertDeliveryLongPoll(
+            @Valid @RequestBody RequestDeliveryPayload payload)
+            throws CodeNotFoundException, InvalidSignatureException, InvalidActionException,
+                    InvalidSignaturePayloadException, InvalidPublicKeyException,
+                    InvalidTimestampException {
+        String code = payload.getCode();
+        DbTransfer transfer = deliveryDataService.findTransfer(code);
+        validateSignature(transfer, payload.getSignaturePayload(), payload.getSignature());
+        signaturePayloadValidator.validate(payload.getSignaturePayload(), Action.GET, code);
+
+        DeferredResult<ResponseEntity<CovidCertDelivery>> result =
+                new DeferredResult<>(
+                        longPollTimeout.toMillis(),
+                        ResponseEntity.ok(new CovidCertDelivery(List.of())));
+        if (covidCertNotificationListener == null) {
+            completeIfReady(code, result);
+            result.setResult(ResponseEntity.ok(new CovidCertDelivery(List.of())));
+            return result;
+        }
+        // register before the first lookup, a covid cert inserted in between wakes us up
+        Runnable unregister =
+                covidCertNotificationListener.register(
+                        transfer.getPk(), () -> completeIfReady(code, result));
+        result.onCompletion(unregister);
+        completeIfReady(code, result);
+        return result;
+    }
+
+    private void completeIfReady(
+            String code, DeferredResult<ResponseEntity<CovidCertDelivery>> result) {
+        if (result.isSetOrExpired()) {
+            return;
+        }
+        try {
+            if (binaryDelivery) {
+                BinaryCovidCertDelivery delivery =
+                        findBinaryDelivery(deliveryDataService.findTransfer(code));
+                if (delivery != null && result.setResult(ResponseEntity.ok(delivery))) {
+                    logger.info(
+                            "delivering {} covid certs for transfer code {}",
+                            delivery.getCount(),
+                            code);
+                }
+                return;
+            }
+            List<CovidCert> covidCerts =
+                    deliveryDataService.findTransferWithCovidCerts(code).getCovidCerts();
+            if (!covidCerts.isEmpty()
+                    && result.setResult(ResponseEntity.ok(new CovidCertDelivery(covidCerts)))) {
+                logger.info(
+                        "delivering {} covid certs for transfer code {}", covidCerts.size(), code);
+            }
+        } catch (CodeNotFoundException e) {
+            // transfer completed in the meantime
+            result.setErrorResult(e);
+        } catch (RuntimeException e) {
+            logger.error("could not look up covid certs for transfer code {}", code, e);
+            result.setErrorResult(e);
+        }
+    }
+
+    /**
+     * the covid certs are read with one query before the response is written. empty deliveries
+     * are delivered as before, so their jws stays cacheable
+     *
+     * @return the delivery or null if there are no covid certs yet
+     */
+    private BinaryCovidCertDelivery findBinaryDelivery(DbTransfer transfer) {
+        List<DbCovidCert> covidCerts =
+                deliveryDataService.findEncryptedCovidCerts(transfer.getPk());
+        if (covidCerts.isEmpty()) {
+            return null;
+        }
+        return new BinaryCovidCertDelivery(covidCerts);
+    }
+
     @Documentation(
             description = "delete covid cert. to be used after successful delivery",
             responses = {
@@ -152,7 +276,10 @@ public class AppController {
                     InvalidActionException, InvalidSignaturePayloadException,
                     InvalidTimestampException {
         String code = payload.getCode();
-        validateSignature(code, payload.getSignaturePayload(), payload.getSignature());
+        validateSignature(
+                deliveryDataService.findTransfer(code),
+                payload.getSignaturePayload(),
+                payload.getSignature());
         signaturePayloadValidator.validate(payload.getSignaturePayload(), Action.DELETE, code);
         deliveryDataService.closeTransfer(code);
         logger.info("transfer complete. removed transfer code {}", code);
@@ -160,7 +287,11 @@ public class AppController {
     }
 
     private void validateSignature(
-            String publicKey, Algorithm algorithm, String signaturePayload, String signature)
+            String publicKey,
+            String publicKeySha256,
+            Algorithm algorithm,
+            String signaturePayload,
+            String signature)
             throws InvalidPublicKeyException, InvalidSignatureException {
         Crypto crypto;
         switch (algorithm) {
@@ -174,14 +305,18 @@ public class AppController {
                 logger.error("unexpected algorithm: {}", algorithm);
                 throw new InvalidPublicKeyException();
         }
-        crypto.validateSignature(signaturePayload, signature, publicKey);
+        crypto.validateSignature(signaturePayload, signature, publicKey, publicKeySha256);
     }
 
-    private void validateSignature(String code, String signaturePayload, String signature)
-            throws CodeNotFoundException, InvalidPublicKeyException, InvalidSignatureException {
-        DbTransfer transfer = deliveryDataService.findTransfer(code);
+    private void validateSignature(
+            DbTransfer transfer, String signaturePayload, String signature)
+            throws InvalidPublicKeyException, InvalidSignatureException {
         validateSignature(
-                transfer.getPublicKey(), transfer.getAlgorithm(), signaturePayload, signature);
+                transfer.getPublicKey(),
+                transfer.getPublicKeySha256(),
+                transfer.getAlgorithm(),
+                signaturePayload,
+                signature);
     }
 
     @Documentation(
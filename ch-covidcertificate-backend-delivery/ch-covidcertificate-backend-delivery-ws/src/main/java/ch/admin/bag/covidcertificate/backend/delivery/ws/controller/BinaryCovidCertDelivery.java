@@ -0,0 +1,61 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.controller;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Covid cert delivery that holds the encrypted covid certs as stored bytes and base64 encodes them
+ * while it is serialized. This is not streaming: the whole payload is read with one query and held
+ * in memory before the response is written, so no connection is held while writing to slow
+ * clients. It only saves the base64 strings of the covid certs. Serializes to the same json as
+ * {@link CovidCertDelivery}.
+ */
+public class BinaryCovidCertDelivery extends CovidCertDelivery implements JsonSerializable {
+
+    private final List<DbCovidCert> encryptedCovidCerts;
+
+    BinaryCovidCertDelivery(List<DbCovidCert> encryptedCovidCerts) {
+        this.encryptedCovidCerts = encryptedCovidCerts;
+    }
+
+    int getCount() {
+        return encryptedCovidCerts.size();
+    }
+
+    public List<DbCovidCert> getEncryptedCovidCerts() {
+        return encryptedCovidCerts;
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeStartObject();
+        gen.writeArrayFieldStart("covidCerts");
+        for (DbCovidCert covidCert : encryptedCovidCerts) {
+            // same base64 as the string delivery
+            gen.writeStartObject();
+            gen.writeFieldName("encryptedHcert");
+            gen.writeBinary(covidCert.getEncryptedHcert());
+            gen.writeFieldName("encryptedPdf");
+            gen.writeBinary(covidCert.getEncryptedPdf());
+            if (covidCert.getPdfCompression() != null) {
+                gen.writeStringField("pdfCompression", covidCert.getPdfCompression().name());
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(
+            JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+            throws IOException {
+        serialize(gen, serializers);
+    }
+}
@@ -12,25 +12,42 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.controller;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
-import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
 import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCertResult;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCertStatus;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCerts;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCertsResult;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.model.util.CodeHelper;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.Crypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.CryptoExecutor;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IdempotencyKeyCache;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
 import ch.ubique.openapi.docannotations.Documentation;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.CrossOrigin;
@@ -38,9 +55,11 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.server.ResponseStatusException;
 
 /** Controller for the Certificate Generation Service */
 @Controller
@@ -49,15 +68,39 @@ public class CgsController {
 
     private static final Logger logger = LoggerFactory.getLogger(CgsController.class);
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int CODE_LENGTH = 9;
+    private static final int MAX_BUFFER_SIZE_HINT = 16 * 1024 * 1024;
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
     private final DeliveryDataService deliveryDataService;
     private final Crypto ecCrypto;
     private final Crypto rsaCrypto;
+    private final IosHeartbeatSilentPush silentPush;
+    private final CryptoExecutor cryptoExecutor;
+    private final IdempotencyKeyCache idempotencyKeyCache;
+    private final boolean stageCovidCerts;
 
+    /**
+     * @param stageCovidCerts if true, covid certs are only staged and accepted. they are encrypted
+     *     and inserted asynchronously by the {@link
+     *     ch.admin.bag.covidcertificate.backend.delivery.ws.service.CovidCertStagingWorker}
+     */
     public CgsController(
-            DeliveryDataService deliveryDataService, Crypto ecCrypto, Crypto rsaCrypto) {
+            DeliveryDataService deliveryDataService,
+            Crypto ecCrypto,
+            Crypto rsaCrypto,
+            IosHeartbeatSilentPush silentPush,
+            CryptoExecutor cryptoExecutor,
+            IdempotencyKeyCache idempotencyKeyCache,
+            boolean stageCovidCerts) {
         this.deliveryDataService = deliveryDataService;
         this.ecCrypto = ecCrypto;
         this.rsaCrypto = rsaCrypto;
+        this.silentPush = silentPush;
+        this.cryptoExecutor = cryptoExecutor;
+        this.idempotencyKeyCache = idempotencyKeyCache;
+        this.stageCovidCerts = stageCovidCerts;
     }
 
     @Documentation(
@@ -70,59 +113,370 @@ public class CgsController {
     }
 
     @Documentation(
-            description = "covidcert delivery endpoint",
+            description =
+                    "covidcert delivery endpoint. retries are recognized by the Idempotency-Key"
+                            + " header or, without it, by code and hcert. they are acknowledged"
+                            + " like the first delivery, but not delivered again",
             responses = {
                 "200 => delivery successful",
+                "202 => covid cert staged, it is delivered asynchronously",
                 "403 => invalid jwt",
                 "418 => code not found"
             })
     @CrossOrigin(origins = {"https://editor.swagger.io"})
     @PostMapping(value = "/covidcert")
-    public ResponseEntity<Void> addCovidCert(@Valid @RequestBody CgsCovidCert covidCert)
-            throws CodeNotFoundException, InvalidPublicKeyException,
-                    InvalidAlgorithmParameterException, NoSuchPaddingException,
-                    IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException,
-                    InvalidKeySpecException, InvalidParameterSpecException, InvalidKeyException {
+    public ResponseEntity<Void> addCovidCert(
+            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false)
+                    String idempotencyKeyHeader,
+            @Valid @RequestBody CgsCovidCert covidCert)
+            throws CodeNotFoundException, InvalidPublicKeyException, GeneralSecurityException {
         String code = covidCert.getCode();
         logger.info("received covid cert for transfer code {}", code);
-        deliveryDataService.insertCovidCert(mapAndEncrypt(covidCert));
+        String idempotencyKey =
+                IdempotencyKeyCache.getIdempotencyKey(
+                        code, idempotencyKeyHeader, covidCert.getHcert());
+        if (stageCovidCerts) {
+            // unknown codes are rejected right away, the transfer is usually cached. staging
+            // checks the inserted covid certs itself, no separate duplicate lookup needed
+            deliveryDataService.findTransfer(code);
+            if (idempotencyKeyCache.contains(idempotencyKey)
+                    || !deliveryDataService.stageCovidCert(
+                            code, covidCert.getHcert(), covidCert.getPdf(), idempotencyKey)) {
+                logger.info("ignored duplicate covid cert for transfer code {}", code);
+            }
+            idempotencyKeyCache.put(idempotencyKey);
+            return ResponseEntity.accepted().build();
+        }
+        if (isDuplicate(idempotencyKey, code)) {
+            return ResponseEntity.ok().build();
+        }
+        DbTransfer transfer = deliveryDataService.findTransfer(code);
+        boolean inserted =
+                deliveryDataService.insertCovidCert(
+                        mapAndEncrypt(covidCert, transfer, idempotencyKey));
+        idempotencyKeyCache.put(idempotencyKey);
+        if (!inserted) {
+            // a concurrent retry was faster
+            logger.info("ignored duplicate covid cert for transfer code {}", code);
+            return ResponseEntity.ok().build();
+        }
         logger.info("encrypted and inserted covid cert for transfer code {}", code);
+        sendSilentPush(transfer);
         return ResponseEntity.ok().build();
     }
 
-    private DbCovidCert mapAndEncrypt(CgsCovidCert covidCert)
-            throws CodeNotFoundException, InvalidPublicKeyException,
-                    InvalidAlgorithmParameterException, NoSuchPaddingException,
-                    IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException,
-                    InvalidKeySpecException, InvalidParameterSpecException, InvalidKeyException {
+    /**
+     * short-circuits retries before any crypto work. the key is either known by this instance or
+     * the covid cert is already inserted by any instance
+     */
+    private boolean isDuplicate(String idempotencyKey, String code) {
+        if (idempotencyKeyCache.contains(idempotencyKey)
+                || !deliveryDataService.findIdempotencyKeys(List.of(idempotencyKey)).isEmpty()) {
+            logger.info("ignored duplicate covid cert for transfer code {}", code);
+            idempotencyKeyCache.put(idempotencyKey);
+            return true;
+        }
+        return false;
+    }
+
+    @Documentation(
+            description =
+                    "covidcert delivery endpoint for large pdfs. same request body as /covidcert,"
+                            + " but the pdf is decoded and encrypted while the body is read, it is"
+                            + " never held in memory as a whole. the code must precede the pdf,"
+                            + " otherwise the pdf is buffered. always processed synchronously",
+            responses = {
+                "200 => delivery successful",
+                "400 => invalid request body, e.g. the pdf is not valid base64",
+                "403 => invalid jwt",
+                "418 => code not found"
+            })
+    @CrossOrigin(origins = {"https://editor.swagger.io"})
+    @PostMapping(value = "/covidcert/stream", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Void> addCovidCertStreamed(HttpServletRequest request)
+            throws CodeNotFoundException, InvalidPublicKeyException, GeneralSecurityException,
+                    IOException {
+        String idempotencyKeyHeader = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+        String code = null;
+        String hcert = null;
+        String pdf = null;
+        DbTransfer transfer = null;
+        byte[] encryptedPdf = null;
+        boolean duplicate = false;
+        // the idempotency key already checked while parsing, if the pdf came after code and hcert
+        String checkedIdempotencyKey = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(request.getInputStream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw invalidCovidCert("expected json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "code":
+                        code = CodeHelper.getSanitizedCode(parser.getValueAsString());
+                        break;
+                    case "hcert":
+                        hcert = parser.getValueAsString();
+                        break;
+                    case "pdf":
+                        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                            throw invalidCovidCert("pdf must be a string");
+                        }
+                        if (isValidCode(code)
+                                && (idempotencyKeyHeader != null || hcert != null)) {
+                            checkedIdempotencyKey =
+                                    IdempotencyKeyCache.getIdempotencyKey(
+                                            code, idempotencyKeyHeader, hcert);
+                            duplicate = isDuplicate(checkedIdempotencyKey, code);
+                        }
+                        if (duplicate) {
+                            // the pdf is skipped without decoding it
+                            break;
+                        }
+                        if (isValidCode(code)) {
+                            logger.info("received streamed covid cert for transfer code {}", code);
+                            transfer = deliveryDataService.findTransfer(code);
+                            encryptedPdf =
+                                    encryptStreamed(parser, transfer, request.getContentLength());
+                        } else {
+                            // the code is not known yet, the pdf cannot be encrypted on the fly
+                            pdf = parser.getText();
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw invalidCovidCert(e.getOriginalMessage());
+        }
+        if (duplicate) {
+            return ResponseEntity.ok().build();
+        }
+        if (!isValidCode(code) || hcert == null || (pdf == null && encryptedPdf == null)) {
+            throw invalidCovidCert("code, hcert and pdf are required");
+        }
+        String idempotencyKey =
+                IdempotencyKeyCache.getIdempotencyKey(code, idempotencyKeyHeader, hcert);
+        if (!idempotencyKey.equals(checkedIdempotencyKey) && isDuplicate(idempotencyKey, code)) {
+            return ResponseEntity.ok().build();
+        }
+        if (transfer == null) {
+            logger.info("received buffered covid cert for transfer code {}", code);
+            transfer = deliveryDataService.findTransfer(code);
+            encryptedPdf = encryptPdf(pdf, transfer);
+        }
+        boolean inserted =
+                deliveryDataService.insertCovidCert(
+                        toDbCovidCert(
+                                transfer, idempotencyKey, encrypt(hcert, transfer), encryptedPdf));
+        idempotencyKeyCache.put(idempotencyKey);
+        if (!inserted) {
+            logger.info("ignored duplicate covid cert for transfer code {}", code);
+            return ResponseEntity.ok().build();
+        }
+        logger.info("encrypted and inserted covid cert for transfer code {}", code);
+        sendSilentPush(transfer);
+        return ResponseEntity.ok().build();
+    }
+
+    private static boolean isValidCode(String code) {
+        return code != null && code.length() == CODE_LENGTH;
+    }
+
+    private static ResponseStatusException invalidCovidCert(String reason) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, reason);
+    }
+
+    /**
+     * encrypts the pdf at the current position of the parser. the base64 is decoded in small
+     * chunks and compressed or encoded again, depending on what the app accepts. only the
+     * encrypted pdf is held in memory.
+     */
+    private byte[] encryptStreamed(JsonParser parser, DbTransfer transfer, int contentLength)
+            throws InvalidPublicKeyException, GeneralSecurityException, IOException {
+        Crypto crypto = getCrypto(transfer);
+        // the encrypted pdf is slightly larger than the base64 pdf, which is part of the body
+        var encrypted =
+                new ByteArrayOutputStream(
+                        contentLength > 0 ? Math.min(contentLength, MAX_BUFFER_SIZE_HINT) : 32);
+        try (OutputStream pdfOut =
+                crypto.pdfEncryptingStream(
+                        encrypted,
+                        transfer.getAcceptedPdfCompression(),
+                        transfer.getPublicKey(),
+                        transfer.getPublicKeySha256())) {
+            parser.readBinaryValue(pdfOut);
+        } catch (IllegalArgumentException e) {
+            // thrown by the parser for invalid base64
+            throw invalidCovidCert(e.getMessage());
+        }
+        return encrypted.toByteArray();
+    }
+
+    private void sendSilentPush(DbTransfer transfer) {
+        if (transfer.getPushRegisterId() != null) {
+            // the covid cert is committed, let the app fetch it right away. the push is sent in
+            // the background, the heartbeat push still wakes up the app if it fails
+            try {
+                silentPush.sendSilentPush(transfer.getPushRegisterId());
+            } catch (RuntimeException e) {
+                logger.warn(
+                        "could not send silent push for transfer code {}", transfer.getCode(), e);
+            }
+        }
+    }
+
+    @Documentation(
+            description =
+                    "batch covidcert delivery endpoint. all transfers are looked up with one query"
+                            + " and all covidcerts are stored in one transaction. covidcerts"
+                            + " delivered before (same code and hcert) are reported as OK, but not"
+                            + " delivered again",
+            responses = {
+                "200 => delivery result per covidcert (OK or CODE_NOT_FOUND)",
+                "400 => invalid request, e.g. more than 1000 covidcerts",
+                "403 => invalid jwt"
+            })
+    @CrossOrigin(origins = {"https://editor.swagger.io"})
+    @PostMapping(value = "/covidcerts")
+    public ResponseEntity<CgsCovidCertsResult> addCovidCerts(
+            @Valid @RequestBody CgsCovidCerts covidCerts)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        List<CgsCovidCert> cgsCovidCerts = covidCerts.getCovidCerts();
+        logger.info("received batch of {} covid certs", cgsCovidCerts.size());
+        Map<String, DbTransfer> transfers =
+                deliveryDataService.findTransfers(
+                        cgsCovidCerts.stream()
+                                .map(CgsCovidCert::getCode)
+                                .collect(Collectors.toSet()));
+
+        List<CgsCovidCertResult> results = new ArrayList<>(cgsCovidCerts.size());
+        // by idempotency key, duplicates within the batch are delivered once
+        Map<String, CgsCovidCert> found = new LinkedHashMap<>();
+        for (CgsCovidCert covidCert : cgsCovidCerts) {
+            String code = covidCert.getCode();
+            if (transfers.containsKey(code)) {
+                String idempotencyKey =
+                        IdempotencyKeyCache.getIdempotencyKey(code, null, covidCert.getHcert());
+                if (!idempotencyKeyCache.contains(idempotencyKey)) {
+                    found.putIfAbsent(idempotencyKey, covidCert);
+                }
+                results.add(new CgsCovidCertResult(code, CgsCovidCertStatus.OK));
+            } else {
+                logger.info("cgs sent non-existent transfer code {}", code);
+                results.add(new CgsCovidCertResult(code, CgsCovidCertStatus.CODE_NOT_FOUND));
+            }
+        }
+
+        found.keySet().removeAll(deliveryDataService.findIdempotencyKeys(found.keySet()));
+        deliveryDataService.insertCovidCerts(mapAndEncrypt(found, transfers));
+        found.keySet().forEach(idempotencyKeyCache::put);
+        logger.info(
+                "encrypted and inserted {} of {} covid certs",
+                found.size(),
+                cgsCovidCerts.size());
+
+        Set<String> pushRegisterIds = new LinkedHashSet<>();
+        for (CgsCovidCert covidCert : found.values()) {
+            String pushRegisterId = transfers.get(covidCert.getCode()).getPushRegisterId();
+            if (pushRegisterId != null) {
+                pushRegisterIds.add(pushRegisterId);
+            }
+        }
+        for (String pushRegisterId : pushRegisterIds) {
+            try {
+                silentPush.sendSilentPush(pushRegisterId);
+            } catch (RuntimeException e) {
+                logger.warn("could not send silent push to {}", pushRegisterId, e);
+            }
+        }
+        return ResponseEntity.ok(new CgsCovidCertsResult(results));
+    }
+
+    /** encrypts the covid certs in parallel on the crypto executor */
+    private List<DbCovidCert> mapAndEncrypt(
+            Map<String, CgsCovidCert> covidCerts, Map<String, DbTransfer> transfers)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        List<Future<DbCovidCert>> encrypted = new ArrayList<>(covidCerts.size());
+        for (Map.Entry<String, CgsCovidCert> entry : covidCerts.entrySet()) {
+            CgsCovidCert covidCert = entry.getValue();
+            DbTransfer transfer = transfers.get(covidCert.getCode());
+            encrypted.add(
+                    cryptoExecutor.submit(
+                            () ->
+                                    toDbCovidCert(
+                                            transfer,
+                                            entry.getKey(),
+                                            encrypt(covidCert.getHcert(), transfer),
+                                            encryptPdf(covidCert.getPdf(), transfer))));
+        }
+        List<DbCovidCert> dbCovidCerts = new ArrayList<>(covidCerts.size());
+        for (Future<DbCovidCert> dbCovidCert : encrypted) {
+            dbCovidCerts.add(CryptoExecutor.await(dbCovidCert));
+        }
+        return dbCovidCerts;
+    }
+
+    private DbCovidCert mapAndEncrypt(
+            CgsCovidCert covidCert, DbTransfer transfer, String idempotencyKey)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        // the pdf dominates, the hcert is encrypted on the request thread meanwhile
+        Future<byte[]> encryptedPdf =
+                cryptoExecutor.submit(() -> encryptPdf(covidCert.getPdf(), transfer));
+        byte[] encryptedHcert = encrypt(covidCert.getHcert(), transfer);
+        return toDbCovidCert(
+                transfer, idempotencyKey, encryptedHcert, CryptoExecutor.await(encryptedPdf));
+    }
+
+    private DbCovidCert toDbCovidCert(
+            DbTransfer transfer,
+            String idempotencyKey,
+            byte[] encryptedHcert,
+            byte[] encryptedPdf) {
         DbCovidCert dbCovidCert = new DbCovidCert();
-        DbTransfer transfer = deliveryDataService.findTransfer(covidCert.getCode());
         dbCovidCert.setFkTransfer(transfer.getPk());
-        String publicKey = transfer.getPublicKey();
-        Algorithm algorithm = transfer.getAlgorithm();
-        dbCovidCert.setEncryptedHcert(encrypt(covidCert.getHcert(), publicKey, algorithm));
-        dbCovidCert.setEncryptedPdf(encrypt(covidCert.getPdf(), publicKey, algorithm));
+        dbCovidCert.setEncryptedHcert(encryptedHcert);
+        dbCovidCert.setEncryptedPdf(encryptedPdf);
+        dbCovidCert.setPdfCompression(transfer.getAcceptedPdfCompression());
+        dbCovidCert.setIdempotencyKey(idempotencyKey);
         return dbCovidCert;
     }
 
-    private String encrypt(String toEncrypt, String publicKey, Algorithm algorithm)
-            throws InvalidPublicKeyException, InvalidAlgorithmParameterException,
-                    NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException,
-                    BadPaddingException, InvalidKeySpecException, InvalidParameterSpecException,
-                    InvalidKeyException {
-        Crypto crypto;
-        switch (algorithm) {
+    private byte[] encrypt(String toEncrypt, DbTransfer transfer)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        return getCrypto(transfer)
+                .encryptToBytes(toEncrypt, transfer.getPublicKey(), transfer.getPublicKeySha256());
+    }
+
+    private byte[] encryptPdf(String pdf, DbTransfer transfer)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        try {
+            return getCrypto(transfer)
+                    .encryptPdf(
+                            pdf,
+                            transfer.getAcceptedPdfCompression(),
+                            transfer.getPublicKey(),
+                            transfer.getPublicKeySha256());
+        } catch (IllegalArgumentException e) {
+            // the pdf is only decoded if the app accepts a compression
+            throw invalidCovidCert("pdf is not valid base64");
+        }
+    }
+
+    private Crypto getCrypto(DbTransfer transfer) throws InvalidPublicKeyException {
+        switch (transfer.getAlgorithm()) {
             case EC256:
-                crypto = ecCrypto;
-                break;
+                return ecCrypto;
             case RSA2048:
-                crypto = rsaCrypto;
-                break;
+                return rsaCrypto;
             default:
-                logger.error("unexpected algorithm: {}", algorithm);
+                logger.error("unexpected algorithm: {}", transfer.getAlgorithm());
                 throw new InvalidPublicKeyException();
         }
-        return crypto.encrypt(toEncrypt, publicKey);
     }
 
     @ExceptionHandler({CodeNotFoundException.class})
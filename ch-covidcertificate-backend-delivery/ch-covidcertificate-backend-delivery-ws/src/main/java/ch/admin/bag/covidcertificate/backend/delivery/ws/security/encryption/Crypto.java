@@ -1,19 +1,34 @@
 package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
 
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidSignatureException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Base64;
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +36,28 @@ public abstract class Crypto {
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
+    // creating a provider is expensive, it is instantiated once and passed to getInstance
+    protected static final Provider BOUNCY_CASTLE_PROVIDER = new BouncyCastleProvider();
+
+    private static final long DEFAULT_PUBLIC_KEY_CACHE_SIZE = 10000;
+    private static final Duration DEFAULT_PUBLIC_KEY_CACHE_EXPIRY = Duration.ofHours(1);
+
+    // parsed public keys by their sha256 hash (base64), shared by signature validation and
+    // encryption
+    private final Cache<String, PublicKey> publicKeyCache;
+
+    protected Crypto() {
+        this(DEFAULT_PUBLIC_KEY_CACHE_SIZE, DEFAULT_PUBLIC_KEY_CACHE_EXPIRY);
+    }
+
+    protected Crypto(long publicKeyCacheSize, Duration publicKeyCacheExpireAfterAccess) {
+        this.publicKeyCache =
+                Caffeine.newBuilder()
+                        .maximumSize(publicKeyCacheSize)
+                        .expireAfterAccess(publicKeyCacheExpireAfterAccess)
+                        .build();
+    }
+
     /**
      * the given public key is used to encrypt (or derive) a secret key, which is used to encrypt
      * the data with AES/GCM. Afterwards the secret key for the AES-Encryption is encrypted
@@ -30,11 +67,140 @@ public abstract class Crypto {
      * @param publicKey (base64)
      * @return
      */
-    public abstract String encrypt(String toEncrypt, String publicKey)
+    public String encrypt(String toEncrypt, String publicKey)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
+                    InvalidParameterSpecException, InvalidPublicKeyException {
+        return encrypt(toEncrypt, publicKey, null);
+    }
+
+    /**
+     * same as {@link #encrypt(String, String)}, the parsed public key is cached by the given hash
+     *
+     * @param toEncrypt (base64)
+     * @param publicKey (base64)
+     * @param publicKeySha256 sha256 hash of the public key (base64), null to skip the cache
+     * @return
+     */
+    public String encrypt(String toEncrypt, String publicKey, String publicKeySha256)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
+                    InvalidParameterSpecException, InvalidPublicKeyException {
+        return Base64.getEncoder()
+                .encodeToString(encryptToBytes(toEncrypt, publicKey, publicKeySha256));
+    }
+
+    /**
+     * same as {@link #encrypt(String, String, String)}, but returns the raw encrypted bytes, as they
+     * are stored
+     */
+    public byte[] encryptToBytes(String toEncrypt, String publicKey, String publicKeySha256)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
+                    InvalidParameterSpecException, InvalidPublicKeyException {
+        return encryptToBytes(
+                toEncrypt.getBytes(StandardCharsets.UTF_8),
+                getCachedPublicKey(publicKey, publicKeySha256));
+    }
+
+    /**
+     * encrypts the pdf as the app expects it for the given compression: without compression the
+     * base64 string of the pdf is encrypted as is, otherwise the decoded and compressed pdf
+     *
+     * @param pdf (base64)
+     * @param compression accepted by the app, null if none
+     * @param publicKey (base64)
+     * @param publicKeySha256 sha256 hash of the public key (base64), null to skip the cache
+     */
+    public byte[] encryptPdf(
+            String pdf, PdfCompression compression, String publicKey, String publicKeySha256)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
+                    InvalidParameterSpecException, InvalidPublicKeyException {
+        if (compression == null) {
+            return encryptToBytes(pdf, publicKey, publicKeySha256);
+        }
+        byte[] compressed = PdfCompressor.deflate(Base64.getMimeDecoder().decode(pdf));
+        return encryptToBytes(compressed, getCachedPublicKey(publicKey, publicKeySha256));
+    }
+
+    /**
+     * streaming variant of {@link #encryptToBytes(String, String, String)} for large payloads. the
+     * envelope header is written to the given stream right away, the bytes written to the returned
+     * stream are encrypted in small chunks. closing the returned stream writes the authentication
+     * tag and closes the given stream. the returned stream must be written and closed on the
+     * calling thread, before anything else is encrypted on it.
+     *
+     * @param out receives the same bytes as returned by {@link #encryptToBytes(String, String,
+     *     String)}
+     */
+    public OutputStream encryptingStream(
+            OutputStream out, String publicKey, String publicKeySha256)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
+                    InvalidParameterSpecException, InvalidPublicKeyException, IOException {
+        Cipher cipher = initCipher(getCachedPublicKey(publicKey, publicKeySha256), out);
+        return new CipherOutputStream(out, cipher);
+    }
+
+    /**
+     * streaming variant of {@link #encryptPdf(String, PdfCompression, String, String)}, the raw
+     * (decoded) pdf bytes are written to the returned stream. same contract as {@link
+     * #encryptingStream(OutputStream, String, String)}
+     */
+    public OutputStream pdfEncryptingStream(
+            OutputStream out, PdfCompression compression, String publicKey, String publicKeySha256)
             throws NoSuchPaddingException, NoSuchAlgorithmException,
                     InvalidAlgorithmParameterException, InvalidKeyException,
                     IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
-                    InvalidParameterSpecException, InvalidPublicKeyException;
+                    InvalidParameterSpecException, InvalidPublicKeyException, IOException {
+        OutputStream encrypting = encryptingStream(out, publicKey, publicKeySha256);
+        if (compression == null) {
+            // the app expects the base64 string as plain text
+            return Base64.getEncoder().wrap(encrypting);
+        }
+        return PdfCompressor.deflatingStream(encrypting);
+    }
+
+    protected byte[] encryptToBytes(byte[] plaintext, PublicKey publicKey)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException {
+        var header = new ByteArrayOutputStream(512);
+        Cipher cipher;
+        try {
+            cipher = initCipher(publicKey, header);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // header and cipher text are written to one array, no intermediate copies
+        byte[] encrypted = new byte[header.size() + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(header.toByteArray(), 0, encrypted, 0, header.size());
+        try {
+            int length =
+                    cipher.doFinal(plaintext, 0, plaintext.length, encrypted, header.size());
+            return header.size() + length == encrypted.length
+                    ? encrypted
+                    : Arrays.copyOf(encrypted, header.size() + length);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException("output size of cipher too small", e);
+        }
+    }
+
+    /**
+     * sets up the envelope for the given public key: writes the envelope header (e.g. the
+     * ephemeral public key or the wrapped secret key) to the given stream and returns the AES/GCM
+     * cipher for the data, initialized for encryption. the data is appended to the header.
+     */
+    protected abstract Cipher initCipher(PublicKey publicKey, OutputStream header)
+            throws NoSuchPaddingException, NoSuchAlgorithmException,
+                    InvalidAlgorithmParameterException, InvalidKeyException,
+                    IllegalBlockSizeException, BadPaddingException, IOException;
 
     /**
      * validates the signature and signature payload with the given public key
@@ -47,11 +213,28 @@ public abstract class Crypto {
      */
     public void validateSignature(String signaturePayload, String signature, String publicKey)
             throws InvalidSignatureException, InvalidPublicKeyException {
+        validateSignature(signaturePayload, signature, publicKey, null);
+    }
+
+    /**
+     * same as {@link #validateSignature(String, String, String)}, the parsed public key is cached
+     * by the given hash
+     *
+     * @param signaturePayload
+     * @param signature
+     * @param publicKey
+     * @param publicKeySha256 sha256 hash of the public key (base64), null to skip the cache
+     * @throws InvalidSignatureException
+     * @throws InvalidPublicKeyException
+     */
+    public void validateSignature(
+            String signaturePayload, String signature, String publicKey, String publicKeySha256)
+            throws InvalidSignatureException, InvalidPublicKeyException {
         Signature sig = null;
         PublicKey pubKey = null;
         try {
             sig = getSignature();
-            pubKey = getPublicKey(publicKey);
+            pubKey = getCachedPublicKey(publicKey, publicKeySha256);
         } catch (Exception e) {
             logger.warn("invalid public key", e);
             throw new InvalidPublicKeyException();
@@ -70,6 +253,45 @@ public abstract class Crypto {
         }
     }
 
+    private PublicKey getCachedPublicKey(String publicKey, String publicKeySha256)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidParameterSpecException,
+                    InvalidPublicKeyException {
+        if (publicKeySha256 == null) {
+            return getPublicKey(publicKey);
+        }
+        PublicKey pubKey = publicKeyCache.getIfPresent(publicKeySha256);
+        if (pubKey == null) {
+            // only successfully parsed (and validated) keys end up in the cache
+            pubKey = getPublicKey(publicKey);
+            publicKeyCache.put(publicKeySha256, pubKey);
+        }
+        return pubKey;
+    }
+
+    /**
+     * JCA engines (Signature, Cipher, KeyAgreement, MessageDigest, ...) are not thread safe, but
+     * can be reused after re-initialization. Every thread gets its own instance, created on first
+     * use.
+     *
+     * @param factory creates the engine
+     * @return thread local engine
+     */
+    protected static <T> ThreadLocal<T> perThread(EngineFactory<T> factory) {
+        return ThreadLocal.withInitial(
+                () -> {
+                    try {
+                        return factory.create();
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException("could not create crypto engine", e);
+                    }
+                });
+    }
+
+    @FunctionalInterface
+    protected interface EngineFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
     protected abstract Signature getSignature() throws NoSuchAlgorithmException;
 
     protected abstract PublicKey getPublicKey(String publicKey)
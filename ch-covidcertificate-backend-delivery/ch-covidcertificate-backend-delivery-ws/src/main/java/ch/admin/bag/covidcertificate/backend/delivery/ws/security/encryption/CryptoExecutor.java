@@ -0,0 +1,117 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pool for envelope encryptions. If all threads are busy and the queue is full, the
+ * task is rejected and runs on the submitting thread instead. That throttles the callers and the
+ * rejection count shows that the crypto work saturates the cpus.
+ */
+public class CryptoExecutor implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param threads number of threads, the number of available processors if 0
+     * @param queueCapacity maximum number of waiting tasks
+     */
+    public CryptoExecutor(int threads, int queueCapacity) {
+        if (threads < 0 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "invalid crypto executor: threads " + threads + ", queue " + queueCapacity);
+        }
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        var threadCount = new AtomicInteger();
+        this.executor =
+                new ThreadPoolExecutor(
+                        poolSize,
+                        poolSize,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity),
+                        r -> {
+                            var thread =
+                                    new Thread(r, "crypto-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                        (r, e) -> {
+                            if (e.isShutdown()) {
+                                throw new RejectedExecutionException("crypto executor is closed");
+                            }
+                            rejectedCount.incrementAndGet();
+                            r.run();
+                        });
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        var future = new FutureTask<>(task);
+        executor.execute(future);
+        return future;
+    }
+
+    /** waits for the result of a submitted encryption and rethrows its exception */
+    public static <T> T await(Future<T> future)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for encryption", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidPublicKeyException) {
+                throw (InvalidPublicKeyException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("encryption failed", cause);
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of threads currently encrypting
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return number of tasks that ran on the submitting thread because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
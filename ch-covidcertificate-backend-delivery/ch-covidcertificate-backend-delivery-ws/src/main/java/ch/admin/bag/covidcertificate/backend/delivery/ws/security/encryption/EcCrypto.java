@@ -1,12 +1,12 @@
 package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
-import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -18,11 +18,10 @@ import java.security.spec.ECPoint;
 import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Base64;
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
@@ -35,24 +34,38 @@ public class EcCrypto extends Crypto {
     private static final String AES = "AES";
     private static final String AES_GCM_NO_PADDING = "AES/GCM/NoPadding";
     private static final String SHA256_WITH_ECDSA = "SHA256withECDSA";
+    private static final ECParameterSpec SECP256R1_PARAMETER_SPEC = secp256r1ParameterSpec();
+
+    private static final ThreadLocal<KeyAgreement> KEY_AGREEMENT =
+            perThread(() -> KeyAgreement.getInstance("ECDH"));
+    private static final ThreadLocal<Cipher> AES_CIPHER =
+            perThread(() -> Cipher.getInstance(AES_GCM_NO_PADDING));
+    private static final ThreadLocal<MessageDigest> SHA_256 =
+            perThread(() -> MessageDigest.getInstance("SHA-256"));
+    private static final ThreadLocal<Signature> SIGNATURE =
+            perThread(() -> Signature.getInstance(SHA256_WITH_ECDSA));
+
+    private final EphemeralKeyPairPool ephemeralKeyPairPool;
+
+    public EcCrypto() {
+        super();
+        this.ephemeralKeyPairPool = EphemeralKeyPairPool.disabled();
+    }
+
+    public EcCrypto(
+            long publicKeyCacheSize,
+            Duration publicKeyCacheExpireAfterAccess,
+            EphemeralKeyPairPool ephemeralKeyPairPool) {
+        super(publicKeyCacheSize, publicKeyCacheExpireAfterAccess);
+        this.ephemeralKeyPairPool = ephemeralKeyPairPool;
+    }
 
     @Override
-    public String encrypt(String toEncrypt, String publicKey)
+    protected Cipher initCipher(PublicKey otherPublicKey, OutputStream header)
             throws NoSuchPaddingException, NoSuchAlgorithmException,
-                    InvalidAlgorithmParameterException, InvalidKeyException,
-                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
-                    InvalidParameterSpecException {
-        // the ios public key...
-        var publicKeyBytes = Base64.getDecoder().decode(publicKey);
-
-        // ... is in uncompressed octal represenation (0x04 | X | Y)
-        var x = Arrays.copyOfRange(publicKeyBytes, 1, 33);
-        var y = Arrays.copyOfRange(publicKeyBytes, 33, publicKeyBytes.length);
-
-        // ephemeral keys
-        var kpg = KeyPairGenerator.getInstance(EC);
-        kpg.initialize(256);
-        var kp = kpg.generateKeyPair();
+                    InvalidAlgorithmParameterException, InvalidKeyException, IOException {
+        // ephemeral keys (every key pair is only used once)
+        var kp = ephemeralKeyPairPool.take();
         // convert them to uncompressed point form
         byte[] xArray = ((ECPublicKey) kp.getPublic()).getW().getAffineX().toByteArray();
         byte[] yArray = ((ECPublicKey) kp.getPublic()).getW().getAffineY().toByteArray();
@@ -74,16 +87,8 @@ public class EcCrypto extends Crypto {
             System.arraycopy(yArray, 0, bobPublic, 33 + zeroPadding, yArray.length);
         }
 
-        // generate a publickey from ios publickeydata
-        var kf = KeyFactory.getInstance(EC);
-        var ecKeySpec =
-                new ECPublicKeySpec(
-                        new ECPoint(new BigInteger(1, x), new BigInteger(1, y)),
-                        ecParameterSpecForCurve(SECP256R1));
-        var otherPublicKey = kf.generatePublic(ecKeySpec);
-
         // do ECDH for symmetric key derivation
-        var ka = KeyAgreement.getInstance("ECDH");
+        var ka = KEY_AGREEMENT.get();
         ka.init(kp.getPrivate());
         ka.doPhase(otherPublicKey, true);
         var secret = ka.generateSecret();
@@ -99,17 +104,16 @@ public class EcCrypto extends Crypto {
 
         // now we are ready. We can initialize the AES cipher
         var secretKey = new SecretKeySpec(aesSecret, AES);
-        var cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+        var cipher = AES_CIPHER.get();
         cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
-        var cipherText = cipher.doFinal(toEncrypt.getBytes(StandardCharsets.UTF_8));
 
         // in order for SecKeyCreateDecryptedData to be able to decrypt the data, we have to concat
         // the ephemeral public key and the cipher text
         // NOTE: the ios documentation mentions the authenticated date to be the ios public key, but
         // this is WRONG c.f. (https://developer.apple.com/forums/thread/114066,
         // https://darthnull.org/secure-enclave-ecies/)
-        byte[] bytes = concatWithArrayCopy(bobPublic, cipherText);
-        return Base64.getEncoder().encodeToString(bytes);
+        header.write(bobPublic);
+        return cipher;
     }
 
     public static ECParameterSpec ecParameterSpecForCurve(String curveName)
@@ -119,9 +123,18 @@ public class EcCrypto extends Crypto {
         return params.getParameterSpec(ECParameterSpec.class);
     }
 
+    private static ECParameterSpec secp256r1ParameterSpec() {
+        try {
+            return ecParameterSpecForCurve(SECP256R1);
+        } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+            throw new IllegalStateException("secp256r1 not supported", e);
+        }
+    }
+
     // Simple key derivation c.f https://darthnull.org/secure-enclave-ecies/
     private byte[] x963KDF(byte[] secret, byte[] sharedInfo) throws NoSuchAlgorithmException {
-        var digest = MessageDigest.getInstance("SHA-256");
+        var digest = SHA_256.get();
+        digest.reset();
         digest.update(secret);
         digest.update((byte) 0);
         digest.update((byte) 0);
@@ -131,16 +144,9 @@ public class EcCrypto extends Crypto {
         return digest.digest();
     }
 
-    private byte[] concatWithArrayCopy(byte[] array1, byte[] array2) {
-        byte[] result = Arrays.copyOf(array1, array1.length + array2.length);
-        System.arraycopy(array2, 0, result, array1.length, array2.length);
-        return result;
-    }
-
     @Override
     protected PublicKey getPublicKey(String publicKey)
-            throws NoSuchAlgorithmException, InvalidParameterSpecException,
-                    InvalidKeySpecException {
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
         // the ios public key...
         var publicKeyBytes = Base64.getDecoder().decode(publicKey);
 
@@ -152,12 +158,12 @@ public class EcCrypto extends Crypto {
         var ecKeySpec =
                 new ECPublicKeySpec(
                         new ECPoint(new BigInteger(1, x), new BigInteger(1, y)),
-                        EcCrypto.ecParameterSpecForCurve(EcCrypto.SECP256R1));
+                        SECP256R1_PARAMETER_SPEC);
         return kf.generatePublic(ecKeySpec);
     }
 
     @Override
     protected Signature getSignature() throws NoSuchAlgorithmException {
-        return Signature.getInstance(SHA256_WITH_ECDSA);
+        return SIGNATURE.get();
     }
 }
@@ -0,0 +1,135 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of pre-generated ephemeral P-256 key pairs for {@link EcCrypto#encrypt}. Every key
+ * pair is handed out exactly once. As soon as the pool drops below the low watermark, a background
+ * thread refills it up to the high watermark. If the pool is empty, a key pair is generated
+ * synchronously.
+ */
+public class EphemeralKeyPairPool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EphemeralKeyPairPool.class);
+
+    private static final ThreadLocal<KeyPairGenerator> KEY_PAIR_GENERATOR =
+            Crypto.perThread(
+                    () -> {
+                        var kpg = KeyPairGenerator.getInstance("EC");
+                        kpg.initialize(256);
+                        return kpg;
+                    });
+
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final BlockingQueue<KeyPair> pool;
+    private final ExecutorService refillExecutor;
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private final AtomicLong fallbackCount = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public EphemeralKeyPairPool(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException(
+                    "invalid watermarks: low " + lowWatermark + ", high " + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        if (highWatermark > 0) {
+            this.pool = new ArrayBlockingQueue<>(highWatermark);
+            this.refillExecutor =
+                    Executors.newSingleThreadExecutor(
+                            r -> {
+                                var thread = new Thread(r, "ephemeral-key-pool-refill");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            triggerRefill();
+        } else {
+            this.pool = null;
+            this.refillExecutor = null;
+        }
+    }
+
+    /** pool that always generates key pairs synchronously */
+    public static EphemeralKeyPairPool disabled() {
+        return new EphemeralKeyPairPool(0, 0);
+    }
+
+    /**
+     * @return a key pair that has not been handed out before
+     */
+    public KeyPair take() {
+        if (pool == null) {
+            return generate();
+        }
+        KeyPair keyPair = pool.poll();
+        if (pool.size() < lowWatermark) {
+            triggerRefill();
+        }
+        if (keyPair == null) {
+            fallbackCount.incrementAndGet();
+            return generate();
+        }
+        return keyPair;
+    }
+
+    public int size() {
+        return pool != null ? pool.size() : 0;
+    }
+
+    /**
+     * @return number of key pairs that had to be generated synchronously because the pool was empty
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    private void triggerRefill() {
+        if (!closed && refilling.compareAndSet(false, true)) {
+            refillExecutor.execute(this::refill);
+        }
+    }
+
+    private void refill() {
+        var failed = false;
+        try {
+            while (!closed && pool.size() < highWatermark) {
+                if (!pool.offer(generate())) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            logger.error("could not refill ephemeral key pair pool", e);
+        } finally {
+            refilling.set(false);
+        }
+        // a take that dropped below the low watermark while this refill was finishing could not
+        // trigger a new refill
+        if (!failed && pool.size() < lowWatermark) {
+            triggerRefill();
+        }
+    }
+
+    private static KeyPair generate() {
+        return KEY_PAIR_GENERATOR.get().generateKeyPair();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (refillExecutor != null) {
+            refillExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses pdfs before they are encrypted, see {@link PdfCompression}. The pdf is decoded from
+ * base64 first, the app gets the raw deflate stream of the pdf bytes.
+ */
+public final class PdfCompressor {
+
+    // the content streams of the pdfs are compressed already, higher levels barely gain anything
+    static final int DEFLATE_LEVEL = Deflater.BEST_SPEED;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private PdfCompressor() {}
+
+    /**
+     * @param pdf raw pdf bytes
+     * @return raw deflate stream (no zlib header) of the pdf
+     */
+    public static byte[] deflate(byte[] pdf) {
+        // the raw pdf is about the size of the deflated one, most of the gain is skipping base64
+        var out = new ByteArrayOutputStream(pdf.length + 64);
+        try (OutputStream deflating = deflatingStream(out)) {
+            deflating.write(pdf);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param out receives the raw deflate stream of the bytes written to the returned stream.
+     *     closing the returned stream finishes the deflate stream and closes the given stream
+     */
+    public static OutputStream deflatingStream(OutputStream out) {
+        return deflatingStream(out, DEFLATE_LEVEL);
+    }
+
+    static OutputStream deflatingStream(OutputStream out, int level) {
+        var deflater = new Deflater(level, true);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // the native memory of a deflater passed in is not released by close
+                    deflater.end();
+                }
+            }
+        };
+    }
+}
@@ -1,7 +1,8 @@
 package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
 
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -12,6 +13,7 @@ import java.security.Signature;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.util.Base64;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -19,24 +21,35 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class RsaCrypto extends Crypto {
 
     private final SecureRandom secureRandom;
     private static final int MIN_KEY_LENGTH = 2048;
 
+    private static final ThreadLocal<Cipher> AES_CIPHER =
+            perThread(() -> Cipher.getInstance("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Cipher> RSA_CIPHER =
+            perThread(() -> Cipher.getInstance("RSA/ECB/OAEPwithSHA-256andMGF1Padding"));
+    private static final ThreadLocal<Signature> SIGNATURE =
+            perThread(() -> Signature.getInstance("SHA256withRSA/PSS", BOUNCY_CASTLE_PROVIDER));
+
     public RsaCrypto() {
+        super();
+        this.secureRandom = new SecureRandom();
+    }
+
+    public RsaCrypto(long publicKeyCacheSize, Duration publicKeyCacheExpireAfterAccess) {
+        super(publicKeyCacheSize, publicKeyCacheExpireAfterAccess);
         this.secureRandom = new SecureRandom();
     }
 
     @Override
-    public String encrypt(String toEncrypt, String publicKey)
+    protected Cipher initCipher(PublicKey publicKey, OutputStream header)
             throws NoSuchPaddingException, NoSuchAlgorithmException,
                     InvalidAlgorithmParameterException, InvalidKeyException,
-                    IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException,
-                    InvalidPublicKeyException {
-        RSAPublicKey rsaPubKey = (RSAPublicKey) getPublicKey(publicKey);
+                    IllegalBlockSizeException, BadPaddingException, IOException {
+        RSAPublicKey rsaPubKey = (RSAPublicKey) publicKey;
 
         // generate random secret and random IV
         byte[] keyBytes = new byte[32];
@@ -47,16 +60,13 @@ public class RsaCrypto extends Crypto {
 
         // initialize AES engine
         var gcmSpec = new GCMParameterSpec(128, customIV);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = AES_CIPHER.get();
         cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmSpec);
 
-        // encrypt data with block cipher
-        var encryptedData = cipher.doFinal(toEncrypt.getBytes(StandardCharsets.UTF_8));
-
         var secretBytes = secretKey.getEncoded();
 
         // initialize RSA cipher for secretkey and iv encryption
-        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPwithSHA-256andMGF1Padding");
+        Cipher rsa = RSA_CIPHER.get();
         rsa.init(Cipher.ENCRYPT_MODE, rsaPubKey);
 
         // combine key and IV
@@ -64,16 +74,9 @@ public class RsaCrypto extends Crypto {
         System.arraycopy(customIV, 0, ivAndBytes, 0, customIV.length);
         System.arraycopy(secretBytes, 0, ivAndBytes, customIV.length, secretBytes.length);
 
-        // encrypt secretkey with public key
-        var encryptedKey = rsa.doFinal(ivAndBytes);
-
-        // copy all data into one array
-        var all = new byte[encryptedData.length + encryptedKey.length];
-        System.arraycopy(encryptedKey, 0, all, 0, encryptedKey.length);
-
-        System.arraycopy(encryptedData, 0, all, encryptedKey.length, encryptedData.length);
-
-        return Base64.getEncoder().encodeToString(all);
+        // encrypt secretkey with public key, the data encrypted with the block cipher follows
+        header.write(rsa.doFinal(ivAndBytes));
+        return cipher;
     }
 
     @Override
@@ -96,6 +99,6 @@ public class RsaCrypto extends Crypto {
 
     @Override
     protected Signature getSignature() throws NoSuchAlgorithmException {
-        return Signature.getInstance("SHA256withRSA/PSS", new BouncyCastleProvider());
+        return SIGNATURE.get();
     }
 }
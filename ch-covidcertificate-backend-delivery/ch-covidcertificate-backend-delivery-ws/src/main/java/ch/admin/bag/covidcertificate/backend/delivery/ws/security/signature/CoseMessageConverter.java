@@ -0,0 +1,121 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.cbor.CborMessageConverter;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.BinaryCovidCertDelivery;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+/**
+ * Writes covid cert deliveries as COSE_Sign1 with the cbor of {@link CborMessageConverter} as
+ * payload, signed with the jws key. Unlike the jws, the payload is length prefixed and held in
+ * memory while it is signed. <br>
+ * <b>Note:</b> Reading is not supported.
+ */
+public class CoseMessageConverter extends AbstractHttpMessageConverter<CovidCertDelivery> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoseMessageConverter.class);
+
+    public static final MediaType COSE_MEDIA_TYPE = new MediaType("application", "cose");
+
+    private static final Map<String, Object> EMPTY_DELIVERY_CLAIMS =
+            Map.of("covidCerts", List.of());
+
+    private final CoseSigner signer;
+    private final JwsSignatureCache signatureCache;
+
+    /**
+     * @param alias alias of the signing key. the first alias in the key store is used if empty
+     * @param signatureCache cache for the signed empty delivery
+     */
+    public CoseMessageConverter(
+            KeyStore keyStore, char[] password, String alias, JwsSignatureCache signatureCache)
+            throws KeyStoreException, CertificateEncodingException, UnrecoverableKeyException,
+                    NoSuchAlgorithmException {
+        super(COSE_MEDIA_TYPE);
+        this.signatureCache = signatureCache;
+        String keyAlias =
+                alias == null || alias.isEmpty() ? keyStore.aliases().nextElement() : alias;
+        if (!keyStore.isKeyEntry(keyAlias)) {
+            throw new KeyStoreException("no signing key with alias " + keyAlias);
+        }
+        List<byte[]> certificateChain = new ArrayList<>();
+        for (Certificate cert : keyStore.getCertificateChain(keyAlias)) {
+            certificateChain.add(cert.getEncoded());
+        }
+        var jwsSigner =
+                new JwsSigner((PrivateKey) keyStore.getKey(keyAlias, password), certificateChain);
+        this.signer = new CoseSigner(jwsSigner, certificateChain);
+        logger.info("signing cose with {} key {}", jwsSigner.getAlgorithm(), keyAlias);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return CovidCertDelivery.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected CovidCertDelivery readInternal(
+            Class<? extends CovidCertDelivery> clazz, HttpInputMessage inputMessage)
+            throws HttpMessageNotReadableException {
+        throw new UnsupportedOperationException("This converter does not support reading");
+    }
+
+    @Override
+    protected void writeInternal(CovidCertDelivery delivery, HttpOutputMessage outputMessage)
+            throws IOException {
+        if (!(delivery instanceof BinaryCovidCertDelivery)
+                && delivery.getCovidCerts().isEmpty()) {
+            // the same few signatures are served to most polls
+            outputMessage
+                    .getBody()
+                    .write(signatureCache.get(EMPTY_DELIVERY_CLAIMS, claims -> sign(delivery)));
+            return;
+        }
+        try {
+            signer.write(toCbor(delivery), outputMessage.getBody());
+        } catch (GeneralSecurityException e) {
+            throw new HttpMessageNotWritableException("could not sign response", e);
+        }
+    }
+
+    private byte[] sign(CovidCertDelivery delivery) {
+        var out = new ByteArrayOutputStream();
+        try {
+            signer.write(toCbor(delivery), out);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("could not sign response", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] toCbor(CovidCertDelivery delivery) throws IOException {
+        var out = new ByteArrayOutputStream();
+        CborMessageConverter.write(delivery, out);
+        return out.toByteArray();
+    }
+}
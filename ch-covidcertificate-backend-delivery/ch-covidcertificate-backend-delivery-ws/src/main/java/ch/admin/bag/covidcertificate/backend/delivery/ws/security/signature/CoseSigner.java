@@ -0,0 +1,98 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import ch.admin.bag.covidcertificate.backend.delivery.ws.cbor.CborWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes COSE_Sign1 messages (RFC 9052) with the key of a {@link JwsSigner}. The signature formats
+ * of jws and cose are the same for all supported algorithms, only the algorithm ids differ. The
+ * certificate chain is sent in the unprotected x5chain header (RFC 9360).
+ */
+class CoseSigner {
+
+    private static final int COSE_SIGN1_TAG = 18;
+    private static final int ALG_HEADER = 1;
+    private static final int X5CHAIN_HEADER = 33;
+
+    private static final Map<String, Integer> ALGORITHMS =
+            Map.of(
+                    "ES256", -7,
+                    "ES384", -35,
+                    "ES512", -36,
+                    "EdDSA", -8,
+                    "RS256", -257,
+                    "RS384", -258,
+                    "RS512", -259);
+
+    private final JwsSigner signer;
+    private final byte[] protectedHeader;
+    private final byte[] unprotectedHeader;
+
+    CoseSigner(JwsSigner signer, List<byte[]> certificateChain)
+            throws NoSuchAlgorithmException {
+        this.signer = signer;
+        Integer algorithm = ALGORITHMS.get(signer.getAlgorithm());
+        if (algorithm == null) {
+            throw new NoSuchAlgorithmException(
+                    "unsupported cose signing algorithm: " + signer.getAlgorithm());
+        }
+        try {
+            var out = new ByteArrayOutputStream();
+            var cbor = new CborWriter(out);
+            cbor.writeMapHeader(1);
+            cbor.writeInt(ALG_HEADER);
+            cbor.writeInt(algorithm);
+            this.protectedHeader = out.toByteArray();
+
+            out.reset();
+            if (certificateChain.isEmpty()) {
+                cbor.writeMapHeader(0);
+            } else {
+                cbor.writeMapHeader(1);
+                cbor.writeInt(X5CHAIN_HEADER);
+                if (certificateChain.size() == 1) {
+                    cbor.writeBytes(certificateChain.get(0));
+                } else {
+                    cbor.writeArrayHeader(certificateChain.size());
+                    for (byte[] certificate : certificateChain) {
+                        cbor.writeBytes(certificate);
+                    }
+                }
+            }
+            this.unprotectedHeader = out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not encode cose headers", e);
+        }
+    }
+
+    /** writes the payload signed as tagged COSE_Sign1 to the output stream */
+    void write(byte[] payload, OutputStream out) throws IOException, GeneralSecurityException {
+        // Sig_structure = ["Signature1", protected, external_aad, payload]. the payload is fed to
+        // the signature directly instead of being copied into the structure
+        var sigStructure = new ByteArrayOutputStream(protectedHeader.length + 32);
+        var sigCbor = new CborWriter(sigStructure);
+        sigCbor.writeArrayHeader(4);
+        sigCbor.writeText("Signature1");
+        sigCbor.writeBytes(protectedHeader);
+        sigCbor.writeBytes(new byte[0]);
+        sigCbor.writeByteStringHeader(payload.length);
+        Signature engine = signer.initSign();
+        engine.update(sigStructure.toByteArray());
+        engine.update(payload);
+
+        var cbor = new CborWriter(out);
+        cbor.writeTag(COSE_SIGN1_TAG);
+        cbor.writeArrayHeader(4);
+        cbor.writeBytes(protectedHeader);
+        out.write(unprotectedHeader);
+        cbor.writeBytes(payload);
+        cbor.writeBytes(engine.sign());
+    }
+}
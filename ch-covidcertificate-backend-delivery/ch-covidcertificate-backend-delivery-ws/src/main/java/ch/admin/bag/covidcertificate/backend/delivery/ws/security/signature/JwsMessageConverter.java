@@ -1,25 +1,28 @@
 package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
 
+import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.jsonwebtoken.Jwts;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
 import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpInputMessage;
 import org.springframework.http.HttpOutputMessage;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.http.converter.HttpMessageNotWritableException;
-import org.springframework.util.StreamUtils;
 
 /**
  * Implementation of {@link HttpMessageConverter} that can write any object as JWS. <br>
@@ -29,6 +32,8 @@ import org.springframework.util.StreamUtils;
  */
 public class JwsMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
 
+    private static final Logger logger = LoggerFactory.getLogger(JwsMessageConverter.class);
+
     public static final MediaType JWS_MEDIA_TYPE = new MediaType("application", "json+jws");
     private final KeyStore keyStore;
     private final ObjectMapper objectMapper;
@@ -36,14 +41,32 @@ public class JwsMessageConverter extends AbstractGenericHttpMessageConverter<Obj
     private final char[] password;
     private final ArrayList<byte[]> certificateChain;
     private final Key privateKey;
+    private final JwsSigner signer;
+    private final JwsSignatureCache signatureCache;
 
     public JwsMessageConverter(KeyStore keyStore, char[] password)
             throws KeyStoreException, CertificateEncodingException, UnrecoverableKeyException,
                     NoSuchAlgorithmException {
+        this(keyStore, password, null, JwsSignatureCache.disabled());
+    }
+
+    /**
+     * @param alias alias of the signing key. the first alias in the key store is used if empty.
+     *     the jws algorithm is detected from the key type
+     */
+    public JwsMessageConverter(
+            KeyStore keyStore, char[] password, String alias, JwsSignatureCache signatureCache)
+            throws KeyStoreException, CertificateEncodingException, UnrecoverableKeyException,
+                    NoSuchAlgorithmException {
         super(JWS_MEDIA_TYPE);
+        this.signatureCache = signatureCache;
         this.keyStore = keyStore;
         this.objectMapper = new ObjectMapper();
-        this.alias = this.keyStore.aliases().nextElement();
+        this.alias =
+                alias == null || alias.isEmpty() ? this.keyStore.aliases().nextElement() : alias;
+        if (!this.keyStore.isKeyEntry(this.alias)) {
+            throw new KeyStoreException("no signing key with alias " + this.alias);
+        }
         this.password = password;
         this.certificateChain =
                 new ArrayList<>(this.keyStore.getCertificateChain(this.alias).length);
@@ -52,6 +75,8 @@ public class JwsMessageConverter extends AbstractGenericHttpMessageConverter<Obj
         }
 
         this.privateKey = keyStore.getKey(this.alias, this.password);
+        this.signer = new JwsSigner((PrivateKey) this.privateKey, this.certificateChain);
+        logger.info("signing jws with {} key {}", this.signer.getAlgorithm(), this.alias);
     }
 
     @Override
@@ -75,16 +100,33 @@ public class JwsMessageConverter extends AbstractGenericHttpMessageConverter<Obj
     @Override
     protected void writeInternal(Object t, Type type, HttpOutputMessage outputMessage)
             throws IOException, HttpMessageNotWritableException {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> claims = objectMapper.convertValue(t, Map.class);
-        String signature;
-        signature =
-                Jwts.builder()
-                        .setHeaderParam("x5c", this.certificateChain)
-                        .setClaims(claims)
-                        .signWith(this.privateKey)
-                        .compact();
+        try {
+            if (t instanceof JsonSerializable) {
+                // serializes itself while it is written, e.g. straight from the database. never
+                // converted to claims, that would load it into memory
+                signer.write(t, outputMessage.getBody());
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> claims = objectMapper.convertValue(t, Map.class);
+            if (JwsSignatureCache.isCacheable(claims)) {
+                outputMessage.getBody().write(signatureCache.get(claims, this::sign));
+            } else {
+                // large payloads are signed while they are written
+                signer.write(claims, outputMessage.getBody());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new HttpMessageNotWritableException("could not sign response", e);
+        }
+    }
 
-        StreamUtils.copy(signature, StandardCharsets.UTF_8, outputMessage.getBody());
+    private byte[] sign(Map<String, Object> claims) {
+        var out = new ByteArrayOutputStream();
+        try {
+            signer.write(claims, out);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("could not sign response", e);
+        }
+        return out.toByteArray();
     }
 }
@@ -0,0 +1,60 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Size and TTL bounded cache of signed JWS keyed by their claims. Only claims without any content
+ * (e.g. the empty covid cert delivery) are cached, so the same few signatures are served for most
+ * responses. The TTL bounds how long a signature is reused before the claims are signed again.
+ */
+public class JwsSignatureCache {
+
+    private final Cache<Map<String, Object>, byte[]> cache;
+
+    public JwsSignatureCache(long maximumSize, Duration expireAfterWrite) {
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumSize(maximumSize)
+                        .expireAfterWrite(expireAfterWrite)
+                        .recordStats()
+                        .build();
+    }
+
+    /** cache that never holds any entries */
+    public static JwsSignatureCache disabled() {
+        return new JwsSignatureCache(0, Duration.ZERO);
+    }
+
+    /**
+     * @return the jws for the given claims, signed by the signer if not cached
+     */
+    public byte[] get(Map<String, Object> claims, Function<Map<String, Object>, byte[]> signer) {
+        if (!isCacheable(claims)) {
+            return signer.apply(claims);
+        }
+        return cache.get(claims, signer);
+    }
+
+    /** underlying caffeine cache, used to bind the cache metrics */
+    public Cache<Map<String, Object>, byte[]> getNativeCache() {
+        return cache;
+    }
+
+    /** claims without content, all values are null or empty */
+    public static boolean isCacheable(Map<String, Object> claims) {
+        for (Object value : claims.values()) {
+            if (value == null
+                    || (value instanceof Collection && ((Collection<?>) value).isEmpty())
+                    || (value instanceof Map && ((Map<?, ?>) value).isEmpty())) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+}
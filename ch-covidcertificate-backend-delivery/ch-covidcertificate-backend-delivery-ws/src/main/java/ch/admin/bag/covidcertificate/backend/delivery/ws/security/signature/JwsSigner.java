@@ -0,0 +1,145 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.jsonwebtoken.SignatureAlgorithm;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.EdECPrivateKey;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes compact JWS straight to an output stream. The payload is serialized, base64url encoded and
+ * fed to the signature while it is written, so the JWS is never held in memory. The encoded header
+ * only depends on the key and the certificate chain and is built once. The algorithm is detected
+ * from the key: RS256/384/512 for rsa, ES256/384/512 for ec and EdDSA for Ed25519 keys.
+ */
+class JwsSigner {
+
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+    private static final String ED25519 = "Ed25519";
+
+    private final ObjectMapper objectMapper;
+    private final PrivateKey privateKey;
+    private final String algorithm;
+    private final ThreadLocal<Signature> signature;
+    private final byte[] encodedHeader;
+
+    JwsSigner(PrivateKey privateKey, List<byte[]> certificateChain)
+            throws NoSuchAlgorithmException {
+        this.objectMapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.privateKey = privateKey;
+        String jcaName;
+        if (privateKey instanceof EdECPrivateKey) {
+            // not supported by jjwt. the signature engine buffers the whole payload, since eddsa
+            // hashes the message twice
+            String curve = ((EdECPrivateKey) privateKey).getParams().getName();
+            if (!ED25519.equalsIgnoreCase(curve)) {
+                throw new NoSuchAlgorithmException("unsupported jws signing curve: " + curve);
+            }
+            this.algorithm = "EdDSA";
+            jcaName = ED25519;
+        } else {
+            SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.forSigningKey(privateKey);
+            this.algorithm = signatureAlgorithm.getValue();
+            jcaName =
+                    signatureAlgorithm.isEllipticCurve()
+                            // jws expects the raw r || s concatenation instead of der
+                            ? signatureAlgorithm.getJcaName() + "inP1363Format"
+                            : signatureAlgorithm.getJcaName();
+        }
+        // fail on startup if the algorithm is not available
+        Signature.getInstance(jcaName);
+        this.signature =
+                ThreadLocal.withInitial(
+                        () -> {
+                            try {
+                                return Signature.getInstance(jcaName);
+                            } catch (GeneralSecurityException e) {
+                                throw new IllegalStateException("could not create signature", e);
+                            }
+                        });
+
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("x5c", certificateChain);
+        header.put("alg", algorithm);
+        try {
+            this.encodedHeader =
+                    (BASE64URL.encodeToString(objectMapper.writeValueAsBytes(header)) + ".")
+                            .getBytes(StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not serialize jws header", e);
+        }
+    }
+
+    /**
+     * @return jws algorithm detected from the private key, e.g. RS256, ES256 or EdDSA
+     */
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return signature engine of the current thread, initialized with the private key
+     */
+    Signature initSign() throws InvalidKeyException {
+        Signature engine = signature.get();
+        engine.initSign(privateKey);
+        return engine;
+    }
+
+    /** writes the payload signed as compact jws to the output stream. the stream is not closed */
+    void write(Object payload, OutputStream out) throws IOException, GeneralSecurityException {
+        Signature engine = initSign();
+        var signingOut = new SigningOutputStream(out, engine);
+        signingOut.write(encodedHeader);
+        // closing the encoder writes the remaining bytes, the signing stream stays open
+        try (OutputStream encodedPayload = BASE64URL.wrap(signingOut)) {
+            objectMapper.writeValue(encodedPayload, payload);
+        }
+        out.write('.');
+        out.write(BASE64URL.encode(engine.sign()));
+    }
+
+    /** forwards everything to the output stream and the signature, never closes the stream */
+    private static class SigningOutputStream extends FilterOutputStream {
+
+        private final Signature signature;
+
+        SigningOutputStream(OutputStream out, Signature signature) {
+            super(out);
+            this.signature = signature;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                signature.update(b, off, len);
+            } catch (SignatureException e) {
+                throw new IOException("could not sign jws", e);
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // the underlying stream is closed by its owner
+        }
+    }
+}
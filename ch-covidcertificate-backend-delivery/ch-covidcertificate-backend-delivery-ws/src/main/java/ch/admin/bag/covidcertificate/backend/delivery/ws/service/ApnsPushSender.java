@@ -0,0 +1,80 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import com.eatthepath.pushy.apns.ApnsClient;
+import com.eatthepath.pushy.apns.ApnsClientBuilder;
+import com.eatthepath.pushy.apns.ApnsPushNotification;
+import com.eatthepath.pushy.apns.DeliveryPriority;
+import com.eatthepath.pushy.apns.auth.ApnsSigningKey;
+import com.eatthepath.pushy.apns.proxy.HttpProxyHandlerFactory;
+import com.eatthepath.pushy.apns.util.ApnsPayloadBuilder;
+import com.eatthepath.pushy.apns.util.SimpleApnsPayloadBuilder;
+import com.eatthepath.pushy.apns.util.SimpleApnsPushNotification;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/** Sends background pushes to iOS devices through APNs. */
+public class ApnsPushSender extends PipelinedPushSender {
+
+    private static final List<String> INVALID_TOKEN_REJECTION_REASONS =
+            List.of("BadDeviceToken", "Unregistered", "DeviceTokenNotForTopic");
+
+    private final ApnsClient apnsClient;
+    private final String topic;
+    private final String payload;
+
+    public ApnsPushSender(ApnsClient apnsClient, String topic, int maxInFlight) {
+        super(maxInFlight);
+        this.apnsClient = apnsClient;
+        this.topic = topic;
+        final ApnsPayloadBuilder payloadBuilder = new SimpleApnsPayloadBuilder();
+        payloadBuilder.setContentAvailable(true);
+        this.payload = payloadBuilder.build();
+    }
+
+    /**
+     * @param apnsHost {@link ApnsClientBuilder#PRODUCTION_APNS_HOST} or {@link
+     *     ApnsClientBuilder#DEVELOPMENT_APNS_HOST}
+     * @param signingKey p8 file
+     */
+    public static ApnsClient createApnsClient(
+            String apnsHost, byte[] signingKey, String teamId, String keyId) {
+        try (final var inputStream = new ByteArrayInputStream(signingKey)) {
+            var key = ApnsSigningKey.loadFromInputStream(inputStream, teamId, keyId);
+            return new ApnsClientBuilder()
+                    .setApnsServer(apnsHost)
+                    .setSigningKey(key)
+                    .setProxyHandlerFactory(HttpProxyHandlerFactory.fromSystemProxies(apnsHost))
+                    .build();
+        } catch (InvalidKeyException
+                | NoSuchAlgorithmException
+                | IOException
+                | URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Boolean> sendSilentPush(String pushToken) {
+        ApnsPushNotification notification =
+                new SimpleApnsPushNotification(
+                        pushToken,
+                        topic,
+                        payload,
+                        null,
+                        DeliveryPriority.CONSERVE_POWER,
+                        com.eatthepath.pushy.apns.PushType.BACKGROUND);
+        return apnsClient
+                .sendNotification(notification)
+                .thenApply(
+                        response ->
+                                !response.isAccepted()
+                                        && response.getRejectionReason()
+                                                .map(INVALID_TOKEN_REJECTION_REASONS::contains)
+                                                .orElse(false));
+    }
+}
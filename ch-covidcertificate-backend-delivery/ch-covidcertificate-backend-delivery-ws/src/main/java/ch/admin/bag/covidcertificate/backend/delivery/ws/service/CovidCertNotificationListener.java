@@ -0,0 +1,101 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.JdbcDeliveryDataServiceImpl;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens on {@link JdbcDeliveryDataServiceImpl#COVIDCERT_NOTIFY_CHANNEL} and wakes up the waiters
+ * registered for the inserted transfer. Waiters are called on a small dispatch pool, never on the
+ * listener thread. After (re)connecting all waiters are woken up, since notifications sent while
+ * not listening are lost.
+ */
+public class CovidCertNotificationListener extends NotificationListener {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CovidCertNotificationListener.class);
+
+    private final Map<Integer, Set<Runnable>> waiters = new ConcurrentHashMap<>();
+    private final ExecutorService dispatchExecutor;
+
+    public CovidCertNotificationListener(DataSource dataSource, int dispatchThreads) {
+        super(dataSource, JdbcDeliveryDataServiceImpl.COVIDCERT_NOTIFY_CHANNEL);
+        var threadCount = new AtomicInteger();
+        this.dispatchExecutor =
+                Executors.newFixedThreadPool(
+                        dispatchThreads,
+                        r -> {
+                            var thread =
+                                    new Thread(
+                                            r,
+                                            "covidcert-notify-dispatch-"
+                                                    + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    /**
+     * registers a waiter for covid certs of the given transfer. the waiter may be called more than
+     * once and must re-check the db.
+     *
+     * @return handle to unregister the waiter
+     */
+    public Runnable register(Integer transferPk, Runnable waiter) {
+        waiters.computeIfAbsent(transferPk, pk -> ConcurrentHashMap.newKeySet()).add(waiter);
+        return () ->
+                waiters.computeIfPresent(
+                        transferPk,
+                        (pk, transferWaiters) -> {
+                            transferWaiters.remove(waiter);
+                            return transferWaiters.isEmpty() ? null : transferWaiters;
+                        });
+    }
+
+    public int getWaiterCount() {
+        return waiters.values().stream().mapToInt(Set::size).sum();
+    }
+
+    @Override
+    protected void onListening() {
+        waiters.keySet().forEach(this::wake);
+    }
+
+    @Override
+    protected void onNotification(String transferPk) {
+        try {
+            wake(Integer.valueOf(transferPk));
+        } catch (NumberFormatException e) {
+            logger.warn("received invalid covid cert notification: {}", transferPk);
+        }
+    }
+
+    private void wake(Integer transferPk) {
+        Set<Runnable> transferWaiters = waiters.get(transferPk);
+        if (transferWaiters == null) {
+            return;
+        }
+        for (Runnable waiter : transferWaiters) {
+            try {
+                dispatchExecutor.execute(waiter);
+            } catch (RejectedExecutionException e) {
+                // closed
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        dispatchExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,245 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCertStagingStats;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbStagedCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.Crypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains the covid certs staged by the cgs controller: looks up the transfer, encrypts the covid
+ * cert and inserts it. Failed covid certs are retried with exponential backoff until the maximum
+ * number of attempts, covid certs of unknown transfers or with invalid public keys are
+ * dead-lettered right away. Every instance drains with its own threads, the claim makes sure no
+ * covid cert is processed twice at the same time.
+ */
+public class CovidCertStagingWorker implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CovidCertStagingWorker.class);
+
+    private final DeliveryDataService deliveryDataService;
+    private final Crypto ecCrypto;
+    private final Crypto rsaCrypto;
+    private final IosHeartbeatSilentPush silentPush;
+    private final int threads;
+    private final Duration pollInterval;
+    private final Duration lease;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final Duration retryBackoff;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private volatile DbCovidCertStagingStats stats = new DbCovidCertStagingStats();
+
+    public CovidCertStagingWorker(
+            DeliveryDataService deliveryDataService,
+            Crypto ecCrypto,
+            Crypto rsaCrypto,
+            IosHeartbeatSilentPush silentPush,
+            int threads,
+            Duration pollInterval,
+            Duration lease,
+            int batchSize,
+            int maxAttempts,
+            Duration retryBackoff) {
+        this.deliveryDataService = deliveryDataService;
+        this.ecCrypto = ecCrypto;
+        this.rsaCrypto = rsaCrypto;
+        this.silentPush = silentPush;
+        this.threads = threads;
+        this.pollInterval = pollInterval;
+        this.lease = lease;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoff = retryBackoff;
+        var threadCount = new AtomicInteger();
+        // one more thread refreshes the staging stats
+        this.executor =
+                Executors.newScheduledThreadPool(
+                        threads + 1,
+                        r -> {
+                            var thread =
+                                    new Thread(
+                                            r,
+                                            "covidcert-staging-"
+                                                    + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    public void start() {
+        long pollMillis = pollInterval.toMillis();
+        for (int i = 0; i < threads; i++) {
+            executor.scheduleWithFixedDelay(this::drain, 0, pollMillis, TimeUnit.MILLISECONDS);
+        }
+        executor.scheduleWithFixedDelay(this::refreshStats, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** processes staged covid certs until none is due anymore */
+    void drain() {
+        try {
+            List<DbStagedCovidCert> claimed;
+            do {
+                claimed = deliveryDataService.claimStagedCovidCerts(lease, batchSize);
+                for (DbStagedCovidCert stagedCovidCert : claimed) {
+                    process(stagedCovidCert);
+                }
+            } while (claimed.size() == batchSize && !executor.isShutdown());
+        } catch (RuntimeException e) {
+            // keep the scheduled task alive, claimed covid certs are due again after the lease
+            logger.error("could not drain staged covid certs", e);
+        }
+    }
+
+    private void process(DbStagedCovidCert stagedCovidCert) {
+        String code = stagedCovidCert.getCode();
+        DbTransfer transfer;
+        DbCovidCert covidCert;
+        try {
+            transfer = deliveryDataService.findTransfer(code);
+            covidCert = encrypt(stagedCovidCert, transfer);
+            deliveryDataService.completeStagedCovidCert(stagedCovidCert.getPk(), covidCert);
+        } catch (CodeNotFoundException e) {
+            logger.info("cgs sent non-existent transfer code {}", code);
+            deadLetter(stagedCovidCert, "code not found");
+            return;
+        } catch (InvalidPublicKeyException e) {
+            deadLetter(stagedCovidCert, "invalid public key");
+            return;
+        } catch (IllegalArgumentException e) {
+            // thrown for invalid base64 if the pdf is compressed, retrying does not help
+            deadLetter(stagedCovidCert, "invalid pdf");
+            return;
+        } catch (Exception e) {
+            if (stagedCovidCert.getAttempts() >= maxAttempts) {
+                logger.error("could not deliver staged covid cert for transfer code {}", code, e);
+                deadLetter(stagedCovidCert, e.toString());
+            } else {
+                Duration delay = getRetryDelay(stagedCovidCert.getAttempts());
+                logger.warn(
+                        "could not deliver staged covid cert for transfer code {}. retry in {}",
+                        code,
+                        delay,
+                        e);
+                deliveryDataService.retryStagedCovidCert(
+                        stagedCovidCert.getPk(), delay, e.toString());
+                retriedCount.incrementAndGet();
+            }
+            return;
+        }
+        processedCount.incrementAndGet();
+        logger.info("encrypted and inserted staged covid cert for transfer code {}", code);
+        if (transfer.getPushRegisterId() != null) {
+            try {
+                silentPush.sendSilentPush(transfer.getPushRegisterId());
+            } catch (RuntimeException e) {
+                logger.warn("could not send silent push for transfer code {}", code, e);
+            }
+        }
+    }
+
+    private void deadLetter(DbStagedCovidCert stagedCovidCert, String error) {
+        deliveryDataService.deadLetterStagedCovidCert(stagedCovidCert.getPk(), error);
+    }
+
+    /** backoff doubles with every attempt, capped at the lease */
+    Duration getRetryDelay(int attempts) {
+        Duration delay = retryBackoff.multipliedBy(1L << Math.min(attempts - 1, 20));
+        return delay.compareTo(lease) > 0 ? lease : delay;
+    }
+
+    private DbCovidCert encrypt(DbStagedCovidCert stagedCovidCert, DbTransfer transfer)
+            throws InvalidPublicKeyException, GeneralSecurityException {
+        Crypto crypto;
+        switch (transfer.getAlgorithm()) {
+            case EC256:
+                crypto = ecCrypto;
+                break;
+            case RSA2048:
+                crypto = rsaCrypto;
+                break;
+            default:
+                logger.error("unexpected algorithm: {}", transfer.getAlgorithm());
+                throw new InvalidPublicKeyException();
+        }
+        var covidCert = new DbCovidCert();
+        covidCert.setFkTransfer(transfer.getPk());
+        covidCert.setEncryptedHcert(
+                crypto.encryptToBytes(
+                        stagedCovidCert.getHcert(),
+                        transfer.getPublicKey(),
+                        transfer.getPublicKeySha256()));
+        covidCert.setEncryptedPdf(
+                crypto.encryptPdf(
+                        stagedCovidCert.getPdf(),
+                        transfer.getAcceptedPdfCompression(),
+                        transfer.getPublicKey(),
+                        transfer.getPublicKeySha256()));
+        covidCert.setPdfCompression(transfer.getAcceptedPdfCompression());
+        covidCert.setIdempotencyKey(stagedCovidCert.getIdempotencyKey());
+        return covidCert;
+    }
+
+    private void refreshStats() {
+        try {
+            stats = deliveryDataService.getCovidCertStagingStats();
+        } catch (RuntimeException e) {
+            logger.warn("could not load covid cert staging stats", e);
+        }
+    }
+
+    /**
+     * @return number of staged covid certs waiting to be delivered
+     */
+    public long getPendingCount() {
+        return stats.getPending();
+    }
+
+    /**
+     * @return number of dead-lettered covid certs still in the staging table
+     */
+    public long getDeadLetteredCount() {
+        return stats.getDeadLettered();
+    }
+
+    /**
+     * @return seconds since the oldest pending covid cert was received, 0 if none is pending
+     */
+    public double getLagSeconds() {
+        Instant oldest = stats.getOldestPendingReceivedAt();
+        if (oldest == null) {
+            return 0;
+        }
+        return Math.max(0, Duration.between(oldest, Instant.now()).toMillis() / 1000.0);
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
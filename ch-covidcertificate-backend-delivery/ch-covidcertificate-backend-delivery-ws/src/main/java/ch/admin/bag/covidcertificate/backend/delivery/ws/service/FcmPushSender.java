@@ -0,0 +1,118 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends data only pushes to Android devices through the FCM HTTP v1 API. FCM has no batch
+ * endpoint, so every push is its own request, multiplexed over a shared HTTP/2 connection.
+ */
+public class FcmPushSender extends PipelinedPushSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(FcmPushSender.class);
+
+    private static final List<String> INVALID_TOKEN_ERROR_CODES =
+            List.of("UNREGISTERED", "SENDER_ID_MISMATCH");
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient;
+    private final URI sendUri;
+    private final Supplier<String> accessTokenSupplier;
+
+    /**
+     * @param fcmUrl https://fcm.googleapis.com
+     * @param accessTokenSupplier oauth2 access token with the firebase.messaging scope
+     */
+    public FcmPushSender(
+            String fcmUrl, String projectId, Supplier<String> accessTokenSupplier, int maxInFlight) {
+        super(maxInFlight);
+        this.httpClient =
+                HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .connectTimeout(REQUEST_TIMEOUT)
+                        .build();
+        this.sendUri = URI.create(fcmUrl + "/v1/projects/" + projectId + "/messages:send");
+        this.accessTokenSupplier = accessTokenSupplier;
+    }
+
+    /** fetches the access token once for all pushes, nothing is sent if that fails */
+    @Override
+    public void sendSilentPushes(
+            Collection<String> pushTokens, Consumer<List<String>> invalidTokens) {
+        String accessToken;
+        try {
+            accessToken = accessTokenSupplier.get();
+        } catch (RuntimeException e) {
+            logger.error("Could not get fcm access token. No pushes sent", e);
+            return;
+        }
+        sendPipelined(pushTokens, pushToken -> send(pushToken, accessToken), invalidTokens);
+    }
+
+    @Override
+    public CompletionStage<Boolean> sendSilentPush(String pushToken) {
+        String accessToken;
+        try {
+            accessToken = accessTokenSupplier.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(pushToken, accessToken);
+    }
+
+    private CompletionStage<Boolean> send(String pushToken, String accessToken) {
+        var request =
+                HttpRequest.newBuilder(sendUri)
+                        .timeout(REQUEST_TIMEOUT)
+                        .header("Authorization", "Bearer " + accessToken)
+                        .header("Content-Type", "application/json; charset=UTF-8")
+                        .POST(HttpRequest.BodyPublishers.ofString(createSilentPush(pushToken)))
+                        .build();
+        return httpClient
+                .sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(this::isInvalidToken);
+    }
+
+    private String createSilentPush(String pushToken) {
+        ObjectNode push = objectMapper.createObjectNode();
+        ObjectNode message = push.putObject("message");
+        message.put("token", pushToken);
+        message.putObject("android").put("priority", "NORMAL");
+        message.putObject("data").put("type", "heartbeat");
+        return push.toString();
+    }
+
+    private boolean isInvalidToken(HttpResponse<String> response) {
+        if (response.statusCode() == 200) {
+            return false;
+        }
+        try {
+            JsonNode error = objectMapper.readTree(response.body()).path("error");
+            for (JsonNode detail : error.path("details")) {
+                if (INVALID_TOKEN_ERROR_CODES.contains(detail.path("errorCode").asText())) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            logger.info("Could not parse fcm error response: {}", response.body());
+        }
+        logger.info("Push rejected by fcm with status {}", response.statusCode());
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.HashUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+
+/**
+ * Size and TTL bounded set of idempotency keys of covid certs delivered by the cgs. Retries of
+ * the cgs usually reach the same instance within seconds, they are recognized without a database
+ * round trip. The database stays authoritative, a missing key only costs the lookup.
+ */
+public class IdempotencyKeyCache {
+
+    private final Cache<String, Boolean> cache;
+
+    public IdempotencyKeyCache(long maximumSize, Duration expireAfterWrite) {
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumSize(maximumSize)
+                        .expireAfterWrite(expireAfterWrite)
+                        .recordStats()
+                        .build();
+    }
+
+    /** cache that never holds any entries */
+    public static IdempotencyKeyCache disabled() {
+        return new IdempotencyKeyCache(0, Duration.ZERO);
+    }
+
+    /**
+     * @param code transfer code
+     * @param idempotencyKey idempotency key header of the cgs, null if not sent
+     * @param hcert used instead of the header, the same covid cert is never delivered twice
+     * @return sha256 (base64) identifying the delivery of the covid cert to the transfer
+     */
+    public static String getIdempotencyKey(String code, String idempotencyKey, String hcert)
+            throws NoSuchAlgorithmException {
+        return HashUtil.getSha256Hash(
+                idempotencyKey != null
+                        ? "key:" + code + ":" + idempotencyKey
+                        : "hcert:" + code + ":" + hcert);
+    }
+
+    public boolean contains(String idempotencyKey) {
+        return cache.getIfPresent(idempotencyKey) != null;
+    }
+
+    public void put(String idempotencyKey) {
+        cache.put(idempotencyKey, Boolean.TRUE);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** underlying caffeine cache, used to bind the cache metrics */
+    public Cache<String, Boolean> getNativeCache() {
+        return cache;
+    }
+}
@@ -5,6 +5,18 @@ import java.time.Duration;
 public interface IosHeartbeatSilentPush {
     public void sendHeartbeats(Duration pushInterval, int pushLimit);
 
+    /**
+     * Claims and pushes batches of due registrations until none are left. Safe to run on all
+     * instances at the same time, every instance only pushes the registrations it claimed.
+     */
+    public void sendClaimedHeartbeats(Duration pushInterval, int batchSize);
+
+    /**
+     * Sends a silent push to the device with the given register id, if it has a push registration.
+     * Returns right away, the registration is looked up and pushed in the background.
+     */
+    public void sendSilentPush(String registerId);
+
     public void checkPushSchedule(Duration pushInterval, Duration pushSchedule, int batchSize);
 
     static float calculatePushLoadFactor(Duration pushInterval, Duration pushSchedule, int batchSize, int numRegistrations){
@@ -3,29 +3,13 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
-import com.eatthepath.pushy.apns.ApnsClient;
-import com.eatthepath.pushy.apns.ApnsClientBuilder;
-import com.eatthepath.pushy.apns.ApnsPushNotification;
-import com.eatthepath.pushy.apns.DeliveryPriority;
-import com.eatthepath.pushy.apns.PushNotificationResponse;
-import com.eatthepath.pushy.apns.auth.ApnsSigningKey;
-import com.eatthepath.pushy.apns.proxy.HttpProxyHandlerFactory;
-import com.eatthepath.pushy.apns.util.ApnsPayloadBuilder;
-import com.eatthepath.pushy.apns.util.SimpleApnsPayloadBuilder;
-import com.eatthepath.pushy.apns.util.SimpleApnsPushNotification;
-import com.eatthepath.pushy.apns.util.concurrent.PushNotificationFuture;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import javax.annotation.PostConstruct;
+import java.util.concurrent.Executor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +17,9 @@ import org.slf4j.LoggerFactory;
  * Sends periodic silent pushes to all iOS devices. This should wake up the app and let the app sync
  * problematic events. (Note: Only EN disabled apps register with our server.)
  *
+ * <p>Every push type is sent through its own {@link PushSender}. Registrations of push types
+ * without a sender are not pushed. Single silent pushes run on the {@link SilentPushExecutor}.
+ *
  * @author meinen
  */
 public class IosHeartbeatSilentPushImpl implements IosHeartbeatSilentPush {
@@ -40,71 +27,88 @@ public class IosHeartbeatSilentPushImpl implements IosHeartbeatSilentPush {
     private static final Logger logger = LoggerFactory.getLogger(IosHeartbeatSilentPushImpl.class);
 
     private final DeliveryDataService pushRegistrationDataService;
-    private final String topic;
-    private final byte[] signingKey;
-    private final String teamId;
-    private final String keyId;
-    private ApnsClient apnsClient;
-    private ApnsClient apnsClientSandbox;
+    private final Map<PushType, PushSender> pushSenders;
+    private final Executor silentPushExecutor;
 
     public IosHeartbeatSilentPushImpl(
             final DeliveryDataService pushRegistrationDataService,
-            byte[] signingKey,
-            String teamId,
-            String keyId,
-            String topic) {
+            Map<PushType, PushSender> pushSenders,
+            Executor silentPushExecutor) {
         this.pushRegistrationDataService = pushRegistrationDataService;
-        this.teamId = teamId;
-        this.signingKey = signingKey;
-        this.keyId = keyId;
-        this.topic = topic;
-    }
-
-    @PostConstruct
-    private void initApnsClients() {
-        try (final var inputStream = new ByteArrayInputStream(signingKey)) {
-            var key = ApnsSigningKey.loadFromInputStream(inputStream, teamId, keyId);
-
-            this.apnsClient =
-                    new ApnsClientBuilder()
-                            .setApnsServer(ApnsClientBuilder.PRODUCTION_APNS_HOST)
-                            .setSigningKey(key)
-                            .setProxyHandlerFactory(
-                                    HttpProxyHandlerFactory.fromSystemProxies(
-                                            ApnsClientBuilder.PRODUCTION_APNS_HOST))
-                            .build();
-
-            this.apnsClientSandbox =
-                    new ApnsClientBuilder()
-                            .setApnsServer(ApnsClientBuilder.DEVELOPMENT_APNS_HOST)
-                            .setSigningKey(key)
-                            .setProxyHandlerFactory(
-                                    HttpProxyHandlerFactory.fromSystemProxies(
-                                            ApnsClientBuilder.DEVELOPMENT_APNS_HOST))
-                            .build();
-        } catch (InvalidKeyException
-                | NoSuchAlgorithmException
-                | IOException
-                | URISyntaxException e) {
-            throw new IllegalStateException(e);
-        }
+        this.pushSenders = new EnumMap<>(PushType.class);
+        this.pushSenders.putAll(pushSenders);
+        this.silentPushExecutor = silentPushExecutor;
     }
 
     public void sendHeartbeats(Duration pushInterval, int pushLimit) {
         logger.info("Send iOS heartbeat push");
         logger.info("Load batch of tokens from database");
-        for (PushType pushType : PushType.values()) {
+        for (PushType pushType : pushSenders.keySet()) {
             List <PushRegistration> registrationList =
                 pushRegistrationDataService.getDuePushRegistrations(pushType, pushInterval, pushLimit);
             logger.info("Retrieved {} {} push tokens", registrationList.size(), pushType);
-            Set<String> pushTokens = new HashSet<>();
-            registrationsToTokens(registrationList, pushTokens);
-            sendPushNotificationsBatch(pushTokens, pushType);
+            sendPushNotifications(registrationList, pushType);
             pushRegistrationDataService.updateLastPushTImes(registrationList);
         }
         logger.info("iOS hearbeat push done");
     }
 
+    @Override
+    public void sendClaimedHeartbeats(Duration pushInterval, int batchSize) {
+        logger.info("Send iOS heartbeat push for claimed registrations");
+        for (PushType pushType : pushSenders.keySet()) {
+            var claimed = 0;
+            List<PushRegistration> registrationList;
+            do {
+                // claimed registrations already have their last push set, so every batch only
+                // contains registrations that are still due and not claimed by another instance
+                registrationList =
+                        pushRegistrationDataService.claimDuePushRegistrations(
+                                pushType, pushInterval, batchSize);
+                claimed += registrationList.size();
+                sendPushNotifications(registrationList, pushType);
+            } while (registrationList.size() >= batchSize);
+            logger.info("Claimed and pushed {} {} push tokens", claimed, pushType);
+        }
+        logger.info("iOS hearbeat push done");
+    }
+
+    @Override
+    public void sendSilentPush(String registerId) {
+        silentPushExecutor.execute(() -> doSendSilentPush(registerId));
+    }
+
+    private void doSendSilentPush(String registerId) {
+        PushRegistration registration = pushRegistrationDataService.findPushRegistration(registerId);
+        if (registration == null) {
+            logger.info("No push registration for register id, no silent push sent");
+            return;
+        }
+        PushSender pushSender = pushSenders.get(registration.getPushType());
+        if (pushSender == null) {
+            logger.info("No push sender for {}, no silent push sent", registration.getPushType());
+            return;
+        }
+        String pushToken = registration.getPushToken();
+        pushSender
+                .sendSilentPush(pushToken)
+                .whenCompleteAsync(
+                        (invalid, cause) -> {
+                            if (cause != null) {
+                                logger.info("Exception sending silent push", cause);
+                            } else if (Boolean.TRUE.equals(invalid)) {
+                                pushRegistrationDataService.removeRegistrations(List.of(pushToken));
+                            }
+                        },
+                        silentPushExecutor);
+    }
+
+    private void sendPushNotifications(List<PushRegistration> registrationList, PushType pushType) {
+        Set<String> pushTokens = new HashSet<>();
+        registrationsToTokens(registrationList, pushTokens);
+        sendPushNotificationsBatch(pushTokens, pushType);
+    }
+
     @Override
     public void checkPushSchedule(Duration pushInterval, Duration pushSchedule, int batchSize) {
         float loadFactor = IosHeartbeatSilentPush.calculatePushLoadFactor(pushInterval, pushSchedule, batchSize, pushRegistrationDataService.countRegistrations());
@@ -137,70 +141,9 @@ public class IosHeartbeatSilentPushImpl implements IosHeartbeatSilentPush {
         return maxId;
     }
 
-    private void sendPushNotificationsBatch(Set<String> iosPushTokens, PushType pushType) {
-        final var appleIosPushData = createAppleSilentPushNotifications(iosPushTokens);
-
-        List<
-                        PushNotificationFuture<
-                                ApnsPushNotification,
-                                PushNotificationResponse<ApnsPushNotification>>>
-                responseList = new ArrayList<>();
-        ApnsClient client;
-        if (PushType.IOS.equals(pushType)) {
-            client = apnsClient;
-        } else {
-            client = apnsClientSandbox;
-        }
-        for (ApnsPushNotification notification : appleIosPushData) {
-            PushNotificationFuture<
-                            ApnsPushNotification, PushNotificationResponse<ApnsPushNotification>>
-                    f = client.sendNotification(notification);
-            responseList.add(f);
-        }
-
-        List<String> tokensToRemove = new ArrayList<>();
-        for (PushNotificationFuture<
-                        ApnsPushNotification, PushNotificationResponse<ApnsPushNotification>>
-                f : responseList) {
-            try {
-                PushNotificationResponse<ApnsPushNotification> r = f.get();
-                if (!r.isAccepted()
-                        && List.of("BadDeviceToken", "Unregistered", "DeviceTokenNotForTopic")
-                                .contains(r.getRejectionReason())) {
-                    // collect bad/unregistered device tokens and remove from database
-                    tokensToRemove.add(r.getPushNotification().getToken());
-                }
-            } catch (ExecutionException e) {
-                logger.info("Exception waiting for response. Continue", e);
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                logger.error("Current thread was interrrupted", ex);
-                break;
-            }
-        }
-
-        logger.info(
-                "All notification sent. Got {} invalid tokens to remove", tokensToRemove.size());
-        pushRegistrationDataService.removeRegistrations(tokensToRemove);
-    }
-
-    private List<ApnsPushNotification> createAppleSilentPushNotifications(
-            final Set<String> applePushTokens) {
-        List<ApnsPushNotification> result = new ArrayList<>();
-        final ApnsPayloadBuilder payloadBuilder = new SimpleApnsPayloadBuilder();
-        payloadBuilder.setContentAvailable(true);
-        String payload = payloadBuilder.build();
-        for (String token : applePushTokens) {
-            var notification =
-                    new SimpleApnsPushNotification(
-                            token,
-                            this.topic,
-                            payload,
-                            null,
-                            DeliveryPriority.CONSERVE_POWER,
-                            com.eatthepath.pushy.apns.PushType.BACKGROUND);
-            result.add(notification);
-        }
-        return result;
+    private void sendPushNotificationsBatch(Set<String> pushTokens, PushType pushType) {
+        pushSenders
+                .get(pushType)
+                .sendSilentPushes(pushTokens, pushRegistrationDataService::removeRegistrations);
     }
 }
@@ -11,6 +11,16 @@ public class MockIosHeartBeatSilentPush implements IosHeartbeatSilentPush {
         // do nothing
     }
 
+    @Override
+    public void sendClaimedHeartbeats(Duration pushInterval, int batchSize) {
+        // do nothing
+    }
+
+    @Override
+    public void sendSilentPush(String registerId) {
+        // do nothing
+    }
+
     @Override
     public void checkPushSchedule(Duration pushInterval, Duration pushSchedule, int batchSize) {
         // do nothing
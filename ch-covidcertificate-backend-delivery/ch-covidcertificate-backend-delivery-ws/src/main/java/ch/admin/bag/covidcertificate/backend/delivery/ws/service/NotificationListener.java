@@ -0,0 +1,98 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens on a postgres notification channel with one dedicated connection on its own thread and
+ * reconnects with backoff if the connection fails. Notifications sent while not listening are
+ * lost, so {@link #onListening()} is called after every (re)connect to catch up.
+ */
+public abstract class NotificationListener implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NotificationListener.class);
+
+    private static final int POLL_TIMEOUT_MILLIS = 10_000;
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private final DataSource dataSource;
+    private final String channel;
+    private final Thread listenerThread;
+    private volatile boolean listening = false;
+    private volatile boolean closed = false;
+
+    protected NotificationListener(DataSource dataSource, String channel) {
+        this.dataSource = dataSource;
+        this.channel = channel;
+        this.listenerThread = new Thread(this::listen, channel + "-listener");
+        this.listenerThread.setDaemon(true);
+    }
+
+    public void start() {
+        listenerThread.start();
+    }
+
+    public boolean isListening() {
+        return listening;
+    }
+
+    /** called on the listener thread whenever listening (again) */
+    protected abstract void onListening();
+
+    /** called on the listener thread for every notification, must not block */
+    protected abstract void onNotification(String parameter);
+
+    private void listen() {
+        var backoff = Duration.ofSeconds(1);
+        while (!closed) {
+            try (Connection connection = dataSource.getConnection();
+                    Statement statement = connection.createStatement()) {
+                statement.execute("listen " + channel);
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                logger.info("listening for {} notifications", channel);
+                listening = true;
+                backoff = Duration.ofSeconds(1);
+                onListening();
+                while (!closed) {
+                    PGNotification[] notifications =
+                            pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            onNotification(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                listening = false;
+                if (closed) {
+                    return;
+                }
+                logger.error("{} listener failed. retry in {}", channel, backoff, e);
+                try {
+                    Thread.sleep(backoff.toMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = backoff.multipliedBy(2);
+                if (backoff.compareTo(MAX_BACKOFF) > 0) {
+                    backoff = MAX_BACKOFF;
+                }
+            }
+        }
+        listening = false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        listenerThread.interrupt();
+    }
+}
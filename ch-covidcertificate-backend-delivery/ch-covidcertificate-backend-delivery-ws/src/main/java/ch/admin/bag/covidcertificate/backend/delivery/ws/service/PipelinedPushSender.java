@@ -0,0 +1,99 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the pushes one by one without waiting for the responses, but keeps at most maxInFlight
+ * pushes waiting for their response at any time. This bounds the memory held by pending pushes and
+ * the number of concurrent streams towards the push service. Invalid tokens are reported in chunks
+ * while the pushes are still being sent.
+ */
+public abstract class PipelinedPushSender implements PushSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedPushSender.class);
+
+    private static final int INVALID_TOKENS_CHUNK_SIZE = 100;
+
+    private final int maxInFlight;
+
+    protected PipelinedPushSender(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void sendSilentPushes(
+            Collection<String> pushTokens, Consumer<List<String>> invalidTokens) {
+        sendPipelined(pushTokens, this::sendSilentPush, invalidTokens);
+    }
+
+    /** sends every token with the given send function, for senders that prepare a run once */
+    protected void sendPipelined(
+            Collection<String> pushTokens,
+            Function<String, CompletionStage<Boolean>> send,
+            Consumer<List<String>> invalidTokens) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Queue<String> tokensToRemove = new ConcurrentLinkedQueue<>();
+        var removed = 0;
+        try {
+            for (String token : pushTokens) {
+                inFlight.acquire();
+                CompletionStage<Boolean> response;
+                try {
+                    response = send.apply(token);
+                } catch (RuntimeException e) {
+                    // no response will complete, give the permit back right away
+                    inFlight.release();
+                    logger.info("Exception sending push. Continue", e);
+                    continue;
+                }
+                response.whenComplete(
+                        (invalid, cause) -> {
+                            try {
+                                if (cause != null) {
+                                    logger.info("Exception waiting for response. Continue", cause);
+                                } else if (Boolean.TRUE.equals(invalid)) {
+                                    tokensToRemove.add(token);
+                                }
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                if (tokensToRemove.size() >= INVALID_TOKENS_CHUNK_SIZE) {
+                    removed += drainTo(tokensToRemove, invalidTokens);
+                }
+            }
+            // wait for the outstanding responses
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.error("Current thread was interrrupted", ex);
+        }
+        removed += drainTo(tokensToRemove, invalidTokens);
+        logger.info("All notification sent. Got {} invalid tokens to remove", removed);
+    }
+
+    private static int drainTo(Queue<String> tokensToRemove, Consumer<List<String>> invalidTokens) {
+        List<String> tokens = new ArrayList<>();
+        String token;
+        while ((token = tokensToRemove.poll()) != null) {
+            tokens.add(token);
+        }
+        if (!tokens.isEmpty()) {
+            invalidTokens.accept(tokens);
+        }
+        return tokens.size();
+    }
+}
@@ -0,0 +1,9 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+/** how the silent push heartbeat is distributed over the instances */
+public enum PushDispatchMode {
+    /** a single instance holding the shedlock pushes all due registrations */
+    SHEDLOCK,
+    /** every instance claims and pushes batches of due registrations in parallel */
+    CLAIM
+}
@@ -0,0 +1,25 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
+/** Sends silent pushes to the devices of one push type. */
+public interface PushSender {
+
+    /**
+     * Sends a silent push to every token and returns once all of them have been answered.
+     *
+     * @param invalidTokens called with tokens the push service will never deliver to again. May be
+     *     called several times while the pushes are still being sent.
+     */
+    public void sendSilentPushes(Collection<String> pushTokens, Consumer<List<String>> invalidTokens);
+
+    /**
+     * Sends a single silent push without waiting for the response.
+     *
+     * @return completes with true if the push service will never deliver to this token again
+     */
+    public CompletionStage<Boolean> sendSilentPush(String pushToken);
+}
@@ -0,0 +1,89 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded thread pool for single silent pushes and their follow-ups, so neither runs on the request
+ * thread nor on the common pool. If all threads are busy and the queue is full, the task is
+ * dropped. The heartbeat push still wakes up the app, so a dropped push only delays the delivery.
+ */
+public class SilentPushExecutor implements Executor, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SilentPushExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @param threads number of threads
+     * @param queueCapacity maximum number of waiting tasks
+     */
+    public SilentPushExecutor(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "invalid silent push executor: threads " + threads + ", queue " + queueCapacity);
+        }
+        var threadCount = new AtomicInteger();
+        this.executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity),
+                        r -> {
+                            var thread =
+                                    new Thread(r, "silent-push-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                        (r, e) -> {
+                            if (!e.isShutdown()) {
+                                droppedCount.incrementAndGet();
+                                logger.warn("silent push executor is saturated, task dropped");
+                            }
+                        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of threads currently running a task
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return number of tasks dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
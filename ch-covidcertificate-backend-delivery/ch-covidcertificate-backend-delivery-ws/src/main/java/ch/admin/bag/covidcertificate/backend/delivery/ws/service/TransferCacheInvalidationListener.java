@@ -0,0 +1,34 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.JdbcDeliveryDataServiceImpl;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.TransferCache;
+import javax.sql.DataSource;
+
+/**
+ * Listens on {@link JdbcDeliveryDataServiceImpl#TRANSFER_DELETED_NOTIFY_CHANNEL} and removes
+ * transfers deleted by any instance from the transfer cache of this instance. The whole cache is
+ * cleared after (re)connecting, since deletions notified while not listening are lost.
+ */
+public class TransferCacheInvalidationListener extends NotificationListener {
+
+    private final TransferCache transferCache;
+
+    public TransferCacheInvalidationListener(DataSource dataSource, TransferCache transferCache) {
+        super(dataSource, JdbcDeliveryDataServiceImpl.TRANSFER_DELETED_NOTIFY_CHANNEL);
+        this.transferCache = transferCache;
+    }
+
+    @Override
+    protected void onListening() {
+        transferCache.invalidateAll();
+    }
+
+    @Override
+    protected void onNotification(String code) {
+        if (code == null || code.isEmpty()) {
+            transferCache.invalidateAll();
+        } else {
+            transferCache.invalidate(code);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.config.SchedulingConfig.ClaimedHeartbeat;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.config.SchedulingConfig.LockedHeartbeat;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
+import net.javacrumbs.shedlock.core.LockProvider;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+
+public class SchedulingConfigTest {
+
+    private final ApplicationContextRunner contextRunner =
+            new ApplicationContextRunner()
+                    // converts the duration properties as in the application
+                    .withInitializer(
+                            context ->
+                                    context.getBeanFactory()
+                                            .setConversionService(
+                                                    ApplicationConversionService
+                                                            .getSharedInstance()))
+                    .withBean(
+                            IosHeartbeatSilentPush.class,
+                            () -> mock(IosHeartbeatSilentPush.class))
+                    .withBean(DeliveryDataService.class, () -> mock(DeliveryDataService.class))
+                    .withBean(LockProvider.class, () -> mock(LockProvider.class))
+                    .withUserConfiguration(SchedulingConfig.class);
+
+    @Test
+    public void lockedHeartbeatByDefault() {
+        contextRunner.run(
+                context -> {
+                    assertThat(context).hasSingleBean(LockedHeartbeat.class);
+                    assertThat(context).doesNotHaveBean(ClaimedHeartbeat.class);
+                    // the shedlock is taken by the proxy
+                    assertTrue(AopUtils.isAopProxy(context.getBean(LockedHeartbeat.class)));
+                });
+    }
+
+    @Test
+    public void claimedHeartbeatOnly() {
+        contextRunner
+                .withPropertyValues("push.dispatchMode=CLAIM")
+                .run(
+                        context -> {
+                            assertThat(context).hasSingleBean(ClaimedHeartbeat.class);
+                            assertThat(context).doesNotHaveBean(LockedHeartbeat.class);
+                            assertFalse(
+                                    AopUtils.isAopProxy(context.getBean(ClaimedHeartbeat.class)));
+                        });
+    }
+
+    @Test
+    public void unknownDispatchModeFails() {
+        contextRunner
+                .withPropertyValues("push.dispatchMode=CLAIMS")
+                .run(
+                        context ->
+                                assertThat(context)
+                                        .getFailure()
+                                        .hasStackTraceContaining("PushDispatchMode.CLAIMS"));
+    }
+}
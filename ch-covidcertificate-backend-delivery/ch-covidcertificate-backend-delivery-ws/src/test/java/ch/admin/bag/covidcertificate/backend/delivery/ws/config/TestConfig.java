@@ -12,6 +12,8 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.config;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.MockIosHeartBeatSilentPush;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.SilentPushExecutor;
 import javax.sql.DataSource;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
@@ -39,9 +41,11 @@ public class TestConfig extends WsBaseConfig {
         return flyway;
     }
 
+    @Bean
     @Override
     public IosHeartbeatSilentPush iosHeartbeatSilentPush(
-            DeliveryDataService pushRegistrationDataService) {
-        return null;
+            DeliveryDataService pushRegistrationDataService,
+            SilentPushExecutor silentPushExecutor) {
+        return new MockIosHeartBeatSilentPush();
     }
 }
@@ -9,11 +9,13 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.TransferCache;
 import ch.admin.bag.covidcertificate.backend.delivery.data.util.CodeGenerator;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.DeliveryRegistration;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.Action;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.CryptoHelper;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IdempotencyKeyCache;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.util.TestHelper;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.nio.charset.StandardCharsets;
@@ -61,6 +63,8 @@ public abstract class BaseControllerTest {
 
     @Autowired protected DataSource dataSource;
     @Autowired protected DeliveryDataService deliveryDataService;
+    @Autowired protected TransferCache transferCache;
+    @Autowired protected IdempotencyKeyCache idempotencyKeyCache;
 
     public static PostgreSQLContainer<?> postgreSQLContainer =
             new PostgreSQLContainer<>(
@@ -82,14 +86,18 @@ public abstract class BaseControllerTest {
     protected Algorithm algorithm;
 
     protected static final String UNREGISTERED_CODE = CodeGenerator.generateCode();
-    protected static final String DUMMY_HCERT = "dummyhcert";
-    protected static final String DUMMY_PDF = "dummypdf";
+    // base64, as delivered to the app
+    protected static final String DUMMY_HCERT = "ZHVtbXloY2VydA==";
+    protected static final String DUMMY_PDF = "ZHVtbXlwZGY=";
 
     @BeforeAll
     public void setup() throws NoSuchAlgorithmException, SQLException {
         this.ecKeyPair = CryptoHelper.createEcKeyPair();
         this.rsaKeyPair = CryptoHelper.createRsaKeyPair();
         cleanDatabase(dataSource.getConnection());
+        // the application context (and its caches) is shared between test classes
+        transferCache.invalidateAll();
+        idempotencyKeyCache.invalidateAll();
     }
 
     @Test
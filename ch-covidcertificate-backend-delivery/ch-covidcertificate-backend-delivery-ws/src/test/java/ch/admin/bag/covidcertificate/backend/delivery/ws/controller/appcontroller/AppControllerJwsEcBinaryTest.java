@@ -0,0 +1,7 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.controller.appcontroller;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+/** same as {@link AppControllerJwsEcTest}, with the covid certs delivered as stored bytes */
+@SpringBootTest(properties = "ws.delivery.binary.enabled=true")
+public class AppControllerJwsEcBinaryTest extends AppControllerJwsEcTest {}
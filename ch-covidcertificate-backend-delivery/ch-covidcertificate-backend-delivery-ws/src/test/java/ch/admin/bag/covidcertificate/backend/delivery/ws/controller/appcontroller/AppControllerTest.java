@@ -5,8 +5,10 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
@@ -20,9 +22,11 @@ import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.RequestDeliveryPayload;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbCovidCert;
 import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.cbor.CborMessageConverter;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.BaseControllerTest;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.Action;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.CryptoHelper;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature.CoseMessageConverter;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.util.TestHelper;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
@@ -37,12 +41,14 @@ import org.junit.jupiter.api.Test;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MvcResult;
 
 public abstract class AppControllerTest extends BaseControllerTest {
     private static final String BASE_URL = "/app/delivery/v1";
 
     private static final String INIT_ENDPOINT = BASE_URL + "/covidcert/register";
     private static final String GET_COVID_CERT_ENDPOINT = BASE_URL + "/covidcert";
+    private static final String LONG_POLL_ENDPOINT = BASE_URL + "/covidcert/longpoll";
     private static final String COMPLETE_ENDPOINT = BASE_URL + "/covidcert/complete";
     private static final String PUSH_REGISTER_ENDPOINT = BASE_URL + "/push/register";
 
@@ -234,6 +240,65 @@ public abstract class AppControllerTest extends BaseControllerTest {
         assertFalse(deliveryDataService.transferCodeExists(code));
     }
 
+    @Test
+    public void longPollDeliveryTest() throws Exception {
+        refreshKeys();
+        final String code = CodeGenerator.generateCode();
+
+        // register
+        registerForDelivery(
+                getDeliveryRegistration(Action.REGISTER, code, Instant.now(), this.algorithm));
+
+        // long poll (not ready)
+        MvcResult mvcResult =
+                mockMvc.perform(
+                                post(LONG_POLL_ENDPOINT)
+                                        .content(
+                                                asJsonString(
+                                                        getRequestDeliveryPayload(
+                                                                Action.GET,
+                                                                code,
+                                                                Instant.now(),
+                                                                this.algorithm)))
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .accept(acceptMediaType))
+                        .andExpect(request().asyncStarted())
+                        .andReturn();
+
+        // upsert dummy covid certificate, wakes up the long poll
+        upsertDummyCovidCert(code);
+
+        MockHttpServletResponse response =
+                mockMvc.perform(asyncDispatch(mvcResult))
+                        .andExpect(status().is2xxSuccessful())
+                        .andReturn()
+                        .getResponse();
+
+        // verify response
+        CovidCertDelivery delivery =
+                testHelper.verifyAndReadValue(
+                        response,
+                        acceptMediaType,
+                        TestHelper.PATH_TO_CA_PEM,
+                        CovidCertDelivery.class);
+        assertEquals(1, delivery.getCovidCerts().size());
+        assertEquals(DUMMY_HCERT, delivery.getCovidCerts().get(0).getEncryptedHcert());
+
+        // unknown code
+        mockMvc.perform(
+                        post(LONG_POLL_ENDPOINT)
+                                .content(
+                                        asJsonString(
+                                                getRequestDeliveryPayload(
+                                                        Action.GET,
+                                                        UNREGISTERED_CODE,
+                                                        Instant.now(),
+                                                        this.algorithm)))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().is(HttpStatus.NOT_FOUND.value()));
+    }
+
     @Test
     public void invalidCodeLengthTest() throws Exception {
         refreshKeys();
@@ -251,7 +316,38 @@ public abstract class AppControllerTest extends BaseControllerTest {
         }
     }
 
+    @Test
+    public void cborDeliveryTest() throws Exception {
+        refreshKeys();
+        final String code = CodeGenerator.generateCode();
+        registerForDelivery(
+                getDeliveryRegistration(Action.REGISTER, code, Instant.now(), this.algorithm));
+        upsertDummyCovidCert(code);
+
+        // encrypted covid certs are raw byte strings
+        MockHttpServletResponse response =
+                getCovidCert(code, CborMessageConverter.CBOR_MEDIA_TYPE);
+        assertEquals(CborMessageConverter.CBOR_MEDIA_TYPE.toString(), response.getContentType());
+        String cbor = new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        assertTrue(cbor.contains("covidCerts"));
+        assertTrue(cbor.contains(new String(Base64.getDecoder().decode(DUMMY_HCERT))));
+        assertTrue(cbor.contains(new String(Base64.getDecoder().decode(DUMMY_PDF))));
+        assertFalse(cbor.contains(DUMMY_PDF));
+
+        // signed as COSE_Sign1, tag 18
+        response = getCovidCert(code, CoseMessageConverter.COSE_MEDIA_TYPE);
+        assertEquals(CoseMessageConverter.COSE_MEDIA_TYPE.toString(), response.getContentType());
+        assertEquals((byte) 0xd2, response.getContentAsByteArray()[0]);
+        String cose = new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        assertTrue(cose.contains(new String(Base64.getDecoder().decode(DUMMY_PDF))));
+    }
+
     private MockHttpServletResponse getCovidCert(String code) throws Exception {
+        return getCovidCert(code, acceptMediaType);
+    }
+
+    private MockHttpServletResponse getCovidCert(String code, MediaType acceptMediaType)
+            throws Exception {
         MockHttpServletResponse response =
                 mockMvc.perform(
                                 post(GET_COVID_CERT_ENDPOINT)
@@ -401,8 +497,8 @@ public abstract class AppControllerTest extends BaseControllerTest {
         DbCovidCert dbCovidCert = new DbCovidCert();
         DbTransfer transfer = deliveryDataService.findTransfer(code);
         dbCovidCert.setFkTransfer(transfer.getPk());
-        dbCovidCert.setEncryptedHcert(DUMMY_HCERT);
-        dbCovidCert.setEncryptedPdf(DUMMY_PDF);
+        dbCovidCert.setEncryptedHcert(Base64.getDecoder().decode(DUMMY_HCERT));
+        dbCovidCert.setEncryptedPdf(Base64.getDecoder().decode(DUMMY_PDF));
         deliveryDataService.insertCovidCert(dbCovidCert);
     }
 
@@ -0,0 +1,75 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.controller.cgscontroller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.CgsController;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.Crypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.CryptoExecutor;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IdempotencyKeyCache;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+public class CgsControllerStagingTest {
+
+    private DeliveryDataService deliveryDataService;
+    private CgsController cgsController;
+
+    @BeforeEach
+    public void setup() {
+        deliveryDataService = mock(DeliveryDataService.class);
+        cgsController =
+                new CgsController(
+                        deliveryDataService,
+                        mock(Crypto.class),
+                        mock(Crypto.class),
+                        mock(IosHeartbeatSilentPush.class),
+                        mock(CryptoExecutor.class),
+                        new IdempotencyKeyCache(100, Duration.ofMinutes(10)),
+                        true);
+    }
+
+    @Test
+    public void knownCodeIsStaged() throws Exception {
+        when(deliveryDataService.findTransfer("A2X56K7WP")).thenReturn(new DbTransfer());
+        when(deliveryDataService.stageCovidCert(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(true);
+
+        var response = cgsController.addCovidCert(null, covidCert("A2X56K7WP"));
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        verify(deliveryDataService)
+                .stageCovidCert(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void unknownCodeIsNotStaged() throws Exception {
+        when(deliveryDataService.findTransfer("UNKNOWN00"))
+                .thenThrow(new CodeNotFoundException("UNKNOWN00"));
+
+        assertThrows(
+                CodeNotFoundException.class,
+                () -> cgsController.addCovidCert(null, covidCert("UNKNOWN00")));
+        verify(deliveryDataService, never()).stageCovidCert(any(), any(), any(), any());
+    }
+
+    private static CgsCovidCert covidCert(String code) {
+        var covidCert = new CgsCovidCert();
+        covidCert.setCode(code);
+        covidCert.setHcert("hcert");
+        covidCert.setPdf("pdf");
+        return covidCert;
+    }
+}
@@ -0,0 +1,96 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.controller.cgscontroller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.CgsController;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.Crypto;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.CryptoExecutor;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IdempotencyKeyCache;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.IosHeartbeatSilentPush;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class CgsControllerStreamedTest {
+
+    private static final String CODE = "A2X56K7WP";
+    private static final String BODY =
+            "{\"code\":\"" + CODE + "\",\"hcert\":\"hcert\",\"pdf\":\"cGRm\"}";
+    private static final String BODY_PDF_FIRST =
+            "{\"code\":\"" + CODE + "\",\"pdf\":\"cGRm\",\"hcert\":\"hcert\"}";
+
+    private DeliveryDataService deliveryDataService;
+    private CgsController cgsController;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        deliveryDataService = mock(DeliveryDataService.class);
+        var transfer = new DbTransfer();
+        transfer.setCode(CODE);
+        transfer.setAlgorithm(Algorithm.EC256);
+        when(deliveryDataService.findTransfer(CODE)).thenReturn(transfer);
+        when(deliveryDataService.insertCovidCert(any())).thenReturn(true);
+        var crypto = mock(Crypto.class);
+        when(crypto.encryptToBytes(anyString(), any(), any())).thenReturn(new byte[] {1});
+        when(crypto.pdfEncryptingStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        when(crypto.encryptPdf(anyString(), any(), any(), any())).thenReturn(new byte[] {2});
+        cgsController =
+                new CgsController(
+                        deliveryDataService,
+                        crypto,
+                        mock(Crypto.class),
+                        mock(IosHeartbeatSilentPush.class),
+                        mock(CryptoExecutor.class),
+                        new IdempotencyKeyCache(100, Duration.ofMinutes(10)),
+                        false);
+    }
+
+    @Test
+    public void duplicateCheckedOnceWhileParsing() throws Exception {
+        var response = cgsController.addCovidCertStreamed(request(BODY));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(deliveryDataService, times(1)).findIdempotencyKeys(anyList());
+        verify(deliveryDataService).insertCovidCert(any());
+    }
+
+    @Test
+    public void duplicateCheckedOnceAfterParsing() throws Exception {
+        // the hcert follows the pdf, the idempotency key is not known while parsing
+        var response = cgsController.addCovidCertStreamed(request(BODY_PDF_FIRST));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(deliveryDataService, times(1)).findIdempotencyKeys(anyList());
+        verify(deliveryDataService).insertCovidCert(any());
+    }
+
+    @Test
+    public void duplicateNotEncrypted() throws Exception {
+        when(deliveryDataService.findIdempotencyKeys(anyList())).thenReturn(Set.of("key"));
+        var response = cgsController.addCovidCertStreamed(request(BODY));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(deliveryDataService, times(1)).findIdempotencyKeys(anyList());
+        verify(deliveryDataService, never()).findTransfer(CODE);
+        verify(deliveryDataService, never()).insertCovidCert(any());
+    }
+
+    private static MockHttpServletRequest request(String body) {
+        var request = new MockHttpServletRequest("POST", "/cgs/v1/covidcert/stream");
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
@@ -3,20 +3,34 @@ package ch.admin.bag.covidcertificate.backend.delivery.ws.controller.cgscontroll
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.JdbcDeliveryDataServiceImpl;
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.TransferCache;
 import ch.admin.bag.covidcertificate.backend.delivery.data.util.CodeGenerator;
 import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCertResult;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCertStatus;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCerts;
+import ch.admin.bag.covidcertificate.backend.delivery.model.cgs.CgsCovidCertsResult;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.controller.BaseControllerTest;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.Action;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.service.TransferCacheInvalidationListener;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.util.TestHelper;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpServletResponse;
@@ -25,6 +39,11 @@ public abstract class CgsControllerTest extends BaseControllerTest {
     private static final String BASE_URL = "/cgs/delivery/v1";
 
     private static final String COVID_CERT_UPLOAD_ENDPOINT = BASE_URL + "/covidcert";
+    private static final String COVID_CERTS_UPLOAD_ENDPOINT = BASE_URL + "/covidcerts";
+    private static final String COVID_CERT_STREAM_ENDPOINT = BASE_URL + "/covidcert/stream";
+    private static final String OTHER_HCERT = "b3RoZXJoY2VydA==";
+
+    @Autowired private TransferCacheInvalidationListener transferCacheInvalidationListener;
 
     @BeforeAll
     public void setup() throws NoSuchAlgorithmException, SQLException {
@@ -103,10 +122,218 @@ public abstract class CgsControllerTest extends BaseControllerTest {
                 .andExpect(status().is(HttpStatus.I_AM_A_TEAPOT.value()));
     }
 
+    @Test
+    public void testTransferClosedByOtherInstance() throws Exception {
+        // the listener clears the cache once it is listening
+        awaitTrue(transferCacheInvalidationListener::isListening);
+        refreshKeys();
+        final String code = CodeGenerator.generateCode();
+        registerForDelivery(
+                getDeliveryRegistration(Action.REGISTER, code, Instant.now(), this.algorithm));
+        assertNotNull(transferCache.get(code));
+
+        // the other instance has a cache of its own, the deletion reaches ours through the db
+        var otherInstance =
+                new JdbcDeliveryDataServiceImpl(
+                        dataSource, 100, new TransferCache(100, Duration.ofMinutes(1)));
+        otherInstance.closeTransfer(code);
+        awaitTrue(() -> transferCache.get(code) == null);
+
+        mockMvc.perform(
+                        post(COVID_CERT_UPLOAD_ENDPOINT)
+                                .content(asJsonString(getCgsCovidCert(code)))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().is(HttpStatus.I_AM_A_TEAPOT.value()));
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        Instant deadline = Instant.now().plusSeconds(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(Instant.now().isBefore(deadline));
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testBatchUpload() throws Exception {
+        refreshKeys();
+        final String code = CodeGenerator.generateCode();
+        final String otherCode = CodeGenerator.generateCode();
+
+        // register clients for covidcert delivery
+        registerForDelivery(
+                getDeliveryRegistration(Action.REGISTER, code, Instant.now(), this.algorithm));
+        refreshKeys();
+        registerForDelivery(
+                getDeliveryRegistration(
+                        Action.REGISTER, otherCode, Instant.now(), this.algorithm));
+
+        CgsCovidCerts covidCerts = new CgsCovidCerts();
+        covidCerts.setCovidCerts(
+                List.of(
+                        getCgsCovidCert(code),
+                        getCgsCovidCert(UNREGISTERED_CODE),
+                        getCgsCovidCert(otherCode),
+                        getCgsCovidCert(code, OTHER_HCERT)));
+        MockHttpServletResponse response =
+                mockMvc.perform(
+                                post(COVID_CERTS_UPLOAD_ENDPOINT)
+                                        .content(asJsonString(covidCerts))
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .accept(acceptMediaType))
+                        .andExpect(status().is2xxSuccessful())
+                        .andReturn()
+                        .getResponse();
+
+        // verify result per code, in request order
+        CgsCovidCertsResult result =
+                testHelper.verifyAndReadValue(
+                        response,
+                        acceptMediaType,
+                        TestHelper.PATH_TO_CA_PEM,
+                        CgsCovidCertsResult.class);
+        assertEquals(
+                List.of(code, UNREGISTERED_CODE, otherCode, code),
+                result.getResults().stream()
+                        .map(CgsCovidCertResult::getCode)
+                        .collect(Collectors.toList()));
+        assertEquals(
+                List.of(
+                        CgsCovidCertStatus.OK,
+                        CgsCovidCertStatus.CODE_NOT_FOUND,
+                        CgsCovidCertStatus.OK,
+                        CgsCovidCertStatus.OK),
+                result.getResults().stream()
+                        .map(CgsCovidCertResult::getStatus)
+                        .collect(Collectors.toList()));
+
+        // verify covid certs uploaded
+        assertEquals(2, deliveryDataService.findCovidCerts(code).size());
+        assertEquals(1, deliveryDataService.findCovidCerts(otherCode).size());
+
+        // empty batch
+        covidCerts.setCovidCerts(List.of());
+        mockMvc.perform(
+                        post(COVID_CERTS_UPLOAD_ENDPOINT)
+                                .content(asJsonString(covidCerts))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testStreamedUpload() throws Exception {
+        refreshKeys();
+        final String code = CodeGenerator.generateCode();
+
+        // register client for covidcert delivery
+        registerForDelivery(
+                getDeliveryRegistration(Action.REGISTER, code, Instant.now(), this.algorithm));
+
+        // pdf is encrypted while the body is read
+        mockMvc.perform(
+                        post(COVID_CERT_STREAM_ENDPOINT)
+                                .content(asJsonString(getCgsCovidCert(code)))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().is2xxSuccessful());
+        assertEquals(1, deliveryDataService.findCovidCerts(code).size());
+
+        // pdf precedes the code and is buffered
+        mockMvc.perform(
+                        post(COVID_CERT_STREAM_ENDPOINT)
+                                .content(
+                                        String.format(
+                                                "{\"pdf\":\"%s\",\"hcert\":\"%s\",\"code\":\"%s\"}",
+                                                DUMMY_PDF, OTHER_HCERT, code))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().is2xxSuccessful());
+        assertEquals(2, deliveryDataService.findCovidCerts(code).size());
+
+        // invalid base64 pdf, retries of delivered covid certs are acknowledged before decoding
+        CgsCovidCert invalidPdf = getCgsCovidCert(code, "aW52YWxpZA==");
+        invalidPdf.setPdf("not base64!");
+        mockMvc.perform(
+                        post(COVID_CERT_STREAM_ENDPOINT)
+                                .content(asJsonString(invalidPdf))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().isBadRequest());
+
+        // missing hcert
+        CgsCovidCert missingHcert = getCgsCovidCert(code);
+        missingHcert.setHcert(null);
+        mockMvc.perform(
+                        post(COVID_CERT_STREAM_ENDPOINT)
+                                .content(asJsonString(missingHcert))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().isBadRequest());
+        assertEquals(2, deliveryDataService.findCovidCerts(code).size());
+
+        mockMvc.perform(
+                        post(COVID_CERT_STREAM_ENDPOINT)
+                                .content(asJsonString(getCgsCovidCert(UNREGISTERED_CODE)))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().is(HttpStatus.I_AM_A_TEAPOT.value()));
+    }
+
+    @Test
+    public void testDuplicateUpload() throws Exception {
+        refreshKeys();
+        final String code = CodeGenerator.generateCode();
+        registerForDelivery(
+                getDeliveryRegistration(Action.REGISTER, code, Instant.now(), this.algorithm));
+
+        // retries with the same code and hcert are acknowledged, but not delivered again
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(
+                            post(COVID_CERT_UPLOAD_ENDPOINT)
+                                    .content(asJsonString(getCgsCovidCert(code)))
+                                    .contentType(MediaType.APPLICATION_JSON)
+                                    .accept(acceptMediaType))
+                    .andExpect(status().is2xxSuccessful());
+            mockMvc.perform(
+                            post(COVID_CERT_STREAM_ENDPOINT)
+                                    .content(asJsonString(getCgsCovidCert(code)))
+                                    .contentType(MediaType.APPLICATION_JSON)
+                                    .accept(acceptMediaType))
+                    .andExpect(status().is2xxSuccessful());
+        }
+        CgsCovidCerts covidCerts = new CgsCovidCerts();
+        covidCerts.setCovidCerts(List.of(getCgsCovidCert(code), getCgsCovidCert(code)));
+        mockMvc.perform(
+                        post(COVID_CERTS_UPLOAD_ENDPOINT)
+                                .content(asJsonString(covidCerts))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .accept(acceptMediaType))
+                .andExpect(status().is2xxSuccessful());
+        assertEquals(1, deliveryDataService.findCovidCerts(code).size());
+
+        // the idempotency key header takes precedence over the hcert
+        for (String hcert : List.of(OTHER_HCERT, DUMMY_HCERT)) {
+            mockMvc.perform(
+                            post(COVID_CERT_UPLOAD_ENDPOINT)
+                                    .header("Idempotency-Key", "retry-1")
+                                    .content(asJsonString(getCgsCovidCert(code, hcert)))
+                                    .contentType(MediaType.APPLICATION_JSON)
+                                    .accept(acceptMediaType))
+                    .andExpect(status().is2xxSuccessful());
+        }
+        assertEquals(2, deliveryDataService.findCovidCerts(code).size());
+    }
+
     private CgsCovidCert getCgsCovidCert(String code) {
+        return getCgsCovidCert(code, DUMMY_HCERT);
+    }
+
+    private CgsCovidCert getCgsCovidCert(String code, String hcert) {
         CgsCovidCert cgsCovidCert = new CgsCovidCert();
         cgsCovidCert.setCode(code);
-        cgsCovidCert.setHcert(DUMMY_HCERT);
+        cgsCovidCert.setHcert(hcert);
         cgsCovidCert.setPdf(DUMMY_PDF);
         return cgsCovidCert;
     }
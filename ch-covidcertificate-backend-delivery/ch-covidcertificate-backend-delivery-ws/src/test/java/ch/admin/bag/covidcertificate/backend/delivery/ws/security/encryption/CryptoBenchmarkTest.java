@@ -0,0 +1,133 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.HashUtil;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signature validations and encryptions per second of EcCrypto and RsaCrypto, on one thread and on
+ * all cores, with the public key parsed on every call and served from the public key cache. Run
+ * with -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class CryptoBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(CryptoBenchmarkTest.class);
+
+    private static final long WARMUP_MILLIS = 2_000;
+    private static final long MEASURE_MILLIS = 3_000;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // about the size of a signature payload sent by the app
+    private static final String SIGNATURE_PAYLOAD =
+            "{\"action\":\"GET\",\"code\":\"A2X56K7WP\",\"signatureTimestamp\":1634567890123}";
+    // about the size of an hcert
+    private static final String PLAINTEXT = "x".repeat(1024);
+
+    @Test
+    public void ecOperationsPerSecond() throws Exception {
+        KeyPair keyPair = CryptoHelper.createEcKeyPair();
+        String publicKey = CryptoHelper.getEcPubKeyUncompressedOctal(keyPair.getPublic());
+        String signature = sign(Signature.getInstance("SHA256withECDSA"), keyPair);
+        measureAll("ec", new EcCrypto(), publicKey, signature);
+        try (var pool = new EphemeralKeyPairPool(100, 1000)) {
+            var crypto = new EcCrypto(100, Duration.ofHours(1), pool);
+            String publicKeySha256 = HashUtil.getSha256Hash(publicKey);
+            measure(
+                    "ec encrypt (ephemeral key pool, cached key)",
+                    () -> crypto.encryptToBytes(PLAINTEXT, publicKey, publicKeySha256));
+        }
+    }
+
+    @Test
+    public void rsaOperationsPerSecond() throws Exception {
+        KeyPair keyPair = CryptoHelper.createRsaKeyPair();
+        String publicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        String signature =
+                sign(
+                        Signature.getInstance("SHA256withRSA/PSS", new BouncyCastleProvider()),
+                        keyPair);
+        measureAll("rsa", new RsaCrypto(), publicKey, signature);
+    }
+
+    private static void measureAll(
+            String name, Crypto crypto, String publicKey, String signature) throws Exception {
+        String publicKeySha256 = HashUtil.getSha256Hash(publicKey);
+        measure(
+                name + " verify",
+                () -> {
+                    crypto.validateSignature(SIGNATURE_PAYLOAD, signature, publicKey);
+                    return null;
+                });
+        measure(
+                name + " verify (cached key)",
+                () -> {
+                    crypto.validateSignature(
+                            SIGNATURE_PAYLOAD, signature, publicKey, publicKeySha256);
+                    return null;
+                });
+        measure(name + " encrypt", () -> crypto.encryptToBytes(PLAINTEXT, publicKey, null));
+        measure(
+                name + " encrypt (cached key)",
+                () -> crypto.encryptToBytes(PLAINTEXT, publicKey, publicKeySha256));
+    }
+
+    private static String sign(Signature signature, KeyPair keyPair) throws Exception {
+        signature.initSign(keyPair.getPrivate());
+        signature.update(SIGNATURE_PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(signature.sign());
+    }
+
+    private static void measure(String name, Callable<?> operation) throws Exception {
+        run(operation, 1, WARMUP_MILLIS);
+        double single = run(operation, 1, MEASURE_MILLIS) * 1000.0 / MEASURE_MILLIS;
+        logger.info("{}: {} per second on 1 thread", name, String.format("%.0f", single));
+        if (THREADS > 1) {
+            // engines are kept per thread, this should scale with the cores
+            double all = run(operation, THREADS, MEASURE_MILLIS) * 1000.0 / MEASURE_MILLIS;
+            logger.info(
+                    "{}: {} per second on {} threads", name, String.format("%.0f", all), THREADS);
+        }
+    }
+
+    private static long run(Callable<?> operation, int threads, long millis) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long end = System.currentTimeMillis() + millis;
+            List<Future<Long>> counts = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                counts.add(
+                        executor.submit(
+                                () -> {
+                                    long count = 0;
+                                    while (System.currentTimeMillis() < end) {
+                                        operation.call();
+                                        count++;
+                                    }
+                                    return count;
+                                }));
+            }
+            long total = 0;
+            for (Future<Long> count : counts) {
+                total += count.get();
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
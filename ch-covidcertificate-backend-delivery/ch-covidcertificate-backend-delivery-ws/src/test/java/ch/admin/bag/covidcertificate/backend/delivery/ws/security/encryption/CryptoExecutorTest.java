@@ -0,0 +1,61 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+public class CryptoExecutorTest {
+
+    @Test
+    public void fullQueueRunsOnCaller() throws Exception {
+        try (var executor = new CryptoExecutor(1, 1)) {
+            var started = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            Future<String> blocking =
+                    executor.submit(
+                            () -> {
+                                started.countDown();
+                                release.await();
+                                return "blocking";
+                            });
+            started.await();
+            Future<String> queued = executor.submit(() -> "queued");
+            assertEquals(1, executor.getQueueSize());
+            assertEquals(1, executor.getActiveCount());
+
+            Future<String> rejected = executor.submit(() -> Thread.currentThread().getName());
+            assertTrue(rejected.isDone());
+            assertEquals(Thread.currentThread().getName(), CryptoExecutor.await(rejected));
+            assertEquals(1, executor.getRejectedCount());
+
+            release.countDown();
+            assertEquals("blocking", CryptoExecutor.await(blocking));
+            assertEquals("queued", CryptoExecutor.await(queued));
+        }
+    }
+
+    @Test
+    public void awaitRethrowsCryptoExceptions() {
+        try (var executor = new CryptoExecutor(1, 10)) {
+            Future<String> invalidKey =
+                    executor.submit(
+                            () -> {
+                                throw new InvalidPublicKeyException();
+                            });
+            assertThrows(InvalidPublicKeyException.class, () -> CryptoExecutor.await(invalidKey));
+
+            Future<String> failed =
+                    executor.submit(
+                            () -> {
+                                throw new GeneralSecurityException("failed");
+                            });
+            assertThrows(GeneralSecurityException.class, () -> CryptoExecutor.await(failed));
+        }
+    }
+}
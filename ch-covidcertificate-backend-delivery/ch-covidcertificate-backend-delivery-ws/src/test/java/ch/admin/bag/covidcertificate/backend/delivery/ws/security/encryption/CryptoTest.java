@@ -1,25 +1,46 @@
 package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import ch.admin.bag.covidcertificate.backend.delivery.data.impl.HashUtil;
 import ch.admin.bag.covidcertificate.backend.delivery.data.util.CodeGenerator;
 import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.Action;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidPublicKeyException;
 import ch.admin.bag.covidcertificate.backend.delivery.ws.security.exception.InvalidSignatureException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
 
 public class CryptoTest {
 
@@ -71,6 +92,83 @@ public class CryptoTest {
         System.out.println(crypto.encrypt("this is a test (rsa)", RSA_TEST_PUB_KEY));
     }
 
+    @Test
+    public void rsaStreamedEncryptTest() throws Exception {
+        KeyPair rsaKeyPair = CryptoHelper.createRsaKeyPair();
+        String pubKey = Base64.getEncoder().encodeToString(rsaKeyPair.getPublic().getEncoded());
+        String pdf = Base64.getEncoder().encodeToString(new byte[100_000]);
+        RsaCrypto crypto = new RsaCrypto();
+
+        var out = new ByteArrayOutputStream();
+        try (OutputStream encrypting = crypto.encryptingStream(out, pubKey, null)) {
+            byte[] plain = pdf.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < plain.length; i += 4096) {
+                encrypting.write(plain, i, Math.min(4096, plain.length - i));
+            }
+        }
+        byte[] streamed = out.toByteArray();
+        byte[] buffered = crypto.encryptToBytes(pdf, pubKey, null);
+
+        // same envelope, both decrypt to the same plain text
+        assertEquals(buffered.length, streamed.length);
+        assertEquals(pdf, decryptRsa(streamed, rsaKeyPair.getPrivate()));
+        assertEquals(pdf, decryptRsa(buffered, rsaKeyPair.getPrivate()));
+    }
+
+    @Test
+    public void rsaCompressedPdfTest() throws Exception {
+        KeyPair rsaKeyPair = CryptoHelper.createRsaKeyPair();
+        String pubKey = Base64.getEncoder().encodeToString(rsaKeyPair.getPublic().getEncoded());
+        byte[] pdf;
+        try (InputStream is = new ClassPathResource("pdf/test_cert.pdf").getInputStream()) {
+            pdf = is.readAllBytes();
+        }
+        String base64Pdf = Base64.getEncoder().encodeToString(pdf);
+        RsaCrypto crypto = new RsaCrypto();
+
+        byte[] buffered = crypto.encryptPdf(base64Pdf, PdfCompression.DEFLATE, pubKey, null);
+        var out = new ByteArrayOutputStream();
+        try (OutputStream encrypting =
+                crypto.pdfEncryptingStream(out, PdfCompression.DEFLATE, pubKey, null)) {
+            encrypting.write(pdf);
+        }
+        byte[] streamed = out.toByteArray();
+
+        assertArrayEquals(pdf, inflate(decryptRsaToBytes(buffered, rsaKeyPair.getPrivate())));
+        assertArrayEquals(pdf, inflate(decryptRsaToBytes(streamed, rsaKeyPair.getPrivate())));
+        byte[] uncompressed = crypto.encryptPdf(base64Pdf, null, pubKey, null);
+        assertEquals(base64Pdf, decryptRsa(uncompressed, rsaKeyPair.getPrivate()));
+        assertTrue(buffered.length < uncompressed.length);
+    }
+
+    private static byte[] inflate(byte[] deflated) throws Exception {
+        // raw deflate, as announced by PdfCompression.DEFLATE
+        var inflater = new Inflater(true);
+        try (InputStream is =
+                new InflaterInputStream(new ByteArrayInputStream(deflated), inflater)) {
+            return is.readAllBytes();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String decryptRsa(byte[] encrypted, PrivateKey privateKey) throws Exception {
+        return new String(decryptRsaToBytes(encrypted, privateKey), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] decryptRsaToBytes(byte[] encrypted, PrivateKey privateKey)
+            throws Exception {
+        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPwithSHA-256andMGF1Padding");
+        rsa.init(Cipher.DECRYPT_MODE, privateKey);
+        byte[] ivAndKey = rsa.doFinal(encrypted, 0, 256);
+        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+        aes.init(
+                Cipher.DECRYPT_MODE,
+                new SecretKeySpec(ivAndKey, 12, 32, "AES"),
+                new GCMParameterSpec(128, ivAndKey, 0, 12));
+        return aes.doFinal(encrypted, 256, encrypted.length - 256);
+    }
+
     private static final String CODE = CodeGenerator.generateCode();
 
     @Test
@@ -100,6 +198,68 @@ public class CryptoTest {
         assertThrows(InvalidPublicKeyException.class, () -> new RsaCrypto().getPublicKey(pubKey));
     }
 
+    @Test
+    public void cachedPublicKeyTest() throws Exception {
+        EcCrypto crypto = new EcCrypto();
+        String signature =
+                "MEYCIQCYg7o306qjiVHeEi/tRE/wIgOjds04t/8lDdp5/kEDpAIhAJAbd6hJbzVfovxtuMAewWDZErcGthwhERDrYDx4cP7E";
+        String publicKeySha256 = HashUtil.getSha256Hash(EC_TEST_PUB_KEY);
+        crypto.validateSignature("hallo", signature, EC_TEST_PUB_KEY, publicKeySha256);
+
+        // the parsed key is looked up by hash, the public key is not parsed again
+        crypto.validateSignature("hallo", signature, "not a public key", publicKeySha256);
+        crypto.encrypt("this is a test (ec)", "not a public key", publicKeySha256);
+        assertThrows(
+                InvalidPublicKeyException.class,
+                () -> crypto.validateSignature("hallo", signature, "not a public key"));
+
+        // invalid keys are not cached
+        RsaCrypto rsaCrypto = new RsaCrypto();
+        KeyPair rsaKeyPair = CryptoHelper.createRsaKeyPair(2000);
+        String pubKey = Base64.getEncoder().encodeToString(rsaKeyPair.getPublic().getEncoded());
+        String pubKeySha256 = HashUtil.getSha256Hash(pubKey);
+        for (int i = 0; i < 2; i++) {
+            assertThrows(
+                    InvalidPublicKeyException.class,
+                    () -> rsaCrypto.encrypt("this is a test (rsa)", pubKey, pubKeySha256));
+        }
+    }
+
+    @Test
+    public void concurrentSignatureValidationTest() throws Exception {
+        KeyPair rsaKeyPair = CryptoHelper.createRsaKeyPair();
+        Signature sig = Signature.getInstance("SHA256withRSA/PSS", new BouncyCastleProvider());
+        sig.initSign(rsaKeyPair.getPrivate());
+        sig.update("hallo".getBytes(StandardCharsets.UTF_8));
+        String signature = Base64.getEncoder().encodeToString(sig.sign());
+        String pubKey = Base64.getEncoder().encodeToString(rsaKeyPair.getPublic().getEncoded());
+
+        // engines are reused per thread, valid and invalid signatures must not interfere
+        RsaCrypto crypto = new RsaCrypto();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    crypto.validateSignature("hallo", signature, pubKey);
+                                    assertThrows(
+                                            InvalidSignatureException.class,
+                                            () ->
+                                                    crypto.validateSignature(
+                                                            "hallo2", signature, pubKey));
+                                    return crypto.encrypt("this is a test (rsa)", pubKey);
+                                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     private void printPayloads(Signature sig, String code, String pubKey, Algorithm algorithm)
             throws SignatureException {
         for (Action action : Action.values()) {
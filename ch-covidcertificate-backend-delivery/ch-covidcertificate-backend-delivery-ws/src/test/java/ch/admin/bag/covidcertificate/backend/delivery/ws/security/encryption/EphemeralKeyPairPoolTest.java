@@ -0,0 +1,63 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class EphemeralKeyPairPoolTest {
+
+    @Test
+    public void keyPairsAreUsedOnce() throws Exception {
+        try (var pool = new EphemeralKeyPairPool(2, 5)) {
+            awaitSize(pool, 5);
+
+            Set<String> publicKeys = new HashSet<>();
+            for (int i = 0; i < 20; i++) {
+                KeyPair keyPair = pool.take();
+                assertTrue(publicKeys.add(keyPair.getPublic().toString()));
+            }
+
+            // pool is refilled in the background after dropping below the low watermark
+            while (pool.size() >= 2) {
+                assertTrue(publicKeys.add(pool.take().getPublic().toString()));
+            }
+            awaitSize(pool, 5);
+        }
+    }
+
+    @Test
+    public void disabledPoolGeneratesSynchronously() {
+        try (var pool = EphemeralKeyPairPool.disabled()) {
+            assertEquals(0, pool.size());
+            assertNotEquals(pool.take().getPublic(), pool.take().getPublic());
+            assertEquals(0, pool.getFallbackCount());
+        }
+    }
+
+    @Test
+    public void ecEncryptWithPool() throws Exception {
+        try (var pool = new EphemeralKeyPairPool(1, 2)) {
+            var crypto = new EcCrypto(10, Duration.ofMinutes(1), pool);
+            var publicKey =
+                    CryptoHelper.getEcPubKeyUncompressedOctal(
+                            CryptoHelper.createEcKeyPair().getPublic());
+            // the ephemeral public key is the prefix of the cipher text
+            var first = crypto.encrypt("this is a test (ec)", publicKey).substring(0, 86);
+            var second = crypto.encrypt("this is a test (ec)", publicKey).substring(0, 86);
+            assertNotEquals(first, second);
+        }
+    }
+
+    private void awaitSize(EphemeralKeyPairPool pool, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && pool.size() < size; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(size, pool.size());
+    }
+}
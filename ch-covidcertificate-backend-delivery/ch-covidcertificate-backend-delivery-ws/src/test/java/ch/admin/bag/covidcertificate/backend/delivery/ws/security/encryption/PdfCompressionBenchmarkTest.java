@@ -0,0 +1,79 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PdfCompression;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Stored and sent bytes and encryptions per second of the test pdf, uncompressed and deflated with
+ * different levels. Run with -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class PdfCompressionBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PdfCompressionBenchmarkTest.class);
+
+    private static final long WARMUP_MILLIS = 1_000;
+    private static final long MEASURE_MILLIS = 3_000;
+
+    @Test
+    public void sizeAndEncryptionsPerSecond() throws Exception {
+        byte[] pdf;
+        try (InputStream is = new ClassPathResource("pdf/test_cert.pdf").getInputStream()) {
+            pdf = is.readAllBytes();
+        }
+        String base64Pdf = Base64.getEncoder().encodeToString(pdf);
+        var crypto = new EcCrypto();
+        var kpg = CryptoHelper.createEcKeyPair();
+        String publicKey = CryptoHelper.getEcPubKeyUncompressedOctal(kpg.getPublic());
+        logger.info("pdf: {} bytes, {} bytes base64", pdf.length, base64Pdf.length());
+
+        measure("none", () -> crypto.encryptPdf(base64Pdf, null, publicKey, "sha"));
+        measure(
+                "deflate",
+                () -> crypto.encryptPdf(base64Pdf, PdfCompression.DEFLATE, publicKey, "sha"));
+        for (int level : new int[] {1, 6, 9}) {
+            measure("deflate level " + level + " (compression only)", () -> deflate(pdf, level));
+        }
+    }
+
+    private static byte[] deflate(byte[] pdf, int level) throws Exception {
+        var out = new ByteArrayOutputStream(pdf.length);
+        try (OutputStream deflating = PdfCompressor.deflatingStream(out, level)) {
+            deflating.write(pdf);
+        }
+        return out.toByteArray();
+    }
+
+    private static void measure(String name, Callable<byte[]> encrypt) throws Exception {
+        int stored = encrypt.call().length;
+        // the delivery contains the stored bytes as base64
+        int sent = 4 * ((stored + 2) / 3);
+        run(encrypt, WARMUP_MILLIS);
+        double perSecond = run(encrypt, MEASURE_MILLIS) * 1000.0 / MEASURE_MILLIS;
+        logger.info(
+                "{}: {} bytes stored, {} bytes sent, {} per second",
+                name,
+                stored,
+                sent,
+                String.format("%.0f", perSecond));
+    }
+
+    private static long run(Callable<byte[]> encrypt, long millis) throws Exception {
+        long count = 0;
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            encrypt.call();
+            count++;
+        }
+        return count;
+    }
+}
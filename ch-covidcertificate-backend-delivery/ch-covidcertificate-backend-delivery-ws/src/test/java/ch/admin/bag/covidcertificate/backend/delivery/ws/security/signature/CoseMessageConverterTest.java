@@ -0,0 +1,119 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.cbor.CborMessageConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+public class CoseMessageConverterTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    @Test
+    public void cborDelivery() throws Exception {
+        var covidCert = new CovidCert();
+        covidCert.setEncryptedHcert(Base64.getEncoder().encodeToString(new byte[] {1, 2}));
+        covidCert.setEncryptedPdf(Base64.getEncoder().encodeToString(new byte[] {3}));
+        var out = new ByteArrayOutputStream();
+
+        CborMessageConverter.write(new CovidCertDelivery(List.of(covidCert)), out);
+
+        // {"covidCerts": [{"encryptedHcert": h'0102', "encryptedPdf": h'03'}]}
+        assertEquals(
+                "a1"
+                        + "6a"
+                        + HEX.formatHex("covidCerts".getBytes())
+                        + "81a2"
+                        + "6e"
+                        + HEX.formatHex("encryptedHcert".getBytes())
+                        + "420102"
+                        + "6c"
+                        + HEX.formatHex("encryptedPdf".getBytes())
+                        + "4103",
+                HEX.formatHex(out.toByteArray()));
+    }
+
+    @Test
+    public void ecSignatureIsVerifiable() throws Exception {
+        var kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(256);
+        KeyPair keyPair = kpg.generateKeyPair();
+        var signer = new CoseSigner(new JwsSigner(keyPair.getPrivate(), List.of()), List.of());
+        byte[] payload = "payload".getBytes();
+        var out = new ByteArrayOutputStream();
+
+        signer.write(payload, out);
+
+        // 18([h'a10126', {}, payload, signature]), alg -7 is ES256
+        byte[] cose = out.toByteArray();
+        String prefix = "d284" + "43a10126" + "a0" + "47" + HEX.formatHex(payload) + "5840";
+        assertEquals(prefix, HEX.formatHex(cose, 0, prefix.length() / 2));
+        byte[] signature = Arrays.copyOfRange(cose, prefix.length() / 2, cose.length);
+        assertEquals(64, signature.length);
+
+        // ["Signature1", h'a10126', h'', payload]
+        byte[] sigStructure =
+                HEX.parseHex(
+                        "846a"
+                                + HEX.formatHex("Signature1".getBytes())
+                                + "43a10126"
+                                + "40"
+                                + "47"
+                                + HEX.formatHex(payload));
+        var verifier = Signature.getInstance("SHA256withECDSAinP1363Format");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(sigStructure);
+        assertTrue(verifier.verify(signature));
+    }
+
+    @Test
+    public void emptyDeliveryIsSignedOnce() throws Exception {
+        var properties = new Properties();
+        try (InputStream is =
+                new ClassPathResource("application-local.properties").getInputStream()) {
+            properties.load(is);
+        }
+        char[] password = properties.getProperty("ws.jws.password").toCharArray();
+        var keyStore = KeyStore.getInstance("pkcs12");
+        keyStore.load(
+                new ByteArrayInputStream(
+                        Base64.getDecoder().decode(properties.getProperty("ws.jws.p12"))),
+                password);
+        var signatureCache = new JwsSignatureCache(10, Duration.ofMinutes(10));
+        var converter = new CoseMessageConverter(keyStore, password, null, signatureCache);
+
+        byte[] first = write(converter, new CovidCertDelivery(List.of()));
+        byte[] second = write(converter, new CovidCertDelivery(List.of()));
+
+        assertArrayEquals(first, second);
+        assertEquals(1, signatureCache.getNativeCache().stats().missCount());
+        assertEquals(1, signatureCache.getNativeCache().stats().hitCount());
+        assertEquals((byte) 0xd2, first[0]);
+    }
+
+    private static byte[] write(CoseMessageConverter converter, CovidCertDelivery delivery)
+            throws Exception {
+        var outputMessage = new MockHttpOutputMessage();
+        converter.write(delivery, CoseMessageConverter.COSE_MEDIA_TYPE, outputMessage);
+        return outputMessage.getBodyAsBytes();
+    }
+}
@@ -0,0 +1,91 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.cbor.CborMessageConverter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response size and serializations per second of a covid cert delivery as json, jws, cbor and
+ * cose. Run with -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class DeliveryFormatBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryFormatBenchmarkTest.class);
+
+    private static final long WARMUP_MILLIS = 1_000;
+    private static final long MEASURE_MILLIS = 3_000;
+
+    private interface Format {
+        void write(CovidCertDelivery delivery, ByteArrayOutputStream out) throws Exception;
+    }
+
+    @Test
+    public void sizeAndSerializationsPerSecond() throws Exception {
+        // ciphertexts are random, they do not compress
+        var random = new Random(42);
+        byte[] hcert = new byte[1_500];
+        byte[] pdf = new byte[150_000];
+        random.nextBytes(hcert);
+        random.nextBytes(pdf);
+        var covidCert = new CovidCert();
+        covidCert.setEncryptedHcert(Base64.getEncoder().encodeToString(hcert));
+        covidCert.setEncryptedPdf(Base64.getEncoder().encodeToString(pdf));
+        var delivery = new CovidCertDelivery(List.of(covidCert));
+
+        var kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(256);
+        var jwsSigner = new JwsSigner(kpg.generateKeyPair().getPrivate(), List.of());
+        var coseSigner = new CoseSigner(jwsSigner, List.of());
+        var objectMapper = new ObjectMapper();
+
+        measure("json", delivery, (d, out) -> objectMapper.writeValue(out, d));
+        measure("jws", delivery, (d, out) -> jwsSigner.write(d, out));
+        measure("cbor", delivery, (d, out) -> CborMessageConverter.write(d, out));
+        measure(
+                "cose",
+                delivery,
+                (d, out) -> {
+                    var payload = new ByteArrayOutputStream();
+                    CborMessageConverter.write(d, payload);
+                    coseSigner.write(payload.toByteArray(), out);
+                });
+    }
+
+    private static void measure(String name, CovidCertDelivery delivery, Format format)
+            throws Exception {
+        var out = new ByteArrayOutputStream();
+        format.write(delivery, out);
+        int size = out.size();
+        run(delivery, format, WARMUP_MILLIS);
+        double perSecond = run(delivery, format, MEASURE_MILLIS) * 1000.0 / MEASURE_MILLIS;
+        logger.info(
+                "{}: {} bytes, {} serializations/s",
+                name,
+                size,
+                String.format("%.0f", perSecond));
+    }
+
+    private static long run(CovidCertDelivery delivery, Format format, long millis)
+            throws Exception {
+        long count = 0;
+        long end = System.currentTimeMillis() + millis;
+        var out = new ByteArrayOutputStream(256 * 1024);
+        while (System.currentTimeMillis() < end) {
+            out.reset();
+            format.write(delivery, out);
+            count++;
+        }
+        return count;
+    }
+}
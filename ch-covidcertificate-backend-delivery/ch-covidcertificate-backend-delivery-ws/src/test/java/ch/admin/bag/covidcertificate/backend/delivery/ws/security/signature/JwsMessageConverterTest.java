@@ -0,0 +1,158 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.util.TestHelper;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.Jwts;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+public class JwsMessageConverterTest {
+
+    private KeyStore keyStore;
+    private char[] password;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        var properties = new Properties();
+        try (InputStream is =
+                new ClassPathResource("application-local.properties").getInputStream()) {
+            properties.load(is);
+        }
+        password = properties.getProperty("ws.jws.password").toCharArray();
+        keyStore = KeyStore.getInstance("pkcs12");
+        keyStore.load(
+                new ByteArrayInputStream(
+                        Base64.getDecoder().decode(properties.getProperty("ws.jws.p12"))),
+                password);
+    }
+
+    @Test
+    public void emptyDeliveryIsSignedOnce() throws Exception {
+        var signatureCache = new JwsSignatureCache(10, Duration.ofMinutes(10));
+        var converter = new JwsMessageConverter(keyStore, password, null, signatureCache);
+
+        byte[] first = write(converter, new CovidCertDelivery(List.of()));
+        byte[] second = write(converter, new CovidCertDelivery(List.of()));
+
+        assertArrayEquals(first, second);
+        assertEquals(1, signatureCache.getNativeCache().stats().missCount());
+        assertEquals(1, signatureCache.getNativeCache().stats().hitCount());
+        assertTrue(parse(first).get("covidCerts", List.class).isEmpty());
+    }
+
+    @Test
+    public void deliveryWithCovidCertsIsNotCached() throws Exception {
+        var signatureCache = new JwsSignatureCache(10, Duration.ofMinutes(10));
+        var converter = new JwsMessageConverter(keyStore, password, null, signatureCache);
+        var covidCert = new CovidCert();
+        covidCert.setEncryptedHcert("hcert");
+        covidCert.setEncryptedPdf("pdf");
+
+        byte[] jws = write(converter, new CovidCertDelivery(List.of(covidCert)));
+
+        assertEquals(0, signatureCache.getNativeCache().estimatedSize());
+        assertEquals(0, signatureCache.getNativeCache().stats().requestCount());
+        assertEquals(1, parse(jws).get("covidCerts", List.class).size());
+    }
+
+    @Test
+    public void largeDeliveryIsStreamed() throws Exception {
+        var converter = new JwsMessageConverter(keyStore, password);
+        var covidCert = new CovidCert();
+        covidCert.setEncryptedHcert("hcert");
+        covidCert.setEncryptedPdf("p".repeat(500_000));
+
+        byte[] jws = write(converter, new CovidCertDelivery(List.of(covidCert)));
+
+        List<?> covidCerts = parse(jws).get("covidCerts", List.class);
+        assertEquals(
+                covidCert.getEncryptedPdf(), ((Map<?, ?>) covidCerts.get(0)).get("encryptedPdf"));
+    }
+
+    @Test
+    public void ecSignatureIsVerifiable() throws Exception {
+        var kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(256);
+        KeyPair keyPair = kpg.generateKeyPair();
+        var signer = new JwsSigner(keyPair.getPrivate(), List.of());
+        var out = new ByteArrayOutputStream();
+
+        signer.write(Map.of("code", "A2X56K7WP"), out);
+
+        Jws<Claims> jws =
+                Jwts.parserBuilder()
+                        .setSigningKey(keyPair.getPublic())
+                        .build()
+                        .parseClaimsJws(out.toString(StandardCharsets.UTF_8));
+        assertEquals("ES256", jws.getHeader().getAlgorithm());
+        assertEquals("A2X56K7WP", jws.getBody().get("code"));
+    }
+
+    @Test
+    public void ed25519SignatureIsVerifiable() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        var signer = new JwsSigner(keyPair.getPrivate(), List.of());
+        var out = new ByteArrayOutputStream();
+
+        signer.write(Map.of("code", "A2X56K7WP"), out);
+
+        // jjwt does not support eddsa, verify manually
+        String[] parts = out.toString(StandardCharsets.UTF_8).split("\\.");
+        var verifier = Signature.getInstance("Ed25519");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+        assertTrue(verifier.verify(Base64.getUrlDecoder().decode(parts[2])));
+        assertEquals("EdDSA", signer.getAlgorithm());
+        assertTrue(
+                new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8)
+                        .contains("\"alg\":\"EdDSA\""));
+        assertTrue(
+                new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8)
+                        .contains("A2X56K7WP"));
+    }
+
+    @Test
+    public void cacheableClaims() {
+        assertTrue(JwsSignatureCache.isCacheable(Map.of("covidCerts", List.of())));
+        assertTrue(JwsSignatureCache.isCacheable(Map.of()));
+        assertFalse(JwsSignatureCache.isCacheable(Map.of("covidCerts", List.of("x"))));
+        assertFalse(JwsSignatureCache.isCacheable(Map.of("code", "A2X56K7WP")));
+    }
+
+    private static byte[] write(JwsMessageConverter converter, Object value) throws Exception {
+        var outputMessage = new MockHttpOutputMessage();
+        converter.write(value, JwsMessageConverter.JWS_MEDIA_TYPE, outputMessage);
+        return outputMessage.getBodyAsBytes();
+    }
+
+    private static Claims parse(byte[] jws) {
+        return Jwts.parserBuilder()
+                .setSigningKeyResolver(new JwsKeyResolver(TestHelper.PATH_TO_CA_PEM))
+                .build()
+                .parseClaimsJws(new String(jws, StandardCharsets.UTF_8))
+                .getBody();
+    }
+}
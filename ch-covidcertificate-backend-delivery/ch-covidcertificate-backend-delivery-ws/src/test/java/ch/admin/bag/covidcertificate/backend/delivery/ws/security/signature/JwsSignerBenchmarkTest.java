@@ -0,0 +1,65 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.security.signature;
+
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.CovidCertDelivery;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signatures per second of the jws signing keys on covid cert delivery payloads. Run with
+ * -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class JwsSignerBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(JwsSignerBenchmarkTest.class);
+
+    private static final long WARMUP_MILLIS = 1_000;
+    private static final long MEASURE_MILLIS = 3_000;
+
+    @Test
+    public void signaturesPerSecond() throws Exception {
+        var covidCert = new CovidCert();
+        covidCert.setEncryptedHcert("h".repeat(2_000));
+        covidCert.setEncryptedPdf("p".repeat(200_000));
+        var emptyDelivery = new CovidCertDelivery(List.of());
+        var delivery = new CovidCertDelivery(List.of(covidCert));
+
+        for (String keyType : List.of("RSA:2048", "RSA:3072", "EC:256", "Ed25519:255")) {
+            String[] parts = keyType.split(":");
+            var kpg = KeyPairGenerator.getInstance(parts[0]);
+            if (!"Ed25519".equals(parts[0])) {
+                kpg.initialize(Integer.parseInt(parts[1]));
+            }
+            PrivateKey key = kpg.generateKeyPair().getPrivate();
+            var signer = new JwsSigner(key, List.of());
+            logger.info(
+                    "{} {}: empty delivery {} signatures/s, delivery with 200kB pdf {} signatures/s",
+                    signer.getAlgorithm(),
+                    keyType,
+                    String.format("%.0f", measure(signer, emptyDelivery)),
+                    String.format("%.0f", measure(signer, delivery)));
+        }
+    }
+
+    private static double measure(JwsSigner signer, Object payload) throws Exception {
+        run(signer, payload, WARMUP_MILLIS);
+        return run(signer, payload, MEASURE_MILLIS) * 1000.0 / MEASURE_MILLIS;
+    }
+
+    private static long run(JwsSigner signer, Object payload, long millis) throws Exception {
+        long count = 0;
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            signer.write(payload, OutputStream.nullOutputStream());
+            count++;
+        }
+        return count;
+    }
+}
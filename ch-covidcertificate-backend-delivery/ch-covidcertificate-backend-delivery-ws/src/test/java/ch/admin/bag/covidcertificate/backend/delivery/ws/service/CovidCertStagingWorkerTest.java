@@ -0,0 +1,143 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.data.exception.CodeNotFoundException;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.Algorithm;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbStagedCovidCert;
+import ch.admin.bag.covidcertificate.backend.delivery.model.db.DbTransfer;
+import ch.admin.bag.covidcertificate.backend.delivery.ws.security.encryption.Crypto;
+import java.security.InvalidKeyException;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CovidCertStagingWorkerTest {
+
+    private static final Duration LEASE = Duration.ofMinutes(5);
+    private static final Duration RETRY_BACKOFF = Duration.ofSeconds(10);
+
+    private DeliveryDataService deliveryDataService;
+    private Crypto ecCrypto;
+    private IosHeartbeatSilentPush silentPush;
+    private CovidCertStagingWorker worker;
+
+    @BeforeEach
+    public void setup() {
+        deliveryDataService = mock(DeliveryDataService.class);
+        ecCrypto = mock(Crypto.class);
+        silentPush = mock(IosHeartbeatSilentPush.class);
+        worker =
+                new CovidCertStagingWorker(
+                        deliveryDataService,
+                        ecCrypto,
+                        mock(Crypto.class),
+                        silentPush,
+                        1,
+                        Duration.ofSeconds(1),
+                        LEASE,
+                        10,
+                        3,
+                        RETRY_BACKOFF);
+    }
+
+    @Test
+    public void stagedCovidCertIsEncryptedAndCompleted() throws Exception {
+        DbTransfer transfer = transfer("A2X56K7WP", "register_id");
+        claims(staged(1, "A2X56K7WP", 1));
+        when(deliveryDataService.findTransfer("A2X56K7WP")).thenReturn(transfer);
+        byte[] encryptedHcert = {1, 2};
+        byte[] encryptedPdf = {3, 4};
+        when(ecCrypto.encryptToBytes(eq("hcert"), anyString(), any())).thenReturn(encryptedHcert);
+        when(ecCrypto.encryptPdf(eq("pdf"), any(), anyString(), any())).thenReturn(encryptedPdf);
+
+        worker.drain();
+
+        verify(deliveryDataService)
+                .completeStagedCovidCert(
+                        eq(1),
+                        argThat(
+                                covidCert ->
+                                        covidCert.getFkTransfer().equals(transfer.getPk())
+                                                && covidCert.getEncryptedHcert() == encryptedHcert
+                                                && covidCert.getEncryptedPdf() == encryptedPdf));
+        verify(silentPush).sendSilentPush("register_id");
+        assertEquals(1, worker.getProcessedCount());
+    }
+
+    @Test
+    public void unknownCodeIsDeadLettered() throws Exception {
+        claims(staged(1, "A2X56K7WP", 1));
+        when(deliveryDataService.findTransfer("A2X56K7WP"))
+                .thenThrow(new CodeNotFoundException("A2X56K7WP"));
+
+        worker.drain();
+
+        verify(deliveryDataService).deadLetterStagedCovidCert(1, "code not found");
+        verify(deliveryDataService, never()).retryStagedCovidCert(any(), any(), any());
+        verify(deliveryDataService, never()).completeStagedCovidCert(any(), any());
+    }
+
+    @Test
+    public void failedCovidCertIsRetriedUntilMaxAttempts() throws Exception {
+        claims(staged(1, "A2X56K7WP", 2), staged(2, "B2X56K7WP", 3));
+        when(deliveryDataService.findTransfer(anyString()))
+                .thenAnswer(invocation -> transfer(invocation.getArgument(0), null));
+        when(ecCrypto.encryptToBytes(anyString(), anyString(), any()))
+                .thenThrow(new InvalidKeyException("broken"));
+        when(ecCrypto.encryptPdf(anyString(), any(), anyString(), any()))
+                .thenThrow(new InvalidKeyException("broken"));
+
+        worker.drain();
+
+        verify(deliveryDataService)
+                .retryStagedCovidCert(eq(1), eq(RETRY_BACKOFF.multipliedBy(2)), anyString());
+        verify(deliveryDataService).deadLetterStagedCovidCert(eq(2), anyString());
+        assertEquals(1, worker.getRetriedCount());
+        assertEquals(0, worker.getProcessedCount());
+    }
+
+    @Test
+    public void retryDelayIsCappedAtLease() {
+        assertEquals(RETRY_BACKOFF, worker.getRetryDelay(1));
+        assertEquals(RETRY_BACKOFF.multipliedBy(4), worker.getRetryDelay(3));
+        assertEquals(LEASE, worker.getRetryDelay(10));
+    }
+
+    private void claims(DbStagedCovidCert... stagedCovidCerts) {
+        when(deliveryDataService.claimStagedCovidCerts(any(), anyInt()))
+                .thenReturn(List.of(stagedCovidCerts))
+                .thenReturn(List.of());
+    }
+
+    private static DbStagedCovidCert staged(int pk, String code, int attempts) {
+        var stagedCovidCert = new DbStagedCovidCert();
+        stagedCovidCert.setPk(pk);
+        stagedCovidCert.setCode(code);
+        stagedCovidCert.setHcert("hcert");
+        stagedCovidCert.setPdf("pdf");
+        stagedCovidCert.setAttempts(attempts);
+        return stagedCovidCert;
+    }
+
+    private static DbTransfer transfer(String code, String pushRegisterId) {
+        var transfer = new DbTransfer();
+        transfer.setPk(code.hashCode());
+        transfer.setCode(code);
+        transfer.setPublicKey("public_key");
+        transfer.setAlgorithm(Algorithm.EC256);
+        transfer.setPushRegisterId(pushRegisterId);
+        return transfer;
+    }
+}
@@ -0,0 +1,74 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class FcmPushSenderTest {
+
+    @Test
+    public void sendSilentPushes() throws Exception {
+        List<String> tokens = new ArrayList<>();
+        Set<String> unregisteredTokens = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            var token = (i % 10 == 0 ? "unregistered_" : "token_") + i;
+            tokens.add(token);
+            if (i % 10 == 0) {
+                unregisteredTokens.add(token);
+            }
+        }
+
+        try (var fcm = new FcmStubServer(Duration.ofMillis(5))) {
+            var accessTokenFetches = new AtomicInteger();
+            var sender =
+                    new FcmPushSender(
+                            fcm.getUrl(),
+                            "test",
+                            () -> {
+                                accessTokenFetches.incrementAndGet();
+                                return "test-token";
+                            },
+                            32);
+            Set<String> removedTokens = ConcurrentHashMap.newKeySet();
+            sender.sendSilentPushes(tokens, removedTokens::addAll);
+
+            assertEquals(new HashSet<>(tokens), fcm.getReceivedTokens());
+            assertEquals(unregisteredTokens, removedTokens);
+            assertTrue(
+                    fcm.getMaxInFlight() <= 32, "max in flight was " + fcm.getMaxInFlight());
+            assertEquals(1, accessTokenFetches.get());
+        }
+    }
+
+    @Test
+    public void accessTokenFailure() throws Exception {
+        try (var fcm = new FcmStubServer(Duration.ofMillis(5))) {
+            var sender =
+                    new FcmPushSender(
+                            fcm.getUrl(),
+                            "test",
+                            () -> {
+                                throw new IllegalStateException("Could not get fcm access token");
+                            },
+                            32);
+            Set<String> removedTokens = ConcurrentHashMap.newKeySet();
+            sender.sendSilentPushes(List.of("token_1", "token_2"), removedTokens::addAll);
+            assertTrue(fcm.getReceivedTokens().isEmpty());
+            assertTrue(removedTokens.isEmpty());
+
+            var push = sender.sendSilentPush("token_1").toCompletableFuture();
+            var e = assertThrows(ExecutionException.class, push::get);
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
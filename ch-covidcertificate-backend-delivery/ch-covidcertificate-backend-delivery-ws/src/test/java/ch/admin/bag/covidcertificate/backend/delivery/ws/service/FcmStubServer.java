@@ -0,0 +1,104 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the FCM HTTP v1 send endpoint to test and load test {@link FcmPushSender}
+ * offline. Tokens starting with "unregistered" are answered like expired registrations.
+ */
+public class FcmStubServer implements AutoCloseable {
+
+    private static final String UNREGISTERED =
+            "{\"error\":{\"code\":404,\"status\":\"NOT_FOUND\",\"details\":[{\"@type\":"
+                    + "\"type.googleapis.com/google.firebase.fcm.v1.FcmError\","
+                    + "\"errorCode\":\"UNREGISTERED\"}]}}";
+
+    static {
+        // the jdk server writes headers and body separately, without nodelay every response
+        // waits for the delayed ack of the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Duration latency;
+    private final Set<String> receivedTokens = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public FcmStubServer(Duration latency) throws IOException {
+        this.latency = latency;
+        this.executor = Executors.newFixedThreadPool(64);
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/v1/projects/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public Set<String> getReceivedTokens() {
+        return receivedTokens;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try (exchange) {
+            if (!exchange.getRequestURI().getPath().endsWith("/messages:send")
+                    || !"Bearer test-token"
+                            .equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            String token =
+                    objectMapper
+                            .readTree(exchange.getRequestBody())
+                            .path("message")
+                            .path("token")
+                            .asText();
+            receivedTokens.add(token);
+            Thread.sleep(latency.toMillis());
+            int status;
+            String body;
+            if (token.startsWith("unregistered")) {
+                status = 404;
+                body = UNREGISTERED;
+            } else {
+                status = 200;
+                body = "{\"name\":\"projects/test/messages/" + token + "\"}";
+            }
+            byte[] response = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, response.length);
+            exchange.getResponseBody().write(response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
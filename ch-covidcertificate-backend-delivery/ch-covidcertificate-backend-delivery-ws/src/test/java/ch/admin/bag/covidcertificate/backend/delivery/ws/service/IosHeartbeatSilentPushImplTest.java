@@ -0,0 +1,176 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import ch.admin.bag.covidcertificate.backend.delivery.data.DeliveryDataService;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushRegistration;
+import ch.admin.bag.covidcertificate.backend.delivery.model.app.PushType;
+import com.eatthepath.pushy.apns.ApnsClient;
+import com.eatthepath.pushy.apns.ApnsPushNotification;
+import com.eatthepath.pushy.apns.PushNotificationResponse;
+import com.eatthepath.pushy.apns.util.concurrent.PushNotificationFuture;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class IosHeartbeatSilentPushImplTest {
+
+    @Test
+    public void inFlightNotificationsAreBounded() {
+        List<PushRegistration> registrations = new ArrayList<>();
+        Set<String> invalidTokens = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            var registration = new PushRegistration();
+            registration.setPushToken((i % 7 == 0 ? "invalid_" : "token_") + i);
+            registration.setPushType(PushType.IOS);
+            registration.setId(i);
+            registrations.add(registration);
+            if (i % 7 == 0) {
+                invalidTokens.add(registration.getPushToken());
+            }
+        }
+        DeliveryDataService deliveryDataService = mock(DeliveryDataService.class);
+        when(deliveryDataService.getDuePushRegistrations(any(), any(), anyInt()))
+                .thenReturn(List.of());
+        when(deliveryDataService.getDuePushRegistrations(eq(PushType.IOS), any(), anyInt()))
+                .thenReturn(registrations);
+        Set<String> removedTokens = ConcurrentHashMap.newKeySet();
+        doAnswer(
+                        invocation -> {
+                            List<String> tokens = invocation.getArgument(0);
+                            removedTokens.addAll(tokens);
+                            return null;
+                        })
+                .when(deliveryDataService)
+                .removeRegistrations(any());
+
+        // apns answers asynchronously, tokens starting with "invalid" are unregistered
+        ScheduledExecutorService apns = Executors.newScheduledThreadPool(4);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ApnsClient apnsClient = mock(ApnsClient.class);
+        when(apnsClient.sendNotification(any()))
+                .thenAnswer(
+                        invocation -> {
+                            ApnsPushNotification notification = invocation.getArgument(0);
+                            var future =
+                                    new PushNotificationFuture<
+                                            ApnsPushNotification,
+                                            PushNotificationResponse<ApnsPushNotification>>(
+                                            notification);
+                            var response = response(notification);
+                            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                            apns.schedule(
+                                    () -> {
+                                        inFlight.decrementAndGet();
+                                        future.complete(response);
+                                    },
+                                    1,
+                                    TimeUnit.MILLISECONDS);
+                            return future;
+                        });
+
+        try {
+            new IosHeartbeatSilentPushImpl(
+                            deliveryDataService,
+                            Map.of(PushType.IOS, new ApnsPushSender(apnsClient, "topic", 10)),
+                            Runnable::run)
+                    .sendHeartbeats(Duration.ofHours(2), 1000);
+        } finally {
+            apns.shutdown();
+        }
+
+        assertTrue(maxInFlight.get() <= 10, "max in flight was " + maxInFlight.get());
+        assertEquals(0, inFlight.get());
+        assertEquals(invalidTokens, removedTokens);
+    }
+
+    @Test
+    public void pushTypesWithoutSenderAreSkipped() {
+        DeliveryDataService deliveryDataService = mock(DeliveryDataService.class);
+        PushSender pushSender = mock(PushSender.class);
+        new IosHeartbeatSilentPushImpl(
+                        deliveryDataService, Map.of(PushType.IOS, pushSender), Runnable::run)
+                .sendHeartbeats(Duration.ofHours(2), 1000);
+
+        verify(deliveryDataService).getDuePushRegistrations(eq(PushType.IOS), any(), anyInt());
+        verify(deliveryDataService, never())
+                .getDuePushRegistrations(eq(PushType.AND), any(), anyInt());
+        verify(deliveryDataService, never())
+                .getDuePushRegistrations(eq(PushType.IOD), any(), anyInt());
+    }
+
+    @Test
+    public void sendSilentPushToRegisterId() {
+        var registration = new PushRegistration();
+        registration.setPushToken("invalid_token");
+        registration.setPushType(PushType.IOS);
+        registration.setRegisterId("register_id");
+        DeliveryDataService deliveryDataService = mock(DeliveryDataService.class);
+        when(deliveryDataService.findPushRegistration("register_id")).thenReturn(registration);
+        PushSender pushSender = mock(PushSender.class);
+        when(pushSender.sendSilentPush("invalid_token"))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        doAnswer(
+                        invocation -> {
+                            threads.add(Thread.currentThread().getName());
+                            return null;
+                        })
+                .when(deliveryDataService)
+                .removeRegistrations(List.of("invalid_token"));
+
+        try (var executor = new SilentPushExecutor(1, 10)) {
+            var silentPush =
+                    new IosHeartbeatSilentPushImpl(
+                            deliveryDataService, Map.of(PushType.IOS, pushSender), executor);
+
+            silentPush.sendSilentPush("register_id");
+            verify(pushSender, timeout(1000)).sendSilentPush("invalid_token");
+            // the invalid token is removed on the silent push executor, not the common pool
+            verify(deliveryDataService, timeout(1000))
+                    .removeRegistrations(List.of("invalid_token"));
+            assertEquals(Set.of("silent-push-1"), threads);
+
+            // unknown register ids are ignored
+            silentPush.sendSilentPush("unknown_register_id");
+            verify(deliveryDataService, timeout(1000)).findPushRegistration("unknown_register_id");
+            verifyNoMoreInteractions(pushSender);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PushNotificationResponse<ApnsPushNotification> response(
+            ApnsPushNotification notification) {
+        var valid = !notification.getToken().startsWith("invalid");
+        PushNotificationResponse<ApnsPushNotification> response =
+                mock(PushNotificationResponse.class);
+        when(response.getPushNotification()).thenReturn(notification);
+        when(response.isAccepted()).thenReturn(valid);
+        when(response.getRejectionReason())
+                .thenReturn(valid ? Optional.empty() : Optional.of("Unregistered"));
+        return response;
+    }
+}
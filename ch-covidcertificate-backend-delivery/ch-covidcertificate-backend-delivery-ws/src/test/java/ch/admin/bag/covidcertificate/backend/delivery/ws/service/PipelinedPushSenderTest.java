@@ -0,0 +1,42 @@
+package ch.admin.bag.covidcertificate.backend.delivery.ws.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+public class PipelinedPushSenderTest {
+
+    @Test
+    public void sendSilentPushesContinuesIfSendThrows() {
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tokens.add((i % 2 == 0 ? "failing_" : "invalid_") + i);
+        }
+        // more failing sends than permits, a leaked permit would block forever
+        var sender =
+                new PipelinedPushSender(4) {
+                    @Override
+                    public CompletionStage<Boolean> sendSilentPush(String pushToken) {
+                        if (pushToken.startsWith("failing_")) {
+                            throw new IllegalStateException("no access token");
+                        }
+                        return CompletableFuture.completedFuture(true);
+                    }
+                };
+        Set<String> removedTokens = ConcurrentHashMap.newKeySet();
+        assertTimeoutPreemptively(
+                Duration.ofSeconds(10),
+                () -> sender.sendSilentPushes(tokens, removedTokens::addAll));
+        assertEquals(10, removedTokens.size());
+        removedTokens.forEach(token -> assertTrue(token.startsWith("invalid_"), token));
+    }
+}